@@ -0,0 +1,120 @@
+/**
+ * Copyright (c) 2008-2016, Massachusetts Institute of Technology (MIT)
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its contributors
+ * may be used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package edu.mit.ll.em.api.rs;
+
+import java.util.Date;
+
+public class ShapefileImportStatus {
+
+	public static enum Stage {
+		QUEUED, IMPORTING_FEATURES, PUBLISHING_LAYER, CREATING_DATALAYER, COMPLETE, FAILED
+	}
+
+	private String jobId;
+	private String layerName;
+	private ShapefileImportStatus.Stage stage;
+	private int featuresWritten;
+	private int featuresTotal = -1;
+	private String message;
+	private Date created;
+	private Date updated;
+
+	public String getJobId() {
+		return jobId;
+	}
+
+	public void setJobId(String jobId) {
+		this.jobId = jobId;
+	}
+
+	public String getLayerName() {
+		return layerName;
+	}
+
+	public void setLayerName(String layerName) {
+		this.layerName = layerName;
+	}
+
+	public ShapefileImportStatus.Stage getStage() {
+		return stage;
+	}
+
+	public void setStage(ShapefileImportStatus.Stage stage) {
+		this.stage = stage;
+	}
+
+	public int getFeaturesWritten() {
+		return featuresWritten;
+	}
+
+	public void setFeaturesWritten(int featuresWritten) {
+		this.featuresWritten = featuresWritten;
+	}
+
+	/**
+	 * @return number of features in the shapefile, -1 if not known yet
+	 */
+	public int getFeaturesTotal() {
+		return featuresTotal;
+	}
+
+	public void setFeaturesTotal(int featuresTotal) {
+		this.featuresTotal = featuresTotal;
+	}
+
+	public String getMessage() {
+		return message;
+	}
+
+	public void setMessage(String message) {
+		this.message = message;
+	}
+
+	public Date getCreated() {
+		return created;
+	}
+
+	public void setCreated(Date created) {
+		this.created = created;
+	}
+
+	public Date getUpdated() {
+		return updated;
+	}
+
+	public void setUpdated(Date updated) {
+		this.updated = updated;
+	}
+
+	public String toString() {
+		return "ShapefileImportStatus [jobId=" + jobId + ", layerName=" + layerName + ", stage=" + stage
+				+ ", featuresWritten=" + featuresWritten + ", featuresTotal=" + featuresTotal + "]";
+	}
+}
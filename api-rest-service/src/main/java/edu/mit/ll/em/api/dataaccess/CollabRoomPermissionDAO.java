@@ -0,0 +1,109 @@
+/**
+ * Copyright (c) 2008-2016, Massachusetts Institute of Technology (MIT)
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its contributors
+ * may be used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package edu.mit.ll.em.api.dataaccess;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import javax.naming.InitialContext;
+import javax.naming.NamingException;
+import javax.sql.DataSource;
+
+import edu.mit.ll.em.api.util.SADisplayConstants;
+
+
+/**
+ * Reads collab room permissions in bulk, for the queries nics-dao only offers
+ * one room at a time (CollabRoomDAO.getCollabRoomSystemRole).
+ */
+public class CollabRoomPermissionDAO extends BaseDAO {
+
+	private static final String DATASOURCE = "java:comp/env/jboss/sadisplayDatasource";
+
+	private static final String SYSTEM_ROLES_QUERY =
+			"SELECT p." + SADisplayConstants.COLLAB_ROOM_ID + ", p." + SADisplayConstants.SYSTEM_ROLE_ID +
+			" FROM " + SADisplayConstants.COLLAB_ROOM_PERMISSION_TABLE + " p" +
+			" JOIN " + SADisplayConstants.COLLAB_ROOM_TABLE + " c" +
+			" ON c." + SADisplayConstants.COLLAB_ROOM_ID + " = p." + SADisplayConstants.COLLAB_ROOM_ID +
+			" WHERE c." + SADisplayConstants.INCIDENT_ID + " = ? AND p." + SADisplayConstants.USER_ID + " = ?";
+
+	// Lazy-initialization Holder class idiom.
+	private static class Holder {
+		public static CollabRoomPermissionDAO instance = new CollabRoomPermissionDAO();
+	}
+
+	public static CollabRoomPermissionDAO getInstance() {
+		return Holder.instance;
+	}
+
+	private volatile DataSource lazyDatasource;
+
+	CollabRoomPermissionDAO() {
+	}
+
+	private DataSource getDataSource() throws NamingException {
+		if (lazyDatasource == null) {
+			lazyDatasource = (DataSource) new InitialContext().lookup(DATASOURCE);
+		}
+		return lazyDatasource;
+	}
+
+	/**
+	 * @param userId
+	 * @param incidentId
+	 * @return the systemroleid the user holds in each secured room of the incident,
+	 *         by collabroomid. Rooms the user has no permission on are absent.
+	 */
+	public Map<Integer, Integer> getSystemRoles(int userId, int incidentId) throws SQLException, NamingException {
+		Map<Integer, Integer> roles = new HashMap<Integer, Integer>();
+		try (Connection connection = getDataSource().getConnection();
+				PreparedStatement statement = connection.prepareStatement(SYSTEM_ROLES_QUERY)) {
+			statement.setInt(1, incidentId);
+			statement.setInt(2, userId);
+			try (ResultSet rs = statement.executeQuery()) {
+				while (rs.next()) {
+					int collabRoomId = rs.getInt(1);
+					int roleId = rs.getInt(2);
+					// Should a user be listed twice, the admin role wins
+					Integer previous = roles.get(collabRoomId);
+					if (previous == null || previous != SADisplayConstants.ADMIN_ROLE_ID) {
+						roles.put(collabRoomId, roleId);
+					}
+				}
+			}
+		}
+		return Collections.unmodifiableMap(roles);
+	}
+}
@@ -0,0 +1,172 @@
+/**
+ * Copyright (c) 2008-2016, Massachusetts Institute of Technology (MIT)
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its contributors
+ * may be used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package edu.mit.ll.em.api.dataaccess;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.math.BigInteger;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.concurrent.ConcurrentHashMap;
+
+import edu.mit.ll.em.api.util.APILogger;
+
+/**
+ * Content-addressed storage for uploaded documents. Files are named by the MD5
+ * digest of their content (as a decimal string, the naming already used for
+ * uploads) plus the original extension, so identical uploads map to the same file.
+ * The content is hashed while it streams to a temp file in the store directory;
+ * if a file with that digest is already stored the temp file is dropped instead of
+ * being moved over the existing copy.
+ * 
+ * Stored files are shared by every upload of the same content, and nothing tracks
+ * which documents use them, so they are never deleted; deduplication only saves
+ * the space of repeated uploads.
+ */
+public class DocumentStore {
+
+	private static final String CNAME = DocumentStore.class.getName();
+
+	private static final String DIGEST_ALGORITHM = "MD5";
+
+	private static final ConcurrentHashMap<Path, DocumentStore> stores =
+			new ConcurrentHashMap<Path, DocumentStore>();
+
+	/**
+	 * Writes document content to an output stream. Used when the stored bytes are
+	 * not a straight copy of the upload, e.g. repaired KML.
+	 */
+	public interface ContentWriter {
+		void write(OutputStream os) throws IOException;
+	}
+
+	private final Path directory;
+
+	private DocumentStore(Path directory) {
+		this.directory = directory;
+	}
+
+	/**
+	 * @param directory
+	 * @return the store for the given directory
+	 */
+	public static DocumentStore getInstance(Path directory) {
+		Path key = directory.toAbsolutePath().normalize();
+		DocumentStore store = stores.get(key);
+		if (store == null) {
+			DocumentStore created = new DocumentStore(key);
+			store = stores.putIfAbsent(key, created);
+			if (store == null) {
+				store = created;
+			}
+		}
+		return store;
+	}
+
+	public Path getDirectory() {
+		return directory;
+	}
+
+	/**
+	 * Stores the content of the stream.
+	 * 
+	 * @param is content, read to the end but not closed
+	 * @param extension file extension without the dot, may be null
+	 * @return path of the stored file
+	 * @throws IOException
+	 */
+	public Path store(final InputStream is, String extension) throws IOException {
+		return store(new ContentWriter() {
+			@Override
+			public void write(OutputStream os) throws IOException {
+				byte[] buffer = new byte[8192];
+				int n;
+				while ((n = is.read(buffer)) != -1) {
+					os.write(buffer, 0, n);
+				}
+			}
+		}, extension);
+	}
+
+	/**
+	 * Stores the content produced by the writer.
+	 * 
+	 * @param writer
+	 * @param extension file extension without the dot, may be null
+	 * @return path of the stored file
+	 * @throws IOException
+	 */
+	public Path store(ContentWriter writer, String extension) throws IOException {
+		Files.createDirectories(directory);
+
+		Path tempPath = Files.createTempFile(directory, null, null);
+		try {
+			MessageDigest md = newDigest();
+			try (
+				OutputStream os = Files.newOutputStream(tempPath);
+				DigestOutputStream dos = new DigestOutputStream(os, md)
+			) {
+				writer.write(dos);
+			}
+
+			String filename = new BigInteger(1, md.digest()).toString();
+			if (extension != null) {
+				filename += "." + extension;
+			}
+			Path path = directory.resolve(filename);
+
+			if (Files.exists(path)) {
+				APILogger.getInstance().d(CNAME, "Reusing stored document {}", filename);
+			} else {
+				try {
+					Files.move(tempPath, path);
+				} catch (FileAlreadyExistsException e) {
+					// Stored by a concurrent upload of the same content.
+				}
+			}
+			return path;
+		} finally {
+			Files.deleteIfExists(tempPath);
+		}
+	}
+
+	private static MessageDigest newDigest() {
+		try {
+			return MessageDigest.getInstance(DIGEST_ALGORITHM);
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(DIGEST_ALGORITHM + " digest not available", e);
+		}
+	}
+}
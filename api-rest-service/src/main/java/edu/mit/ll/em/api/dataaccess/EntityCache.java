@@ -0,0 +1,386 @@
+/**
+ * Copyright (c) 2008-2016, Massachusetts Institute of Technology (MIT)
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its contributors
+ * may be used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package edu.mit.ll.em.api.dataaccess;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bounded, read-mostly cache used by {@link EntityCacheMgr}.
+ * <p>
+ * Every entry carries its own expiration time, computed as the configured
+ * time-to-live plus a random jitter, so entries loaded together do not all
+ * expire together. Concurrent misses on the same key are collapsed into a
+ * single call to the {@link Loader}; the other callers wait for and share its
+ * result. When the cache grows past its maximum size, expired entries are
+ * swept first, then the least recently read entries are evicted.
+ * <p>
+ * Null values are never cached; a loader returning null simply yields null.
+ *
+ * @param <K> key type
+ * @param <V> value type
+ */
+public class EntityCache<K, V> {
+
+	/** Loads the value for a key on a cache miss. */
+	public interface Loader<K, V> {
+		V load(K key) throws Exception;
+	}
+
+	/** Selects the keys removed by invalidateMatching. */
+	public interface KeyMatcher<K> {
+		boolean matches(K key);
+	}
+
+	private static class Entry<V> {
+		final V value;
+		final long expiresAt;
+		volatile long lastAccess;
+
+		Entry(V value, long expiresAt, long now) {
+			this.value = value;
+			this.expiresAt = expiresAt;
+			this.lastAccess = now;
+		}
+
+		boolean isExpired(long now) {
+			return now >= expiresAt;
+		}
+	}
+
+	/** An entry and the time it was last read, fixed when eviction starts. */
+	private static class Candidate<K, V> {
+		final K key;
+		final Entry<V> entry;
+		final long accessTime;
+
+		Candidate(K key, Entry<V> entry) {
+			this.key = key;
+			this.entry = entry;
+			this.accessTime = entry.lastAccess;
+		}
+	}
+
+	// Fraction of maxSize evicted at once when the cache overflows, so the
+	// sweep cost is amortized over many inserts.
+	private static final int EVICTION_BATCH_DIVISOR = 10;
+
+	private final String name;
+	private final int maxSize;
+	private final long ttlMillis;
+	private final long jitterMillis;
+
+	private final ConcurrentHashMap<K, Entry<V>> entries;
+	private final ConcurrentHashMap<K, FutureTask<V>> inFlight =
+			new ConcurrentHashMap<K, FutureTask<V>>();
+
+	private final Object evictionLock = new Object();
+
+	// Bumped on every invalidation so in-flight loads started earlier are not cached.
+	private final AtomicLong generation = new AtomicLong();
+
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+	private final AtomicLong loads = new AtomicLong();
+	private final AtomicLong loadFailures = new AtomicLong();
+	private final AtomicLong evictions = new AtomicLong();
+	private final AtomicLong expirations = new AtomicLong();
+
+	/**
+	 * @param name Name used when reporting statistics
+	 * @param maxSize Maximum number of entries held, must be positive
+	 * @param ttlMillis Base time-to-live of an entry
+	 * @param jitterMillis Maximum random amount added to ttlMillis per entry
+	 */
+	public EntityCache(String name, int maxSize, long ttlMillis, long jitterMillis) {
+		if (maxSize <= 0) {
+			throw new IllegalArgumentException("maxSize must be positive");
+		}
+		this.name = name;
+		this.maxSize = maxSize;
+		this.ttlMillis = Math.max(0, ttlMillis);
+		this.jitterMillis = Math.max(0, jitterMillis);
+		this.entries = new ConcurrentHashMap<K, Entry<V>>(Math.min(maxSize, 1024));
+	}
+
+	/**
+	 * Returns the cached value for key, or null if absent or expired. Never
+	 * calls a loader.
+	 */
+	public V getIfPresent(K key) {
+		long now = System.currentTimeMillis();
+		Entry<V> entry = entries.get(key);
+		if (entry != null) {
+			if (!entry.isExpired(now)) {
+				entry.lastAccess = now;
+				hits.incrementAndGet();
+				return entry.value;
+			}
+			expire(key, entry);
+		}
+		misses.incrementAndGet();
+		return null;
+	}
+
+	/**
+	 * Returns the cached value for key, loading it with loader on a miss. Only
+	 * one load per key runs at a time; concurrent callers share its outcome.
+	 *
+	 * @throws Exception whatever the loader threw
+	 */
+	public V get(final K key, final Loader<K, V> loader) throws Exception {
+		V value = getIfPresent(key);
+		if (value != null) {
+			return value;
+		}
+
+		FutureTask<V> task = new FutureTask<V>(new Callable<V>() {
+			public V call() throws Exception {
+				long generationAtStart = generation.get();
+				loads.incrementAndGet();
+				V loaded;
+				try {
+					loaded = loader.load(key);
+				} catch (Exception e) {
+					loadFailures.incrementAndGet();
+					throw e;
+				}
+				// Don't publish a value that may have been invalidated while loading.
+				if (loaded != null && generation.get() == generationAtStart) {
+					put(key, loaded);
+				}
+				return loaded;
+			}
+		});
+
+		FutureTask<V> existing = inFlight.putIfAbsent(key, task);
+		if (existing == null) {
+			try {
+				task.run();
+			} finally {
+				inFlight.remove(key, task);
+			}
+		} else {
+			task = existing;
+		}
+
+		try {
+			return task.get();
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof Exception) {
+				throw (Exception) cause;
+			}
+			throw new ExecutionException(cause);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw e;
+		}
+	}
+
+	public void put(K key, V value) {
+		if (key == null || value == null) {
+			return;
+		}
+		long now = System.currentTimeMillis();
+		Entry<V> previous = entries.put(key, new Entry<V>(value, now + nextTtl(), now));
+		if (previous != null) {
+			onRemoval(key, previous.value);
+		}
+		onInsert(key, value);
+		if (entries.size() > maxSize) {
+			evict(now);
+		}
+	}
+
+	public void invalidate(K key) {
+		if (key == null) {
+			return;
+		}
+		generation.incrementAndGet();
+		Entry<V> removed = entries.remove(key);
+		if (removed != null) {
+			onRemoval(key, removed.value);
+		}
+	}
+
+	/**
+	 * Removes every entry whose key matches. Scans the whole cache, so only
+	 * meant for infrequent use.
+	 */
+	public void invalidateMatching(KeyMatcher<K> matcher) {
+		for (K key : entries.keySet()) {
+			if (matcher.matches(key)) {
+				invalidate(key);
+			}
+		}
+	}
+
+	public void invalidateAll() {
+		for (K key : entries.keySet()) {
+			invalidate(key);
+		}
+	}
+
+	/**
+	 * @return A snapshot of the unexpired values. Does not affect statistics.
+	 */
+	public List<V> values() {
+		long now = System.currentTimeMillis();
+		List<V> values = new ArrayList<V>(entries.size());
+		for (Entry<V> entry : entries.values()) {
+			if (!entry.isExpired(now)) {
+				values.add(entry.value);
+			}
+		}
+		return values;
+	}
+
+	public int size() {
+		return entries.size();
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	public int getMaxSize() {
+		return maxSize;
+	}
+
+	public long getHitCount() {
+		return hits.get();
+	}
+
+	public long getMissCount() {
+		return misses.get();
+	}
+
+	public long getLoadCount() {
+		return loads.get();
+	}
+
+	public long getLoadFailureCount() {
+		return loadFailures.get();
+	}
+
+	public long getEvictionCount() {
+		return evictions.get();
+	}
+
+	public long getExpirationCount() {
+		return expirations.get();
+	}
+
+	@Override
+	public String toString() {
+		return name + "[size=" + size() + ", maxSize=" + maxSize +
+				", hits=" + getHitCount() + ", misses=" + getMissCount() +
+				", loads=" + getLoadCount() + ", loadFailures=" + getLoadFailureCount() +
+				", evictions=" + getEvictionCount() + ", expirations=" + getExpirationCount() + "]";
+	}
+
+	/**
+	 * Called after an entry is added to the cache.
+	 * Subclasses may override to keep secondary structures in step.
+	 */
+	protected void onInsert(K key, V value) {
+	}
+
+	/**
+	 * Called whenever an entry leaves the cache, whatever the reason,
+	 * including being replaced by a newer value for the same key.
+	 * Subclasses may override to keep secondary structures in step.
+	 */
+	protected void onRemoval(K key, V value) {
+	}
+
+	private long nextTtl() {
+		if (jitterMillis == 0) {
+			return ttlMillis;
+		}
+		return ttlMillis + ThreadLocalRandom.current().nextLong(jitterMillis + 1);
+	}
+
+	private void expire(K key, Entry<V> entry) {
+		if (entries.remove(key, entry)) {
+			expirations.incrementAndGet();
+			onRemoval(key, entry.value);
+		}
+	}
+
+	private void evict(long now) {
+		synchronized (evictionLock) {
+			if (entries.size() <= maxSize) {
+				return;
+			}
+
+			// Reads keep updating lastAccess, so sort on a copy of it
+			List<Candidate<K, V>> live = new ArrayList<Candidate<K, V>>(entries.size());
+			for (Map.Entry<K, Entry<V>> e : entries.entrySet()) {
+				if (e.getValue().isExpired(now)) {
+					expire(e.getKey(), e.getValue());
+				} else {
+					live.add(new Candidate<K, V>(e.getKey(), e.getValue()));
+				}
+			}
+
+			int target = maxSize - (maxSize / EVICTION_BATCH_DIVISOR);
+			int excess = entries.size() - target;
+			if (excess <= 0) {
+				return;
+			}
+
+			Collections.sort(live, new Comparator<Candidate<K, V>>() {
+				public int compare(Candidate<K, V> a, Candidate<K, V> b) {
+					return (a.accessTime < b.accessTime) ? -1 : ((a.accessTime == b.accessTime) ? 0 : 1);
+				}
+			});
+
+			for (int i = 0; i < live.size() && excess > 0; i++) {
+				Candidate<K, V> c = live.get(i);
+				if (entries.remove(c.key, c.entry)) {
+					evictions.incrementAndGet();
+					excess--;
+					onRemoval(c.key, c.entry.value);
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,306 @@
+/**
+ * Copyright (c) 2008-2016, Massachusetts Institute of Technology (MIT)
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its contributors
+ * may be used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package edu.mit.ll.em.api.dataaccess;
+
+import java.io.IOException;
+
+import org.codehaus.jackson.JsonNode;
+
+import com.rabbitmq.client.Channel;
+import com.rabbitmq.client.Connection;
+import com.rabbitmq.client.ConnectionFactory;
+import com.rabbitmq.client.QueueingConsumer;
+
+import edu.mit.ll.em.api.util.APIConfig;
+import edu.mit.ll.em.api.util.APILogger;
+import edu.mit.ll.em.api.util.JsonMapper;
+
+/**
+ * Listens on the exchange for the change notifications published by the services
+ * (incident, collabroom and login/logout topics) and evicts the affected entries
+ * from {@link EntityCacheMgr}, so every node drops stale entities as soon as any
+ * node changes them rather than waiting for the cache TTL. Collabroom feature
+ * notifications bump the room version in {@link FeatureSyncTracker}, and incident
+ * and resource version notifications the versions in {@link ResourceVersions}.
+ * SSO tokens revoked on other nodes are dropped from {@link SSOTokenCache}.
+ * <p>
+ * Each node binds its own exclusive, auto-delete queue. If the connection is lost
+ * all caches (SSO tokens included) are flushed and feature sync tokens and resource
+ * versions invalidated, since notifications may have been missed, and the subscriber
+ * reconnects after a delay.
+ * <p>
+ * Started and stopped by Spring, see cxf-rest-service.xml.
+ */
+public class EntityCacheInvalidator implements Runnable {
+
+	private static final String CNAME = EntityCacheInvalidator.class.getName();
+
+	private static final String[] DEFAULT_BINDING_KEYS = {
+		"iweb.NICS.ws.*.newIncident",
+		"iweb.NICS.ws.*.updateIncident",
+		"iweb.NICS.ws.*.removeIncident",
+		"iweb.NICS.incident.*.updatedcollabroom",
+		"iweb.NICS.collabroom.*.feature",
+		"iweb.NICS.collabroom.*.changefeature",
+		"iweb.NICS.collabroom.*.deletefeature",
+		ResourceVersions.TOPIC_PREFIX + "*",
+		SSOTokenCache.REVOKED_TOPIC,
+		"iweb.NICS.*.login",
+		"iweb.NICS.*.logout"
+	};
+
+	private static final long RECONNECT_DELAY_MILLIS = 30 * 1000;
+
+	private volatile boolean running;
+	private volatile Connection connection;
+	private Thread worker;
+
+	public synchronized void start() {
+		if (!APIConfig.getInstance().getConfiguration()
+				.getBoolean(APIConfig.CACHE_INVALIDATION_ENABLED, true)) {
+			APILogger.getInstance().i(CNAME, "Entity cache invalidation is disabled");
+			return;
+		}
+		if (APIConfig.getInstance().getConfiguration()
+				.getString(APIConfig.RABBIT_HOSTNAME_KEY) == null) {
+			APILogger.getInstance().w(CNAME, "No value found for key " + APIConfig.RABBIT_HOSTNAME_KEY +
+					", entity cache invalidation will not be started");
+			return;
+		}
+		running = true;
+		worker = new Thread(this, "EntityCacheInvalidator");
+		worker.setDaemon(true);
+		worker.start();
+	}
+
+	public synchronized void stop() {
+		running = false;
+		closeConnection();
+		if (worker != null) {
+			worker.interrupt();
+			worker = null;
+		}
+	}
+
+	public void run() {
+		while (running) {
+			try {
+				consume();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				break;
+			} catch (Exception e) {
+				if (!running) {
+					break;
+				}
+				APILogger.getInstance().e(CNAME, "Lost connection to the message bus, " +
+						"flushing entity caches: " + e.getMessage());
+				EntityCacheMgr.getInstance().evictAll();
+				SSOTokenCache.getInstance().invalidateAll();
+				FeatureSyncTracker.getInstance().resyncAll();
+				ResourceVersions.getInstance().changedAll();
+			} finally {
+				closeConnection();
+			}
+
+			try {
+				Thread.sleep(RECONNECT_DELAY_MILLIS);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				break;
+			}
+		}
+	}
+
+	private void consume() throws Exception {
+		ConnectionFactory factory = new ConnectionFactory();
+		factory.setHost(APIConfig.getInstance().getConfiguration()
+				.getString(APIConfig.RABBIT_HOSTNAME_KEY));
+		String username = APIConfig.getInstance().getConfiguration()
+				.getString(APIConfig.RABBIT_USERNAME_KEY);
+		if (username != null) {
+			factory.setUsername(username);
+			factory.setPassword(APIConfig.getInstance().getConfiguration()
+					.getString(APIConfig.RABBIT_USERPWD_KEY));
+		}
+		String exchange = APIConfig.getInstance().getConfiguration()
+				.getString(APIConfig.RABBIT_EXCHANGENAME_KEY, "amq.topic");
+		String[] bindingKeys = APIConfig.getInstance().getConfiguration()
+				.getStringArray(APIConfig.CACHE_INVALIDATION_BINDING_KEYS);
+		if (bindingKeys == null || bindingKeys.length == 0) {
+			bindingKeys = DEFAULT_BINDING_KEYS;
+		}
+
+		connection = factory.newConnection();
+		Channel channel = connection.createChannel();
+		String queue = channel.queueDeclare().getQueue();
+		channel.basicQos(Math.max(1, APIConfig.getInstance().getConfiguration()
+				.getInt(APIConfig.RABBIT_CONSUMER_PREFETCH, 100)));
+		for (String key : bindingKeys) {
+			channel.queueBind(queue, exchange, key);
+		}
+		QueueingConsumer consumer = new QueueingConsumer(channel);
+		channel.basicConsume(queue, false, consumer);
+
+		// Anything published before the queue was bound was missed.
+		EntityCacheMgr.getInstance().evictAll();
+		SSOTokenCache.getInstance().invalidateAll();
+		FeatureSyncTracker.getInstance().resyncAll();
+		ResourceVersions.getInstance().changedAll();
+		APILogger.getInstance().i(CNAME, "Listening for entity changes on exchange " + exchange);
+
+		while (running) {
+			QueueingConsumer.Delivery delivery = consumer.nextDelivery();
+			handle(delivery.getEnvelope().getRoutingKey(), new String(delivery.getBody(), "UTF-8"));
+			channel.basicAck(delivery.getEnvelope().getDeliveryTag(), false);
+		}
+	}
+
+	/**
+	 * Evicts the cache entries affected by a single notification.
+	 * 
+	 * @param topic Routing key the notification was published with
+	 * @param message Notification body
+	 */
+	void handle(String topic, String message) {
+		try {
+			EntityCacheMgr cache = EntityCacheMgr.getInstance();
+			if (topic.equals(SSOTokenCache.REVOKED_TOPIC)) {
+				SSOTokenCache.getInstance().remoteRevoked(message.trim());
+			} else if (topic.startsWith(ResourceVersions.TOPIC_PREFIX)) {
+				ResourceVersions.getInstance().remoteChanged(
+						topic.substring(ResourceVersions.TOPIC_PREFIX.length()));
+			} else if (topic.endsWith(".removeIncident")) {
+				cache.evictIncident(Integer.parseInt(message.trim()));
+				ResourceVersions.getInstance().remoteChanged(ResourceVersions.INCIDENTS);
+			} else if (topic.endsWith(".newIncident") || topic.endsWith(".updateIncident")) {
+				ResourceVersions.getInstance().remoteChanged(ResourceVersions.INCIDENTS);
+				int incidentId = readId(message, "incidentid", "incidentId");
+				if (incidentId > 0) {
+					cache.evictIncident(incidentId);
+				}
+			} else if (topic.endsWith(".updatedcollabroom")) {
+				int collabRoomId = readId(message, "collabRoomId", "collabroomid");
+				if (collabRoomId > 0) {
+					cache.evictCollabRoom(collabRoomId);
+					cache.evictCollabRoomPermissions(collabRoomId);
+				}
+				// Sent for permission changes too, which alter the roles of any user
+				int incidentId = readId(message, "incidentid", "incidentId");
+				if (incidentId > 0) {
+					cache.evictCollabRoomRoles(incidentId);
+				}
+			} else if (topic.endsWith(".feature") || topic.endsWith(".changefeature") ||
+					topic.endsWith(".deletefeature")) {
+				int collabRoomId = readTopicId(topic, "collabroom");
+				if (collabRoomId > 0) {
+					if (topic.endsWith(".feature") && isShared(message)) {
+						FeatureSyncTracker.getInstance().featuresReplaced(collabRoomId);
+					} else {
+						FeatureSyncTracker.getInstance().featuresChanged(collabRoomId);
+					}
+				}
+			} else if (topic.endsWith(".login")) {
+				int userId = readId(message, "userId", "userid");
+				if (userId > 0) {
+					cache.evictUser(userId);
+				}
+			} else if (topic.endsWith(".logout")) {
+				cache.evictUserSessions();
+			}
+		} catch (Exception e) {
+			APILogger.getInstance().w(CNAME, "Unable to process entity change on topic " +
+					topic + ": " + e.getMessage());
+		}
+	}
+
+	private int readId(String message, String... fieldNames) throws IOException {
+		JsonNode node = JsonMapper.getInstance().getMapper().readTree(message);
+		if (node != null) {
+			for (String field : fieldNames) {
+				JsonNode value = node.get(field);
+				if (value != null && value.isNumber()) {
+					return value.getIntValue();
+				}
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * Reads the id following the given segment of a topic, as in
+	 * iweb.NICS.collabroom.{id}.feature
+	 */
+	private int readTopicId(String topic, String segment) {
+		String[] parts = topic.split("\\.");
+		for (int i = 0; i < parts.length - 1; i++) {
+			if (segment.equals(parts[i])) {
+				try {
+					return Integer.parseInt(parts[i + 1]);
+				} catch (NumberFormatException e) {
+					return -1;
+				}
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * Features shared or copied into a room are flagged with the "share" topic,
+	 * and published one at a time or as an array.
+	 */
+	private boolean isShared(String message) {
+		try {
+			JsonNode node = JsonMapper.getInstance().getMapper().readTree(message);
+			if (node != null && node.isArray()) {
+				node = node.size() > 0 ? node.get(0) : null;
+			}
+			if (node != null) {
+				JsonNode topic = node.get("topic");
+				return topic != null && "share".equals(topic.getTextValue());
+			}
+		} catch (IOException e) {
+			// Not a feature, treated as a change.
+		}
+		return false;
+	}
+
+	private void closeConnection() {
+		Connection c = connection;
+		connection = null;
+		if (c != null) {
+			try {
+				c.close();
+			} catch (Exception e) {
+				// Already closed.
+			}
+		}
+	}
+}
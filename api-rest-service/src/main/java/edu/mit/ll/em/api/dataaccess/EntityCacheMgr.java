@@ -29,14 +29,20 @@
  */
 package edu.mit.ll.em.api.dataaccess;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Locale;
+import java.util.Map;
 import java.util.Set;
-import java.util.Timer;
-import java.util.TimerTask;
 import java.util.concurrent.ConcurrentHashMap;
 
 import org.springframework.dao.DataAccessException;
 
+import edu.mit.ll.em.api.metrics.InstrumentedDao;
 import edu.mit.ll.em.api.util.APIConfig;
 import edu.mit.ll.em.api.util.APILogger;
 import edu.mit.ll.nics.common.entity.CollabRoom;
@@ -53,9 +59,10 @@ import edu.mit.ll.nics.nicsdao.impl.UserSessionDAOImpl;
  * Maintains a collection of entities, meant to be used for read-only purposes.
  * Frequent queries for entity attributes known to change infrequently, if ever at all,
  * can avoid hitting the database by going through this cache instead.
- * The cache is refreshed at configurable intervals of time controlled via the
- * api properties file, by the key "...cache.entity.refreshminutes".
- * The default is 60 minutes.
+ * Each entry expires on its own after a configurable time-to-live, set via the
+ * api properties file by the key "...cache.user.refreshminutes" (default 60 minutes),
+ * plus a random jitter ("...cache.entity.jitterpercent" of the TTL) so entries do not
+ * all expire at once. Each cache holds at most "...cache.entity.maxsize" entries.
  * 
  * CAUTION: It is imperative that entities in this Cache not be used for updates,
  * nor is it to be relied on for an up-to-date state of entity attributes known to
@@ -65,37 +72,165 @@ import edu.mit.ll.nics.nicsdao.impl.UserSessionDAOImpl;
  */
 public class EntityCacheMgr {
 
-	private static final CollabRoomDAOImpl collabRoomDao = new CollabRoomDAOImpl();
-	private static final IncidentDAOImpl incidentDao = new IncidentDAOImpl();
-	private static final UserDAOImpl userDao = new UserDAOImpl();
-	private static final UserSessionDAOImpl userSessDao = new UserSessionDAOImpl();
-	private static final FormDAOImpl formDao = new FormDAOImpl();
-	
-	// Invalidates the user cache every so many minutes.
-	TimerTask cacheRecycler;
+	private static final String CNAME = EntityCacheMgr.class.getName();
+
+	private static final CollabRoomDAOImpl collabRoomDao = InstrumentedDao.wrap(new CollabRoomDAOImpl());
+	private static final IncidentDAOImpl incidentDao = InstrumentedDao.wrap(new IncidentDAOImpl());
+	private static final UserDAOImpl userDao = InstrumentedDao.wrap(new UserDAOImpl());
+	private static final UserSessionDAOImpl userSessDao = InstrumentedDao.wrap(new UserSessionDAOImpl());
+	private static final FormDAOImpl formDao = InstrumentedDao.wrap(new FormDAOImpl());
+
+	// Form types are read all at once, and cached under a single key.
+	private static final String FORM_TYPES_KEY = "formtypes";
 
 	// Caches CollabRoom per collabRoomId
-	private ConcurrentHashMap<Integer, CollabRoom> collabRoomCache =
-			new ConcurrentHashMap<Integer, CollabRoom>();	
+	private final EntityCache<Integer, CollabRoom> collabRoomCache;
 
 	// Caches Incident per incidentId
-	private ConcurrentHashMap<Integer, Incident> incidentCache =
-			new ConcurrentHashMap<Integer, Incident>();
+	private final EntityCache<Integer, Incident> incidentCache;
 
 	// Caches User entries.
-	private ConcurrentHashMap<Integer, User> userCache =
-			new ConcurrentHashMap<Integer, User>();
+	private final EntityCache<Integer, User> userCache;
+
+	// Indexes the userIds in userCache by lower-cased username. Entries are
+	// added and removed along with the User entries they point to.
+	private final ConcurrentHashMap<String, Integer> usernameIndex =
+			new ConcurrentHashMap<String, Integer>();
+
+	// Caches the systemroleid a user holds in each secured CollabRoom of an
+	// incident, per (incidentId, userId), see roleKey
+	private final EntityCache<Long, Map<Integer, Integer>> collabRoomRoleCache;
+
+	// Caches collabRoomDao.hasPermissions decisions per (username, collabRoomId, mode),
+	// for a short time since they are checked on every poll of a room
+	private final EntityCache<PermissionKey, Boolean> permissionCache;
 
 	// Caches UserSessionIds per userId
-	private ConcurrentHashMap<Integer, Integer> userSessionIdCache =
-			new ConcurrentHashMap<Integer, Integer>();
-	
-	// Caches FormType entries.
-	private ConcurrentHashMap<String, FormType> formTypeCache =
-			new ConcurrentHashMap<String, FormType>();
+	private final EntityCache<Integer, Integer> userSessionIdCache;
 	
-	private ConcurrentHashMap<Integer, FormType> formTypeIdCache =
-			new ConcurrentHashMap<Integer, FormType>();
+	// Caches FormType entries, indexed by name and id.
+	private final EntityCache<String, FormTypeIndex> formTypeCache;
+
+	private final EntityCache.Loader<Integer, CollabRoom> collabRoomLoader =
+			new EntityCache.Loader<Integer, CollabRoom>() {
+		public CollabRoom load(Integer collabRoomId) throws Exception {
+			return collabRoomDao.getCollabRoomById(collabRoomId);
+		}
+	};
+
+	private final EntityCache.Loader<Integer, Incident> incidentLoader =
+			new EntityCache.Loader<Integer, Incident>() {
+		public Incident load(Integer incidentId) throws Exception {
+			return incidentDao.getIncident(incidentId);
+		}
+	};
+
+	private final EntityCache.Loader<Integer, User> userLoader =
+			new EntityCache.Loader<Integer, User>() {
+		public User load(Integer userId) throws Exception {
+			return userDao.getUserById(userId);
+		}
+	};
+
+	private final EntityCache.Loader<Long, Map<Integer, Integer>> collabRoomRoleLoader =
+			new EntityCache.Loader<Long, Map<Integer, Integer>>() {
+		public Map<Integer, Integer> load(Long key) throws Exception {
+			return CollabRoomPermissionDAO.getInstance().getSystemRoles(
+					(int) key.longValue(), (int) (key >>> 32));
+		}
+	};
+
+	private final EntityCache.Loader<PermissionKey, Boolean> permissionLoader =
+			new EntityCache.Loader<PermissionKey, Boolean>() {
+		public Boolean load(PermissionKey key) throws Exception {
+			long userId = getUserId(key.username);
+			if (key.incidentMap == null) {
+				return collabRoomDao.hasPermissions(userId, key.collabRoomId);
+			}
+			return collabRoomDao.hasPermissions(userId, key.collabRoomId, key.incidentMap);
+		}
+	};
+
+	private final EntityCache.Loader<Integer, Integer> userSessionIdLoader =
+			new EntityCache.Loader<Integer, Integer>() {
+		public Integer load(Integer userId) throws Exception {
+			int userSessionId = userSessDao.getUserSessionid(userId);
+			if (userSessionId < 0) {
+				// We need to create a User Session.
+				// TODO:refactor do we? If this is just a cache to get one if it exists, I don't think
+				//  we should assume one needs created?
+				//userSessionId = dbf.createUserSession(em, userId);
+				APILogger.getInstance().i("EntityCacheMgr", "No usersession found for userId: " + userId
+						+ ", TODO: is this a use case where one should be created?");
+				return null;
+			}
+			return userSessionId;
+		}
+	};
+
+	private final EntityCache.Loader<String, FormTypeIndex> formTypeLoader =
+			new EntityCache.Loader<String, FormTypeIndex>() {
+		public FormTypeIndex load(String key) throws Exception {
+			return new FormTypeIndex(formDao.getFormTypes());
+		}
+	};
+
+	/**
+	 * Immutable snapshot of all FormTypes, indexed by name and by id.
+	 */
+	private static class FormTypeIndex {
+		final List<FormType> types;
+		final Map<String, FormType> byName = new LinkedHashMap<String, FormType>();
+		final Map<Integer, FormType> byId = new LinkedHashMap<Integer, FormType>();
+
+		FormTypeIndex(List<FormType> types) {
+			this.types = (types == null) ? Collections.<FormType>emptyList() :
+				Collections.unmodifiableList(new ArrayList<FormType>(types));
+			for (FormType f : this.types) {
+				if (!byName.containsKey(f.getFormTypeName())) {
+					byName.put(f.getFormTypeName(), f);
+				}
+				if (!byId.containsKey(f.getFormTypeId())) {
+					byId.put(f.getFormTypeId(), f);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Identifies a permission check. incidentMap is null for the check that
+	 * does not grant access to the incident map room. Checks are identified by the
+	 * lower-cased username, the username as given is kept for resolving the userId.
+	 */
+	private static final class PermissionKey {
+		final String username;
+		final String usernameKey;
+		final int collabRoomId;
+		final String incidentMap;
+
+		PermissionKey(String username, int collabRoomId, String incidentMap) {
+			this.username = username;
+			this.usernameKey = usernameKey(username);
+			this.collabRoomId = collabRoomId;
+			this.incidentMap = incidentMap;
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			if (!(o instanceof PermissionKey)) {
+				return false;
+			}
+			PermissionKey other = (PermissionKey) o;
+			return collabRoomId == other.collabRoomId && usernameKey.equals(other.usernameKey) &&
+					(incidentMap == null ? other.incidentMap == null : incidentMap.equals(other.incidentMap));
+		}
+
+		@Override
+		public int hashCode() {
+			int hash = 31 * usernameKey.hashCode() + collabRoomId;
+			return 31 * hash + (incidentMap == null ? 0 : incidentMap.hashCode());
+		}
+	}
 
 	// Lazy-initialization Holder class idiom.
 	private static class Holder {
@@ -103,23 +238,9 @@ public class EntityCacheMgr {
 	}
 
 	private void flushCaches() {
-		// TODO: Race condition if a user were to be added simultaneously.
-		// Totally preventing this condition would cost performance-wise.
-		if (collabRoomCache != null && !collabRoomCache.isEmpty()) {
-			collabRoomCache.clear();
-		}			
-		if (incidentCache != null && !incidentCache.isEmpty()) {
-			incidentCache.clear();
-		}		
-		if (userCache != null && !userCache.isEmpty()) {
-			userCache.clear();
+		for (EntityCache<?, ?> cache : getCaches()) {
+			cache.invalidateAll();
 		}
-		if (userSessionIdCache != null && !userSessionIdCache.isEmpty()) {
-			userSessionIdCache.clear();
-		}
-		if (formTypeCache != null && !formTypeCache.isEmpty()) {
-			formTypeCache.clear();
-		}			
 	}
 
 	public void finalize() {
@@ -136,132 +257,288 @@ public class EntityCacheMgr {
 
 	// Hide the default constructor.
 	private EntityCacheMgr() {
+		// Expire after 60 minutes by default.
+		int refreshMins = APIConfig.getInstance().getConfiguration()
+				.getInt(APIConfig.CACHE_USER_REFRESHMINUTES, 60);
+		int maxSize = APIConfig.getInstance().getConfiguration()
+				.getInt(APIConfig.CACHE_ENTITY_MAXSIZE, 10000);
+		int jitterPercent = APIConfig.getInstance().getConfiguration()
+				.getInt(APIConfig.CACHE_ENTITY_JITTERPERCENT, 20);
+
+		long ttlMillis = refreshMins * 60L * 1000L;
+		long jitterMillis = ttlMillis * Math.max(0, jitterPercent) / 100;
+
+		collabRoomCache = new EntityCache<Integer, CollabRoom>(
+				"collabroom", maxSize, ttlMillis, jitterMillis);
+		incidentCache = new EntityCache<Integer, Incident>(
+				"incident", maxSize, ttlMillis, jitterMillis);
+		userCache = new EntityCache<Integer, User>(
+				"user", maxSize, ttlMillis, jitterMillis) {
+			@Override
+			protected void onInsert(Integer userId, User user) {
+				String key = usernameKey(user.getUsername());
+				if (key != null) {
+					usernameIndex.put(key, userId);
+				}
+			}
 
-		cacheRecycler = new TimerTask() { 
-			public void run() {
-				EntityCacheMgr.getInstance().flushCaches();
+			@Override
+			protected void onRemoval(Integer userId, User user) {
+				String key = usernameKey(user.getUsername());
+				if (key != null) {
+					usernameIndex.remove(key, userId);
+				}
 			}
 		};
-		// Refresh every 60 minutes by default.
-		int userCacheRefreshMins = APIConfig.getInstance().getConfiguration()
-				.getInt(APIConfig.CACHE_USER_REFRESHMINUTES, 60);
-		new Timer(true).scheduleAtFixedRate(cacheRecycler, 0,
-				userCacheRefreshMins * 60 * 1000);
+		collabRoomRoleCache = new EntityCache<Long, Map<Integer, Integer>>(
+				"collabroomroles", maxSize, ttlMillis, jitterMillis);
+		int permissionSecs = APIConfig.getInstance().getConfiguration()
+				.getInt(APIConfig.CACHE_PERMISSION_TTLSECONDS, 30);
+		permissionCache = new EntityCache<PermissionKey, Boolean>(
+				"permission", maxSize, permissionSecs * 1000L, 0);
+		userSessionIdCache = new EntityCache<Integer, Integer>(
+				"usersessionid", maxSize, ttlMillis, jitterMillis);
+		formTypeCache = new EntityCache<String, FormTypeIndex>(
+				"formtype", 1, ttlMillis, jitterMillis);
+
+		APILogger.getInstance().i(CNAME, "Entity caches created with maxSize " + maxSize +
+				", ttl " + refreshMins + " minutes, jitter " + jitterPercent + "%");
 	}
 
-	public CollabRoom getCollabRoomEntity(int collabRoomId) throws ICSDatastoreException {
-		CollabRoom cr = null;
-		if (collabRoomCache.containsKey(collabRoomId)) {
-			cr = collabRoomCache.get(collabRoomId);
-		} else {
-			// We need to hit the database.
-			try {
-				CollabRoom collabRoomEntity = collabRoomDao.getCollabRoomById(collabRoomId);				
-				
-				cr = collabRoomEntity;
-				collabRoomCache.putIfAbsent(collabRoomId, cr);
-			} catch(DataAccessException e) {
-				// TODO:refactor keep using, or get rid of ICSDataStoreException?
-				throw new ICSDatastoreException("Cannot read CollabRoom entity with id " + 
-						collabRoomId + e.getMessage());
-			} catch(Exception e) {
-				// TODO:refactor keep using, or get rid of ICSDataStoreException?
-				throw new ICSDatastoreException("Caught unhandled exception trying to read CollabRoom entity with id " + 
-						collabRoomId + e.getMessage());
+	public void evictCollabRoom(int collabRoomId) {
+		collabRoomCache.invalidate(collabRoomId);
+	}
+
+	/**
+	 * Evicts the CollabRoom roles of every user on the incident, to be called
+	 * whenever the permissions of one of its rooms change.
+	 */
+	public void evictCollabRoomRoles(final int incidentId) {
+		collabRoomRoleCache.invalidateMatching(new EntityCache.KeyMatcher<Long>() {
+			public boolean matches(Long key) {
+				return (int) (key >>> 32) == incidentId;
+			}
+		});
+	}
+
+	/**
+	 * Evicts the permission decisions of every user on the room, to be called
+	 * whenever its permissions change.
+	 */
+	public void evictCollabRoomPermissions(final int collabRoomId) {
+		permissionCache.invalidateMatching(new EntityCache.KeyMatcher<PermissionKey>() {
+			public boolean matches(PermissionKey key) {
+				return key.collabRoomId == collabRoomId;
 			}
+		});
+	}
+
+	/**
+	 * Evicts the CollabRoom roles and permission decisions of every user, for
+	 * when the incident of a changed room is unknown.
+	 */
+	public void evictAllCollabRoomRoles() {
+		collabRoomRoleCache.invalidateAll();
+		permissionCache.invalidateAll();
+	}
+
+	public void evictIncident(int incidentId) {
+		incidentCache.invalidate(incidentId);
+	}
+
+	/**
+	 * Evicts the User entity, and the UserSessionId cached for it.
+	 */
+	public void evictUser(int userId) {
+		userCache.invalidate(userId);
+		userSessionIdCache.invalidate(userId);
+	}
+
+	/**
+	 * Evicts every cached UserSessionId. Logout notifications only carry the
+	 * currentusersessionid, which does not say whose cached usersessionid is stale.
+	 */
+	public void evictUserSessions() {
+		userSessionIdCache.invalidateAll();
+	}
+
+	public void evictFormTypes() {
+		formTypeCache.invalidate(FORM_TYPES_KEY);
+	}
+
+	/**
+	 * Empties every cache.
+	 */
+	public void evictAll() {
+		flushCaches();
+	}
+
+	/**
+	 * @return The caches managed here, for reporting their statistics.
+	 */
+	public List<EntityCache<?, ?>> getCaches() {
+		return Arrays.<EntityCache<?, ?>>asList(collabRoomCache, incidentCache,
+				userCache, collabRoomRoleCache, permissionCache, userSessionIdCache, formTypeCache);
+	}
+
+	public CollabRoom getCollabRoomEntity(int collabRoomId) throws ICSDatastoreException {
+		try {
+			return collabRoomCache.get(collabRoomId, collabRoomLoader);
+		} catch(DataAccessException e) {
+			// TODO:refactor keep using, or get rid of ICSDataStoreException?
+			throw new ICSDatastoreException("Cannot read CollabRoom entity with id " + 
+					collabRoomId + e.getMessage());
+		} catch(Exception e) {
+			// TODO:refactor keep using, or get rid of ICSDataStoreException?
+			throw new ICSDatastoreException("Caught unhandled exception trying to read CollabRoom entity with id " + 
+					collabRoomId + e.getMessage());
 		}
-		return cr;
+	}
+
+	/**
+	 * @return the systemroleid the user holds in each secured CollabRoom of the
+	 *         incident, by collabRoomId, read with a single query on a miss
+	 */
+	public Map<Integer, Integer> getCollabRoomRoles(int userId, int incidentId) throws ICSDatastoreException {
+		try {
+			return collabRoomRoleCache.get(roleKey(userId, incidentId), collabRoomRoleLoader);
+		} catch(Exception e) {
+			throw new ICSDatastoreException("Unable to read CollabRoom roles of user " + userId +
+					" on incident " + incidentId + ": " + e.getMessage());
+		}
+	}
+
+	/**
+	 * Cached collabRoomDao.hasPermissions(userId, collabRoomId), with the userId
+	 * resolved from the username.
+	 */
+	public boolean hasPermissions(String username, int collabRoomId) {
+		return hasPermissions(new PermissionKey(username, collabRoomId, null));
+	}
+
+	/**
+	 * Cached collabRoomDao.hasPermissions(userId, collabRoomId, incidentMap), which
+	 * also grants access to the incident map room, with the userId resolved from
+	 * the username.
+	 */
+	public boolean hasPermissions(String username, int collabRoomId, String incidentMap) {
+		return hasPermissions(new PermissionKey(username, collabRoomId, incidentMap));
+	}
+
+	private boolean hasPermissions(PermissionKey key) {
+		if (key.username == null) {
+			return false;
+		}
+		try {
+			return permissionCache.get(key, permissionLoader);
+		} catch(RuntimeException e) {
+			throw e;
+		} catch(Exception e) {
+			// Interrupted while another request was loading the same decision
+			return false;
+		}
+	}
+
+	private static Long roleKey(int userId, int incidentId) {
+		return ((long) incidentId << 32) | (userId & 0xffffffffL);
 	}
 
 	public Incident getIncidentEntity(int incidentId) throws ICSDatastoreException {
-		Incident incident = null;
-		if (incidentCache.containsKey(incidentId)) {
-			incident = incidentCache.get(incidentId);
-		} else {
-			// We need to hit the database.
-			try {
-				Incident incidentEntity = incidentDao.getIncident(incidentId);
-				
-				incident = incidentEntity;
-				incidentCache.putIfAbsent(incidentId, incident);
-			} catch(DataAccessException e) {
-				throw new ICSDatastoreException(
-						"Cannot read Incident entity with id " + incidentId +
-						e.getMessage());
-			} catch(Exception e) {
-				throw new ICSDatastoreException("Unhandled exception reading Incident entity with id " + 
-						incidentId + ": " + e.getMessage());
-			}
+		try {
+			return incidentCache.get(incidentId, incidentLoader);
+		} catch(DataAccessException e) {
+			throw new ICSDatastoreException(
+					"Cannot read Incident entity with id " + incidentId +
+					e.getMessage());
+		} catch(Exception e) {
+			throw new ICSDatastoreException("Unhandled exception reading Incident entity with id " + 
+					incidentId + ": " + e.getMessage());
 		}
-		return incident;
 	}
 
 	public User getUserEntity(int userId) throws ICSDatastoreException {
-		User user = null;
-		if (userCache.containsKey(userId)) {
-			user = userCache.get(userId);
-		} else {
-			// We need to hit the database.
-			
-			try {
-				User userEntity = userDao.getUserById(userId);
-				
-				user = userEntity;
-				userCache.putIfAbsent(userId, user);
-				
-			} catch(DataAccessException e) {
-				throw new ICSDatastoreException("Cannot read User entity with id " + 
-						userId + ": " + e.getMessage());
-			} catch(Exception e) {
-				throw new ICSDatastoreException("Caught unhandled exception while trying to read User entity with id " + 
-						userId + ": " + e.getMessage());
-			}
+		try {
+			return userCache.get(userId, userLoader);
+		} catch(DataAccessException e) {
+			throw new ICSDatastoreException("Cannot read User entity with id " + 
+					userId + ": " + e.getMessage());
+		} catch(Exception e) {
+			throw new ICSDatastoreException("Caught unhandled exception while trying to read User entity with id " + 
+					userId + ": " + e.getMessage());
 		}
-		return user;
 	}
 
 	public User getUserEntityByUsername(String username) throws ICSDatastoreException {
-		User user = null;
-		for (User u : userCache.values()) {
-			if (u.getUsername().equals(username)) {
-				return u;
-			}
+		User user = getCachedUserByUsername(username);
+		if (user != null) {
+			return user;
 		}
 
 		user = userDao.getUser(username);
 		if (user != null) {
-			userCache.putIfAbsent(user.getUserId(), user);
+			userCache.put(user.getUserId(), user);
 		}
 		return user;
-	}		
+	}
 
-	public int getUserSessionId(int userId) throws ICSDatastoreException {
-		int userSessionId = -1;
-		if (userSessionIdCache.containsKey(userId)) {
-			userSessionId = userSessionIdCache.get(userId);
-		} else {
-			// We need to hit the database.			
-			try {
-
-				userSessionId = userSessDao.getUserSessionid(userId);
-				if (userSessionId < 0) {
-					// We need to create a User Session.
-					// TODO:refactor do we? If this is just a cache to get one if it exists, I don't think
-					//  we should assume one needs created?
-					//userSessionId = dbf.createUserSession(em, userId);
-					APILogger.getInstance().i("EntityCacheMgr", "No usersession found for userId: " + userId
-							+ ", TODO: is this a use case where one should be created?");
-				} else {
-					userSessionIdCache.putIfAbsent(userId, userSessionId);
-				}
+	/**
+	 * Resolves a username to its userId through the User cache, loading and
+	 * caching the User on a miss. Meant as a drop-in for UserDAOImpl.getUserId(username).
+	 * 
+	 * @param username Username, compared case-insensitively against cached Users
+	 * @return The userId, or whatever UserDAOImpl.getUserId returns for an unknown user
+	 */
+	public long getUserId(String username) {
+		if (username == null) {
+			return userDao.getUserId(username);
+		}
 
-			} catch(DataAccessException e) {
-				throw new ICSDatastoreException(
-						"Unable to find/create UserSession entry for user " + userId +
-						e.getMessage());
-			}
+		User user = null;
+		try {
+			user = getUserEntityByUsername(username);
+		} catch(Exception e) {
+			APILogger.getInstance().w(CNAME, "Unable to read User entity for username " +
+					username + ": " + e.getMessage());
+		}
+		if (user != null) {
+			return user.getUserId();
+		}
+		return userDao.getUserId(username);
+	}
+
+	private User getCachedUserByUsername(String username) {
+		String key = usernameKey(username);
+		if (key == null) {
+			return null;
+		}
+		Integer userId = usernameIndex.get(key);
+		if (userId == null) {
+			return null;
+		}
+		User user = userCache.getIfPresent(userId);
+		if (user == null || !key.equals(usernameKey(user.getUsername()))) {
+			return null;
+		}
+		return user;
+	}
+
+	private static String usernameKey(String username) {
+		return (username == null) ? null : username.toLowerCase(Locale.ENGLISH);
+	}
+
+	public int getUserSessionId(int userId) throws ICSDatastoreException {
+		try {
+			Integer userSessionId = userSessionIdCache.get(userId, userSessionIdLoader);
+			return (userSessionId == null) ? -1 : userSessionId;
+		} catch(DataAccessException e) {
+			throw new ICSDatastoreException(
+					"Unable to find/create UserSession entry for user " + userId +
+					e.getMessage());
+		} catch(Exception e) {
+			throw new ICSDatastoreException(
+					"Unhandled exception reading UserSession entry for user " + userId +
+					": " + e.getMessage());
 		}
-		return userSessionId;
 	}
 	
 	/**
@@ -273,56 +550,16 @@ public class EntityCacheMgr {
 	 */
 	public FormType getFormTypeByName(String formTypeName)
 			throws ICSDatastoreException, NullPointerException {
-		FormType ret = null;
 		if (formTypeName == null) {
 			throw new NullPointerException("formTypeName cannot be null");
 		}
-		formTypeName = formTypeName.toUpperCase();
-		if (formTypeCache.contains(formTypeName)) {
-			return formTypeCache.get(formTypeName);
-		}
-		try {
-
-			List<FormType> types = formDao.getFormTypes();
-			if (types != null && types.size() > 0) {
-				for (FormType f : types) {
-					formTypeCache.putIfAbsent(f.getFormTypeName(), f);
-				}
-			}
-			ret = formTypeCache.get(formTypeName);
-		} catch (DataAccessException e) {
-			throw new ICSDatastoreException(
-					"Data access exception trying to read FormType entities: " + e.getMessage());
-		} catch (Exception e) {
-			throw new ICSDatastoreException(
-					"Unhandled exception trying to read FormType entities: " + e.getMessage());
-		}
-		return ret;
+		return getFormTypeIndex().byName.get(formTypeName.toUpperCase());
 	}
 	
 	public Set<String> getFormTypeNames()
 			throws ICSDatastoreException {
-		if (formTypeCache.isEmpty()) {
-			try {
-				/*List<FormType> types = PhinicsDbFactory.getInstance().getPhinicsDbFacadeSingleton()
-						.getFormTypes();*/
-				List<FormType> types = formDao.getFormTypes();
-				
-				if (types != null && types.size() > 0) {
-					for (FormType f : types) {
-						formTypeCache.putIfAbsent(f.getFormTypeName(), f);
-					}
-				}
-			} catch (DataAccessException e) {
-				throw new ICSDatastoreException(
-						"Data access exception trying to read FormType entities: " + e.getMessage());
-			} catch (Exception e) {
-				throw new ICSDatastoreException(
-						"Unhandled exception trying to read FormType entities: " + e.getMessage());
-			}
-		}
-
-		return formTypeCache.keySet();
+		// Callers may modify the returned set, so hand out a copy.
+		return new LinkedHashSet<String>(getFormTypeIndex().byName.keySet());
 	}
 
 	/**
@@ -334,43 +571,31 @@ public class EntityCacheMgr {
 	 */
 	public FormType getFormTypeById(int formTypeId)
 			throws ICSDatastoreException {
-		FormType ret = null;
 		if (formTypeId < 0) {
 			throw new ICSDatastoreException("formTypeId cannot be less than zero");
 		}
-		
-		if (formTypeIdCache.contains(formTypeId)) {
-			return formTypeIdCache.get(formTypeId);
-		}
-		
-		try {
-
-			List<FormType> types = formDao.getFormTypes();
-			if (types != null && types.size() > 0) {
-				for (FormType f : types) {
-					formTypeIdCache.putIfAbsent(f.getFormTypeId(), f);
-				}
-			}
-			ret = formTypeIdCache.get(formTypeId);
-		} catch (DataAccessException e) {
-			throw new ICSDatastoreException(
-					"Data access exception trying to read FormType entities: " + e.getMessage());
-		} catch (Exception e) {
-			throw new ICSDatastoreException(
-					"Unhandled exception trying to read FormType entities: " + e.getMessage());
-		}
-		return ret;
+		return getFormTypeIndex().byId.get(formTypeId);
 	}
 
 	public List<FormType> getFormTypes() {
 		List<FormType> types = null;
 		try {
-			// TODO: could/should just cache these so it's not querying every time, plus once one of the get
-			// formtype by id or name has been called, we already have all the data in the two caches
-			types = formDao.getFormTypes();
+			types = new ArrayList<FormType>(getFormTypeIndex().types);
 		} catch(Exception e) {
 			
 		}
 		return types;
 	}
+
+	private FormTypeIndex getFormTypeIndex() throws ICSDatastoreException {
+		try {
+			return formTypeCache.get(FORM_TYPES_KEY, formTypeLoader);
+		} catch (DataAccessException e) {
+			throw new ICSDatastoreException(
+					"Data access exception trying to read FormType entities: " + e.getMessage());
+		} catch (Exception e) {
+			throw new ICSDatastoreException(
+					"Unhandled exception trying to read FormType entities: " + e.getMessage());
+		}
+	}
 }
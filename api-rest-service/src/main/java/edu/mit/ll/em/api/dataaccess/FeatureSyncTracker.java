@@ -0,0 +1,266 @@
+/**
+ * Copyright (c) 2008-2016, Massachusetts Institute of Technology (MIT)
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its contributors
+ * may be used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package edu.mit.ll.em.api.dataaccess;
+
+import java.security.SecureRandom;
+import java.util.concurrent.ConcurrentHashMap;
+
+import edu.mit.ll.em.api.util.APIConfig;
+
+/**
+ * Tracks an in-memory version per collaboration room, bumped whenever the features
+ * of the room change, and issues the opaque sync tokens handed out by the feature
+ * delta-sync endpoint.
+ * <p>
+ * A token records the node that issued it (a random epoch chosen at startup), the
+ * room, the room version and the time it was issued. When a token comes back with
+ * the current epoch and version, nothing has changed and the request is answered
+ * without querying the database. Otherwise the changes are read from the database
+ * by lastupdate, starting "...feature.sync.skewseconds" before the token was issued
+ * to allow for clock differences and commits still in flight.
+ * <p>
+ * Features shared into or out of a room keep their lastupdate, so they would not be
+ * found by the lastupdate query; share, copy and unshare mark the room replaced,
+ * and tokens issued before then get a full sync instead of a delta. The same holds
+ * for every room after {@link #resyncAll()}, and for tokens issued before this node
+ * started.
+ * <p>
+ * Changes made on other nodes reach this node through the collabroom feature
+ * topics, see {@link EntityCacheInvalidator}. As a safeguard against a missed
+ * notification the database is queried anyway once a token is older than
+ * "...feature.sync.maxageseconds".
+ */
+public class FeatureSyncTracker {
+
+	private static final String TOKEN_VERSION = "1";
+	private static final char TOKEN_SEPARATOR = '.';
+	private static final int RADIX = 36;
+
+	private final String epoch;
+
+	private final long skewMillis;
+	private final long maxAgeMillis;
+
+	private final ConcurrentHashMap<Integer, RoomState> rooms =
+			new ConcurrentHashMap<Integer, RoomState>();
+
+	// Tokens issued before this time get a full sync, whatever the room.
+	private volatile long resyncAllAt;
+
+	/** State of a single room. */
+	private static class RoomState {
+		private long version;
+		private long replacedAt;
+	}
+
+	/** A sync token, as issued to and returned by a client. */
+	public static class Token {
+		private final String epoch;
+		private final int collabRoomId;
+		private final long version;
+		private final long issued;
+
+		private Token(String epoch, int collabRoomId, long version, long issued) {
+			this.epoch = epoch;
+			this.collabRoomId = collabRoomId;
+			this.version = version;
+			this.issued = issued;
+		}
+
+		public int getCollabRoomId() {
+			return collabRoomId;
+		}
+
+		public long getIssued() {
+			return issued;
+		}
+
+		@Override
+		public String toString() {
+			return new StringBuilder(TOKEN_VERSION)
+				.append(TOKEN_SEPARATOR).append(epoch)
+				.append(TOKEN_SEPARATOR).append(Integer.toString(collabRoomId, RADIX))
+				.append(TOKEN_SEPARATOR).append(Long.toString(version, RADIX))
+				.append(TOKEN_SEPARATOR).append(Long.toString(issued, RADIX))
+				.toString();
+		}
+	}
+
+	private FeatureSyncTracker() {
+		this.epoch = Long.toString(new SecureRandom().nextLong() & Long.MAX_VALUE, RADIX);
+		this.skewMillis = 1000L * Math.max(0, APIConfig.getInstance().getConfiguration()
+				.getInt(APIConfig.FEATURE_SYNC_SKEW_SECONDS, 5));
+		this.maxAgeMillis = 1000L * Math.max(0, APIConfig.getInstance().getConfiguration()
+				.getInt(APIConfig.FEATURE_SYNC_MAXAGE_SECONDS, 300));
+		this.resyncAllAt = System.currentTimeMillis();
+	}
+
+	/**
+	 * Records a change to the features of a room.
+	 * 
+	 * @param collabRoomId
+	 */
+	public void featuresChanged(int collabRoomId) {
+		RoomState room = getRoom(collabRoomId);
+		synchronized (room) {
+			room.version++;
+		}
+	}
+
+	/**
+	 * Records a change to the features of a room that cannot be found by lastupdate,
+	 * so that outstanding tokens for the room get a full sync.
+	 * 
+	 * @param collabRoomId
+	 */
+	public void featuresReplaced(int collabRoomId) {
+		RoomState room = getRoom(collabRoomId);
+		synchronized (room) {
+			room.version++;
+			room.replacedAt = System.currentTimeMillis();
+		}
+	}
+
+	/**
+	 * Makes every outstanding token get a full sync, for use when change
+	 * notifications may have been missed.
+	 */
+	public void resyncAll() {
+		resyncAllAt = System.currentTimeMillis();
+	}
+
+	/**
+	 * Issues a token for the current state of a room. Call it before querying the
+	 * features of the room, so that changes made during the query are picked up by
+	 * the next sync.
+	 * 
+	 * @param collabRoomId
+	 * @return Token
+	 */
+	public Token issue(int collabRoomId) {
+		RoomState room = getRoom(collabRoomId);
+		synchronized (room) {
+			return new Token(epoch, collabRoomId, room.version, System.currentTimeMillis());
+		}
+	}
+
+	/**
+	 * Parses a token returned by a client.
+	 * 
+	 * @param value
+	 * @return Token, or null if the value is empty or not a token
+	 */
+	public Token parse(String value) {
+		if (value == null || value.isEmpty()) {
+			return null;
+		}
+		String[] parts = value.split("\\" + TOKEN_SEPARATOR);
+		if (parts.length != 5 || !TOKEN_VERSION.equals(parts[0]) || parts[1].isEmpty()) {
+			return null;
+		}
+		try {
+			return new Token(parts[1],
+					Integer.parseInt(parts[2], RADIX),
+					Long.parseLong(parts[3], RADIX),
+					Long.parseLong(parts[4], RADIX));
+		} catch (NumberFormatException e) {
+			return null;
+		}
+	}
+
+	/**
+	 * @param collabRoomId
+	 * @param token
+	 * @return true if nothing changed in the room since the token was issued
+	 */
+	public boolean isCurrent(int collabRoomId, Token token) {
+		if (token == null || token.collabRoomId != collabRoomId ||
+				!epoch.equals(token.epoch) ||
+				System.currentTimeMillis() - token.issued > maxAgeMillis) {
+			return false;
+		}
+		RoomState room = rooms.get(collabRoomId);
+		if (room == null) {
+			return token.version == 0 && token.issued >= resyncAllAt;
+		}
+		synchronized (room) {
+			return token.version == room.version && token.issued >= resyncAllAt &&
+					token.issued >= room.replacedAt;
+		}
+	}
+
+	/**
+	 * @param collabRoomId
+	 * @param token
+	 * @return true if the client has to replace its features with a full sync,
+	 * rather than apply the changes since the token was issued
+	 */
+	public boolean needsFullSync(int collabRoomId, Token token) {
+		if (token == null || token.collabRoomId != collabRoomId ||
+				token.issued < resyncAllAt || token.issued > System.currentTimeMillis()) {
+			return true;
+		}
+		RoomState room = rooms.get(collabRoomId);
+		if (room == null) {
+			return false;
+		}
+		synchronized (room) {
+			return token.issued < room.replacedAt;
+		}
+	}
+
+	/**
+	 * @param token
+	 * @return lastupdate from which to read the changes since the token was issued
+	 */
+	public long getWatermark(Token token) {
+		return Math.max(0, token.issued - skewMillis);
+	}
+
+	private RoomState getRoom(int collabRoomId) {
+		RoomState room = rooms.get(collabRoomId);
+		if (room == null) {
+			RoomState existing = rooms.putIfAbsent(collabRoomId, room = new RoomState());
+			if (existing != null) {
+				room = existing;
+			}
+		}
+		return room;
+	}
+
+	// Lazy-initialization Holder class idiom.
+	private static class Holder {
+		public static final FeatureSyncTracker instance = new FeatureSyncTracker();
+	}
+
+	public static FeatureSyncTracker getInstance() {
+		return Holder.instance;
+	}
+}
@@ -32,10 +32,20 @@ package edu.mit.ll.em.api.dataaccess;
 
 import java.io.IOException;
 import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
 import java.util.TimeZone;
 import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 
 import org.apache.commons.lang.StringUtils;
 import org.springframework.dao.DataAccessException;
@@ -46,6 +56,7 @@ import com.vividsolutions.jts.geom.GeometryFactory;
 import com.vividsolutions.jts.geom.PrecisionModel;
 
 import edu.mit.ll.em.api.entity.JSONPLIEntry;
+import edu.mit.ll.em.api.metrics.InstrumentedDao;
 import edu.mit.ll.em.api.rs.MDTOptionalParms;
 import edu.mit.ll.em.api.rs.MDTrack;
 import edu.mit.ll.em.api.rs.QueryConstraintHelper;
@@ -55,8 +66,6 @@ import edu.mit.ll.em.api.util.TimeUtil;
 import edu.mit.ll.nics.common.entity.Mdt;
 import edu.mit.ll.nics.common.entity.UserInfo;
 import edu.mit.ll.nics.common.entity.User;
-import edu.mit.ll.nics.common.rabbitmq.RabbitFactory;
-import edu.mit.ll.nics.common.rabbitmq.RabbitPubSubProducer;
 import edu.mit.ll.nics.common.rabbitmq.client.RabbitProducer;
 import edu.mit.ll.nics.nicsdao.impl.UserDAOImpl;
 
@@ -65,13 +74,10 @@ public class MDTrackDAO extends BaseDAO {
 	
 	private static final String CNAME = MDTrackDAO.class.getName();
 		
-	private static final UserDAOImpl userDao = new UserDAOImpl();
+	private static final UserDAOImpl userDao = InstrumentedDao.wrap(new UserDAOImpl());
 		
 	private static GeometryFactory geomFactory= new GeometryFactory(new PrecisionModel(), 4326);
 
-	// Rabbit producer
-	private RabbitPubSubProducer producer;
-
 	// MDT GML Properties
 	
 	private String nicsSchemaLocationURI;
@@ -89,6 +95,27 @@ public class MDTrackDAO extends BaseDAO {
 	private boolean validated;
 	private boolean valid;
 	
+	// Latest position of each device waiting for the next flush, see createMDTracks
+	private final ConcurrentHashMap<String, PendingTrack> pending =
+			new ConcurrentHashMap<String, PendingTrack>();
+	
+	private final long batchWindowMillis;
+	
+	private final int batchMaxFeatures;
+	
+	// Publishes the pending positions every batchWindowMillis, null if the window is 0
+	private final ScheduledExecutorService flusher;
+	
+	private static class PendingTrack {
+		private final long time;
+		private final JSONPLIEntry entry;
+		
+		private PendingTrack(long time, JSONPLIEntry entry) {
+			this.time = time;
+			this.entry = entry;
+		}
+	}
+	
 	// Lazy-initialization Holder class idiom.
 	private static class Holder {
 		public static MDTrackDAO instance = new MDTrackDAO();
@@ -103,6 +130,130 @@ public class MDTrackDAO extends BaseDAO {
 		String username = validateRabbitUsername();
 		String userpwd = validateRabbitUserpwd();
 		valid = validateMDTProperties();
+		
+		batchWindowMillis = APIConfig.getInstance().getConfiguration()
+				.getLong(APIConfig.MDT_BATCH_WINDOW_MILLIS, 1000);
+		batchMaxFeatures = Math.max(1, APIConfig.getInstance().getConfiguration()
+				.getInt(APIConfig.MDT_BATCH_MAXFEATURES, 500));
+		if (batchWindowMillis > 0) {
+			flusher = Executors.newSingleThreadScheduledExecutor(
+					new ThreadFactory() {
+						public Thread newThread(Runnable r) {
+							Thread t = new Thread(r, "MDTrackFlusher");
+							t.setDaemon(true);
+							return t;
+						}
+					});
+			flusher.scheduleWithFixedDelay(new Runnable() {
+				public void run() {
+					try {
+						flushMDTracks();
+					} catch (RuntimeException e) {
+						APILogger.getInstance().e(CNAME, "Unable to publish MDTs: " + e.getMessage());
+					}
+				}
+			}, batchWindowMillis, batchWindowMillis, TimeUnit.MILLISECONDS);
+		} else {
+			flusher = null;
+		}
+	}
+	
+	/**
+	 * Stops the flusher and publishes the positions still pending. Called by
+	 * Spring on undeploy, see cxf-rest-service.xml.
+	 */
+	public void shutdown() {
+		if (flusher != null) {
+			flusher.shutdown();
+			try {
+				flusher.awaitTermination(batchWindowMillis, TimeUnit.MILLISECONDS);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+		try {
+			flushMDTracks();
+		} catch (RuntimeException e) {
+			APILogger.getInstance().e(CNAME, "Unable to publish MDTs: " + e.getMessage());
+		}
+	}
+	
+	/**
+	 * Queues a batch of positions for publishing. Only the latest position of
+	 * each device is kept until the next flush, which publishes everything
+	 * pending as a single FeatureCollection every "...mdt.batch.windowmillis",
+	 * or immediately if the window is 0.
+	 * 
+	 * @param mdtracks
+	 * @return Number of positions accepted
+	 * @throws ICSDatastoreException If a user can't be read
+	 */
+	public int createMDTracks(Collection<MDTrack> mdtracks) throws ICSDatastoreException {
+		if (!valid) {
+			valid = validateMDTProperties();
+			if (!valid) {
+				APILogger.getInstance().w(CNAME, "Not publishing MDTs due to invalid MDT properties");
+				return 0;
+			}
+		}
+		
+		Map<Integer, User> users = new HashMap<Integer, User>();
+		int accepted = 0;
+		for (MDTrack mdtrack : mdtracks) {
+			if (mdtrack == null) {
+				continue;
+			}
+			User user = users.get(mdtrack.getUserId());
+			if (user == null && !users.containsKey(mdtrack.getUserId())) {
+				user = getUser(mdtrack.getUserId());
+				users.put(mdtrack.getUserId(), user);
+			}
+			if (user == null || user.getUsername() == null) {
+				APILogger.getInstance().w(CNAME, "Not publishing MDT for unknown userId " + mdtrack.getUserId());
+				continue;
+			}
+			
+			Mdt dbMDT = makePhiMdtFromMDTrack(mdtrack, user);
+			String key = user.getUsername() + "/" + mdtrack.getDeviceId();
+			PendingTrack track = new PendingTrack(dbMDT.getTime(), makeJSONPLIEntry(dbMDT));
+			PendingTrack current = pending.putIfAbsent(key, track);
+			// Positions may arrive out of order, keep the newest
+			while (current != null && current.time <= track.time &&
+					!pending.replace(key, current, track)) {
+				current = pending.putIfAbsent(key, track);
+			}
+			accepted++;
+		}
+		
+		if (batchWindowMillis <= 0) {
+			flushMDTracks();
+		}
+		return accepted;
+	}
+	
+	/**
+	 * Publishes the pending positions, in FeatureCollections of at most
+	 * "...mdt.batch.maxfeatures" features.
+	 */
+	void flushMDTracks() {
+		if (pending.isEmpty()) {
+			return;
+		}
+		List<JSONPLIEntry> entries = new ArrayList<JSONPLIEntry>(pending.size());
+		for (String key : pending.keySet()) {
+			PendingTrack track = pending.remove(key);
+			if (track != null) {
+				entries.add(track.entry);
+			}
+		}
+		for (int i = 0; i < entries.size(); i += batchMaxFeatures) {
+			List<JSONPLIEntry> chunk = entries.subList(i, Math.min(entries.size(), i + batchMaxFeatures));
+			try {
+				this.getRabbitProducer().produce(gmlTopic, JSONPLIEntry.toFeatureCollection(chunk, false));
+			} catch (IOException e) {
+				APILogger.getInstance().e(CNAME, "Unable to publish " + chunk.size() + " MDTs: " + e.getMessage());
+			}
+		}
 	}
 	
 	public MDTrack createMDTrack(MDTrack mdtrack) throws ICSDatastoreException {
@@ -177,10 +328,9 @@ public class MDTrackDAO extends BaseDAO {
 		if(position != null) {
 			//mdtPli.setCoordinates(position.x + "," + position.y);
 			mdtPli.setCoordinates(position.y + "," + position.x);
-			APILogger.getInstance().i(CNAME, "Got position from MDT: " + mdtPli.getCoordinates());
+			APILogger.getInstance().d(CNAME, "Got position from MDT: {}", mdtPli.getCoordinates());
 		} else {
-			APILogger.getInstance().i(CNAME, "Couldn't extract position from MDT: " + 
-					((phiMdt.getLocation() != null) ? phiMdt.getLocation().toString() : null));
+			APILogger.getInstance().i(CNAME, "Couldn't extract position from MDT: {}", phiMdt.getLocation());
 		}		
 					
 		mdtPli.setCourse(phiMdt.getCourse()+"");
@@ -360,18 +510,14 @@ public class MDTrackDAO extends BaseDAO {
 	 * This is going to the back-end.
 	 */
 	private Mdt makePhiMdtFromMDTrack(MDTrack mdtrack) throws ICSDatastoreException {
-		UserInfo phiUserInfo = null;
+		// TODO:refactor need username at the least for publishing of message, but need to factor out
+		// 	the use of PhiUserInfo entirely
+		return makePhiMdtFromMDTrack(mdtrack, getUser(mdtrack.getUserId()));
+	}
+	
+	private User getUser(int userId) throws ICSDatastoreException {
 		try {
-			// TODO:refactor need username at the least for publishing of message, but need to factor out
-			// 	the use of PhiUserInfo entirely
-			User user = userDao.getUserById(mdtrack.getUserId());
-			if(user != null) {
-				phiUserInfo = new UserInfo();
-				phiUserInfo.setUser(user);
-				phiUserInfo.setUserId(mdtrack.getUserId());
-			} else {
-				phiUserInfo = new UserInfo();
-			}
+			return userDao.getUserById(userId);
 			//phiUserInfo = dbi.readUserInfo(mdtrack.getUserId());
 		} catch (DataAccessException e) {
 			StringBuilder sb = new StringBuilder();
@@ -379,6 +525,14 @@ public class MDTrackDAO extends BaseDAO {
 				append(" : ").append(e.getMessage());
 			throw new ICSDatastoreException(sb.toString());
 		}
+	}
+	
+	private Mdt makePhiMdtFromMDTrack(MDTrack mdtrack, User user) {
+		UserInfo phiUserInfo = new UserInfo();
+		if(user != null) {
+			phiUserInfo.setUser(user);
+			phiUserInfo.setUserId(mdtrack.getUserId());
+		}
 		Mdt dbMDT = new Mdt();
 		dbMDT.setAccuracy(mdtrack.getAccuracy());
 		dbMDT.setCourse(mdtrack.getCourse());
@@ -541,15 +695,8 @@ public class MDTrackDAO extends BaseDAO {
 		return true;
 	}
 	
-	private RabbitPubSubProducer getRabbitProducer() throws IOException {
-		if (this.producer == null) {
-			this.producer = RabbitFactory.makeRabbitPubSubProducer(
-					APIConfig.getInstance().getConfiguration().getString(APIConfig.RABBIT_HOSTNAME_KEY),
-					APIConfig.getInstance().getConfiguration().getString(APIConfig.RABBIT_EXCHANGENAME_KEY),
-					APIConfig.getInstance().getConfiguration().getString(APIConfig.RABBIT_USERNAME_KEY),
-					APIConfig.getInstance().getConfiguration().getString(APIConfig.RABBIT_USERPWD_KEY));
-		}
-		return producer;
+	private RabbitPublisher getRabbitProducer() {
+		return RabbitPublisher.getInstance();
 	}
 }
 
@@ -34,6 +34,7 @@ import java.util.Map;
 
 import edu.mit.ll.em.api.msgbus.MsgBusSubscriptionException;
 import edu.mit.ll.em.api.msgbus.MsgBusSubscriptionMgr;
+import edu.mit.ll.em.api.msgbus.SubscriptionSession;
 import edu.mit.ll.em.api.rs.MsgEnvelope;
 
 
@@ -59,6 +60,14 @@ public class MessageBusAccess {
 		return MsgBusSubscriptionMgr.getInstance().getFromSubscription(userId);
 	}
 
+	public boolean awaitMessages(long userId, SubscriptionSession.Listener listener) {
+		return MsgBusSubscriptionMgr.getInstance().awaitSubscription(userId, listener);
+	}
+
+	public void cancelAwait(long userId, SubscriptionSession.Listener listener) {
+		MsgBusSubscriptionMgr.getInstance().cancelAwait(userId, listener);
+	}
+
 	public void postMessages(long userId, Collection<MsgEnvelope> msgs) throws MsgBusSubscriptionException {
 		MsgBusSubscriptionMgr.getInstance().postToSubscription(userId, msgs);		
 	}
@@ -0,0 +1,409 @@
+/**
+ * Copyright (c) 2008-2016, Massachusetts Institute of Technology (MIT)
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its contributors
+ * may be used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package edu.mit.ll.em.api.dataaccess;
+
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.rabbitmq.client.Channel;
+import com.rabbitmq.client.ConfirmListener;
+import com.rabbitmq.client.Connection;
+import com.rabbitmq.client.ConnectionFactory;
+
+import edu.mit.ll.em.api.util.APIConfig;
+import edu.mit.ll.em.api.util.APILogger;
+
+/**
+ * Publishes notifications to the API exchange on behalf of every service.
+ * <p>
+ * {@link #produce(String, String)} only places the message in a bounded, in-memory
+ * outbox and returns; it never waits on the broker. A fixed set of publisher
+ * threads, each owning one channel over a small pool of connections, drains the
+ * outbox. Channels run in confirm mode: a message stays outstanding until the
+ * broker acks it, and is put back in the outbox if nacked or if its channel is
+ * lost. Each channel has a cap on outstanding messages, so a slow broker fills
+ * the outbox, and produce fails fast once it is full, rather than holding
+ * request threads.
+ * <p>
+ * Messages are assigned to a publisher thread by topic, so messages for one topic
+ * keep their order unless they have to be retried.
+ */
+public class RabbitPublisher {
+
+	private static final String CNAME = RabbitPublisher.class.getName();
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	private static final long RECONNECT_DELAY_MILLIS = 5 * 1000;
+
+	private final String host;
+	private final String username;
+	private final String userpwd;
+	private final String exchange;
+	private final long offerTimeoutMillis;
+	private final int maxUnconfirmed;
+	private final int maxAttempts;
+
+	// False without a configured host, nothing is published
+	private final boolean enabled;
+
+	private final Connection[] connections;
+	private final List<Worker> workers = new ArrayList<Worker>();
+
+	private volatile boolean running = true;
+
+	private final AtomicLong published = new AtomicLong();
+	private final AtomicLong confirmed = new AtomicLong();
+	private final AtomicLong retried = new AtomicLong();
+	private final AtomicLong rejected = new AtomicLong();
+	private final AtomicLong failed = new AtomicLong();
+
+	private static class Message {
+		final String topic;
+		final byte[] body;
+		int attempts;
+
+		Message(String topic, byte[] body) {
+			this.topic = topic;
+			this.body = body;
+		}
+	}
+
+	// Lazy-initialization Holder class idiom.
+	private static class Holder {
+		public static RabbitPublisher instance = new RabbitPublisher();
+	}
+
+	public static RabbitPublisher getInstance() {
+		return Holder.instance;
+	}
+
+	private RabbitPublisher() {
+		host = APIConfig.getInstance().getConfiguration()
+				.getString(APIConfig.RABBIT_HOSTNAME_KEY);
+		username = APIConfig.getInstance().getConfiguration()
+				.getString(APIConfig.RABBIT_USERNAME_KEY, "guest");
+		userpwd = APIConfig.getInstance().getConfiguration()
+				.getString(APIConfig.RABBIT_USERPWD_KEY, "guest");
+		exchange = APIConfig.getInstance().getConfiguration()
+				.getString(APIConfig.RABBIT_EXCHANGENAME_KEY, "amq.topic");
+
+		int connectionCount = Math.max(1, APIConfig.getInstance().getConfiguration()
+				.getInt(APIConfig.RABBIT_PUBLISHER_CONNECTIONS, 2));
+		int channelCount = Math.max(1, APIConfig.getInstance().getConfiguration()
+				.getInt(APIConfig.RABBIT_PUBLISHER_CHANNELS, 4));
+		int outboxSize = Math.max(channelCount, APIConfig.getInstance().getConfiguration()
+				.getInt(APIConfig.RABBIT_PUBLISHER_OUTBOX_SIZE, 10000));
+		offerTimeoutMillis = Math.max(0, APIConfig.getInstance().getConfiguration()
+				.getLong(APIConfig.RABBIT_PUBLISHER_OFFER_TIMEOUT_MS, 100));
+		maxUnconfirmed = Math.max(1, APIConfig.getInstance().getConfiguration()
+				.getInt(APIConfig.RABBIT_PUBLISHER_MAX_UNCONFIRMED, 500));
+		maxAttempts = Math.max(1, APIConfig.getInstance().getConfiguration()
+				.getInt(APIConfig.RABBIT_PUBLISHER_MAX_ATTEMPTS, 3));
+
+		enabled = (host != null && !host.isEmpty());
+		if (!enabled) {
+			APILogger.getInstance().e(CNAME, "Undefined configuration key " +
+					APIConfig.RABBIT_HOSTNAME_KEY + ". Notifications will not be published. " +
+					"Add or fix entry in file " + APIConfig.API_PROPS_FILE);
+		}
+
+		connections = new Connection[connectionCount];
+		for (int i = 0; enabled && i < channelCount; i++) {
+			Worker worker = new Worker(i % connectionCount, outboxSize / channelCount);
+			workers.add(worker);
+			Thread t = new Thread(worker, "RabbitPublisher-" + i);
+			t.setDaemon(true);
+			t.start();
+		}
+	}
+
+	/**
+	 * Queues a message for publishing on the exchange.
+	 * 
+	 * @param topic Routing key
+	 * @param message Message body
+	 * @throws IOException If the outbox is still full after the configured wait,
+	 *   no host is configured, or the publisher has been shut down
+	 */
+	public void produce(String topic, String message) throws IOException {
+		if (!enabled) {
+			throw new IOException("No " + APIConfig.RABBIT_HOSTNAME_KEY +
+					" configured, dropping message on topic " + topic);
+		}
+		if (!running) {
+			throw new IOException("Publisher is shut down, dropping message on topic " + topic);
+		}
+		Message m = new Message(topic, message.getBytes(UTF8));
+		Worker worker = workers.get((topic.hashCode() & Integer.MAX_VALUE) % workers.size());
+		boolean queued;
+		try {
+			queued = worker.outbox.offer(m, offerTimeoutMillis, TimeUnit.MILLISECONDS);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			queued = false;
+		}
+		if (!queued) {
+			rejected.incrementAndGet();
+			throw new IOException("Publisher outbox is full, dropping message on topic " + topic);
+		}
+	}
+
+	/**
+	 * Stops the publisher threads and closes the connections. Messages still in
+	 * the outbox are discarded.
+	 */
+	public void shutdown() {
+		running = false;
+		for (Worker worker : workers) {
+			worker.stop();
+		}
+		synchronized (connections) {
+			for (int i = 0; i < connections.length; i++) {
+				closeQuietly(connections[i]);
+				connections[i] = null;
+			}
+		}
+	}
+
+	public int getOutboxDepth() {
+		int depth = 0;
+		for (Worker worker : workers) {
+			depth += worker.outbox.size();
+		}
+		return depth;
+	}
+
+	public int getUnconfirmedCount() {
+		int count = 0;
+		for (Worker worker : workers) {
+			count += worker.unconfirmed.size();
+		}
+		return count;
+	}
+
+	public long getPublishedCount() {
+		return published.get();
+	}
+
+	public long getConfirmedCount() {
+		return confirmed.get();
+	}
+
+	public long getRetriedCount() {
+		return retried.get();
+	}
+
+	public long getRejectedCount() {
+		return rejected.get();
+	}
+
+	public long getFailedCount() {
+		return failed.get();
+	}
+
+	private Connection getConnection(int index) throws IOException {
+		synchronized (connections) {
+			Connection c = connections[index];
+			if (c == null || !c.isOpen()) {
+				closeQuietly(c);
+				ConnectionFactory factory = new ConnectionFactory();
+				factory.setHost(host);
+				factory.setUsername(username);
+				factory.setPassword(userpwd);
+				c = factory.newConnection();
+				connections[index] = c;
+			}
+			return c;
+		}
+	}
+
+	private static void closeQuietly(Connection c) {
+		if (c != null) {
+			try {
+				c.close();
+			} catch (Exception e) {
+				// Already closed.
+			}
+		}
+	}
+
+	/**
+	 * Owns one confirm-mode channel and publishes the messages of its outbox.
+	 */
+	private class Worker implements Runnable, ConfirmListener {
+
+		final BlockingQueue<Message> outbox;
+		final NavigableMap<Long, Message> unconfirmed = new ConcurrentSkipListMap<Long, Message>();
+		final Semaphore permits = new Semaphore(maxUnconfirmed);
+		final int connectionIndex;
+
+		private volatile Channel channel;
+		private volatile Thread thread;
+
+		Worker(int connectionIndex, int outboxSize) {
+			this.connectionIndex = connectionIndex;
+			this.outbox = new ArrayBlockingQueue<Message>(Math.max(1, outboxSize));
+		}
+
+		public void run() {
+			thread = Thread.currentThread();
+			while (running) {
+				Message m = null;
+				try {
+					m = outbox.poll(1, TimeUnit.SECONDS);
+					if (m == null) {
+						continue;
+					}
+					permits.acquire();
+					Channel ch = getChannel();
+					Message outstanding = m;
+					unconfirmed.put(ch.getNextPublishSeqNo(), outstanding);
+					// From here on resetChannel() requeues it if publishing fails.
+					m = null;
+					ch.basicPublish(exchange, outstanding.topic, null, outstanding.body);
+					published.incrementAndGet();
+				} catch (InterruptedException e) {
+					break;
+				} catch (Exception e) {
+					if (!running) {
+						break;
+					}
+					APILogger.getInstance().e(CNAME, "Unable to publish to the message bus, will retry: " +
+							e.getMessage());
+					if (m != null) {
+						permits.release();
+						retry(m);
+					}
+					resetChannel();
+					try {
+						Thread.sleep(RECONNECT_DELAY_MILLIS);
+					} catch (InterruptedException ie) {
+						break;
+					}
+				}
+			}
+		}
+
+		void stop() {
+			Thread t = thread;
+			if (t != null) {
+				t.interrupt();
+			}
+		}
+
+		private Channel getChannel() throws IOException {
+			Channel ch = channel;
+			if (ch == null || !ch.isOpen()) {
+				resetChannel();
+				ch = getConnection(connectionIndex).createChannel();
+				ch.confirmSelect();
+				ch.setConfirmListener(this);
+				channel = ch;
+			}
+			return ch;
+		}
+
+		/**
+		 * Drops the current channel. Whatever it had not confirmed is queued again,
+		 * since the broker may never have received it.
+		 */
+		private void resetChannel() {
+			Channel ch = channel;
+			channel = null;
+			if (ch != null) {
+				try {
+					ch.close();
+				} catch (Exception e) {
+					// Already closed.
+				}
+			}
+			settle(Long.MAX_VALUE, true, true);
+		}
+
+		public void handleAck(long deliveryTag, boolean multiple) {
+			confirmed.addAndGet(settle(deliveryTag, multiple, false));
+		}
+
+		public void handleNack(long deliveryTag, boolean multiple) {
+			settle(deliveryTag, multiple, true);
+		}
+
+		/**
+		 * Removes the messages covered by a confirm from the outstanding set.
+		 * 
+		 * @return The number of messages settled
+		 */
+		private int settle(long deliveryTag, boolean multiple, boolean requeue) {
+			List<Message> settled = new ArrayList<Message>();
+			if (multiple) {
+				Map<Long, Message> head = unconfirmed.headMap(deliveryTag, true);
+				for (Long seqNo : new ArrayList<Long>(head.keySet())) {
+					Message m = unconfirmed.remove(seqNo);
+					if (m != null) {
+						settled.add(m);
+					}
+				}
+			} else {
+				Message m = unconfirmed.remove(deliveryTag);
+				if (m != null) {
+					settled.add(m);
+				}
+			}
+			permits.release(settled.size());
+			if (requeue) {
+				for (Message m : settled) {
+					retry(m);
+				}
+			}
+			return settled.size();
+		}
+
+		private void retry(Message m) {
+			if (++m.attempts >= maxAttempts || !outbox.offer(m)) {
+				failed.incrementAndGet();
+				APILogger.getInstance().e(CNAME, "Giving up publishing message on topic " + m.topic +
+						" after " + m.attempts + " attempt(s)");
+			} else {
+				retried.incrementAndGet();
+			}
+		}
+	}
+}
@@ -39,6 +39,7 @@ import java.util.Set;
 
 import org.springframework.dao.DataAccessException;
 
+import edu.mit.ll.em.api.metrics.InstrumentedDao;
 import edu.mit.ll.em.api.rs.Report;
 import edu.mit.ll.em.api.rs.impl.TopicBuilder;
 import edu.mit.ll.em.api.util.APIConfig;
@@ -60,10 +61,10 @@ public class ReportDAO extends BaseDAO {
 
 	private static final String CNAME = ReportDAO.class.getName();
 	
-	private static UserDAOImpl userDao = new UserDAOImpl();
-	private static IncidentDAOImpl incidentDao = new IncidentDAOImpl();
-	private static UserSessionDAOImpl userSessDao = new UserSessionDAOImpl();
-	private static FormDAOImpl formDao = new FormDAOImpl();
+	private static UserDAOImpl userDao = InstrumentedDao.wrap(new UserDAOImpl());
+	private static IncidentDAOImpl incidentDao = InstrumentedDao.wrap(new IncidentDAOImpl());
+	private static UserSessionDAOImpl userSessDao = InstrumentedDao.wrap(new UserSessionDAOImpl());
+	private static FormDAOImpl formDao = InstrumentedDao.wrap(new FormDAOImpl());
 	
 	// Rabbit producer
 	private RabbitProducer producer;
@@ -290,7 +291,7 @@ public class ReportDAO extends BaseDAO {
 		try {
 			//seqnum = (BigInteger) em
 				//	.createNativeQuery("select last_value from form_seq").getSingleResult();
-			FormDAOImpl formDao = new FormDAOImpl();
+			FormDAOImpl formDao = InstrumentedDao.wrap(new FormDAOImpl());
 			seqnum = formDao.getNextFormId();
 			
 		} catch(Exception e) {
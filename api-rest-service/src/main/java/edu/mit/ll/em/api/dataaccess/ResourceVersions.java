@@ -0,0 +1,162 @@
+/**
+ * Copyright (c) 2008-2016, Massachusetts Institute of Technology (MIT)
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its contributors
+ * may be used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package edu.mit.ll.em.api.dataaccess;
+
+import java.io.IOException;
+import java.security.SecureRandom;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import edu.mit.ll.em.api.util.APIConfig;
+import edu.mit.ll.em.api.util.APILogger;
+
+/**
+ * Keeps an in-memory version per named resource (a table, or a group of tables
+ * read together), bumped whenever the resource is changed, from which the
+ * entity tags of the resource's GET responses are made. See
+ * {@link edu.mit.ll.em.api.rs.Versioned}.
+ * <p>
+ * A change made on this node is published on the exchange, so every node bumps
+ * its version of the resource, see {@link EntityCacheInvalidator}. Entity tags
+ * also carry the node's epoch, chosen at startup, and the current
+ * "...etag.maxageseconds" period, so a change made directly in the database is
+ * picked up at the next period at the latest.
+ */
+public class ResourceVersions {
+
+	private static final String CNAME = ResourceVersions.class.getName();
+
+	public static final String TOPIC_PREFIX = "iweb.NICS.emapi.version.";
+
+	public static final String INCIDENTS = "incidents";
+	public static final String ORGANIZATION_TYPES = "orgtypes";
+	public static final String REPORT_TYPES = "reporttypes";
+	public static final String DATALAYERS = "datalayers";
+	public static final String DATASOURCES = "datasources";
+	public static final String FOLDERS = "folders";
+	public static final String SYSTEM_ROLES = "systemroles";
+
+	private static final int RADIX = 36;
+
+	private final String epoch;
+
+	private final long periodMillis;
+
+	private final ConcurrentHashMap<String, AtomicLong> versions =
+			new ConcurrentHashMap<String, AtomicLong>();
+
+	// Added to every version, bumped by changedAll
+	private final AtomicLong generation = new AtomicLong();
+
+	private ResourceVersions() {
+		this.epoch = Long.toString(new SecureRandom().nextLong() & Long.MAX_VALUE, RADIX);
+		this.periodMillis = 1000L * Math.max(1, APIConfig.getInstance().getConfiguration()
+				.getInt(APIConfig.ETAG_MAXAGE_SECONDS, 300));
+	}
+
+	/**
+	 * @param name
+	 * @return the current version of the resource
+	 */
+	public long getVersion(String name) {
+		AtomicLong version = versions.get(name);
+		return generation.get() + (version == null ? 0 : version.get());
+	}
+
+	/**
+	 * Records a change to the resources made on this node, and tells the other
+	 * nodes about it.
+	 * 
+	 * @param names
+	 */
+	public void changed(String... names) {
+		for (String name : names) {
+			remoteChanged(name);
+			try {
+				RabbitPublisher.getInstance().produce(TOPIC_PREFIX + name, epoch);
+			} catch (IOException e) {
+				APILogger.getInstance().w(CNAME, "Unable to publish change of {}: {}", name, e.getMessage());
+			}
+		}
+	}
+
+	/**
+	 * Records a change to a resource made on another node.
+	 * 
+	 * @param name
+	 */
+	public void remoteChanged(String name) {
+		AtomicLong version = versions.get(name);
+		if (version == null) {
+			AtomicLong existing = versions.putIfAbsent(name, version = new AtomicLong());
+			if (existing != null) {
+				version = existing;
+			}
+		}
+		version.incrementAndGet();
+	}
+
+	/**
+	 * Changes the version of every resource, for use when change notifications
+	 * may have been missed.
+	 */
+	public void changedAll() {
+		generation.incrementAndGet();
+	}
+
+	/**
+	 * Makes the opaque value of an entity tag for the current versions of the
+	 * resources.
+	 * 
+	 * @param names Resources the response is read from
+	 * @param variant Anything else the response depends on, such as the user, or null
+	 * @return entity tag value
+	 */
+	public String getETag(String[] names, String variant) {
+		StringBuilder tag = new StringBuilder(epoch);
+		for (String name : names) {
+			tag.append('.').append(Long.toString(getVersion(name), RADIX));
+		}
+		tag.append('.').append(Long.toString(System.currentTimeMillis() / periodMillis, RADIX));
+		if (variant != null) {
+			tag.append('.').append(Integer.toString(variant.hashCode() & Integer.MAX_VALUE, RADIX));
+		}
+		return tag.toString();
+	}
+
+	// Lazy-initialization Holder class idiom.
+	private static class Holder {
+		public static final ResourceVersions instance = new ResourceVersions();
+	}
+
+	public static ResourceVersions getInstance() {
+		return Holder.instance;
+	}
+}
@@ -0,0 +1,162 @@
+/**
+ * Copyright (c) 2008-2016, Massachusetts Institute of Technology (MIT)
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its contributors
+ * may be used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package edu.mit.ll.em.api.dataaccess;
+
+import java.io.IOException;
+import java.math.BigInteger;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+import edu.mit.ll.em.api.util.APIConfig;
+import edu.mit.ll.em.api.util.APILogger;
+
+/**
+ * Identities the SSO server resolved SSO tokens to, so a client sending the same
+ * token on every request is only looked up once per "...cache.ssotoken.ttlseconds".
+ * Tokens the server rejected are remembered for "...cache.ssotoken.negativettlseconds".
+ * Entries are keyed by a SHA-256 hash of the token, the token itself is never held.
+ * <p>
+ * The SSO server is not asked when a session ends, so the TTL should stay below its
+ * session idle timeout. Tokens destroyed through the API are dropped on every node,
+ * see {@link #revoke(String)}.
+ */
+public class SSOTokenCache {
+
+	private static final String CNAME = SSOTokenCache.class.getName();
+
+	public static final String REVOKED_TOPIC = "iweb.NICS.emapi.ssotoken.revoked";
+
+	private static final String DIGEST_ALGORITHM = "SHA-256";
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	/** Asks the SSO server for the identity of a token. */
+	public interface Resolver {
+		/**
+		 * @return the uid of the token's user, or null if the token is not valid
+		 * @throws Exception if the SSO server could not be asked; nothing is cached
+		 */
+		String resolve(String token) throws Exception;
+	}
+
+	private final EntityCache<String, String> identities;
+
+	// Value is unused, EntityCache does not hold nulls
+	private final EntityCache<String, Boolean> invalidTokens;
+
+	private SSOTokenCache() {
+		int maxSize = Math.max(1, APIConfig.getInstance().getConfiguration()
+				.getInt(APIConfig.CACHE_SSOTOKEN_MAXSIZE, 10000));
+		long ttlMillis = 1000L * APIConfig.getInstance().getConfiguration()
+				.getInt(APIConfig.CACHE_SSOTOKEN_TTLSECONDS, 60);
+		long negativeTtlMillis = 1000L * APIConfig.getInstance().getConfiguration()
+				.getInt(APIConfig.CACHE_SSOTOKEN_NEGATIVE_TTLSECONDS, 10);
+		this.identities = new EntityCache<String, String>("ssotoken", maxSize, ttlMillis, 0);
+		this.invalidTokens = new EntityCache<String, Boolean>("ssotoken-invalid", maxSize, negativeTtlMillis, 0);
+	}
+
+	/**
+	 * Returns the uid of the token's user, asking the resolver on a miss. Only one
+	 * request per token goes to the SSO server at a time, concurrent callers with
+	 * the same token share its answer.
+	 *
+	 * @return the uid, or null if the token is not valid
+	 * @throws Exception whatever the resolver threw
+	 */
+	public String getUid(final String token, final Resolver resolver) throws Exception {
+		final String key = hash(token);
+		if (invalidTokens.getIfPresent(key) != null) {
+			return null;
+		}
+		return identities.get(key, new EntityCache.Loader<String, String>() {
+			public String load(String k) throws Exception {
+				String uid = resolver.resolve(token);
+				if (uid == null) {
+					invalidTokens.put(k, Boolean.TRUE);
+				}
+				return uid;
+			}
+		});
+	}
+
+	/**
+	 * Forgets a token, here and on the other nodes.
+	 */
+	public void revoke(String token) {
+		String key = hash(token);
+		remoteRevoked(key);
+		try {
+			RabbitPublisher.getInstance().produce(REVOKED_TOPIC, key);
+		} catch (IOException e) {
+			APILogger.getInstance().w(CNAME, "Unable to publish token revocation: " + e.getMessage());
+		}
+	}
+
+	/**
+	 * Forgets a token revoked on another node.
+	 * @param key Hash of the token, as published on {@link #REVOKED_TOPIC}
+	 */
+	public void remoteRevoked(String key) {
+		identities.invalidate(key);
+		invalidTokens.invalidate(key);
+	}
+
+	public void invalidateAll() {
+		identities.invalidateAll();
+		invalidTokens.invalidateAll();
+	}
+
+	public EntityCache<String, String> getCache() {
+		return identities;
+	}
+
+	public EntityCache<String, Boolean> getInvalidCache() {
+		return invalidTokens;
+	}
+
+	private static String hash(String token) {
+		try {
+			MessageDigest md = MessageDigest.getInstance(DIGEST_ALGORITHM);
+			return new BigInteger(1, md.digest(token.getBytes(UTF8))).toString(16);
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(DIGEST_ALGORITHM + " digest not available", e);
+		}
+	}
+
+	// Lazy-initialization Holder class idiom.
+	private static class Holder {
+		public static final SSOTokenCache instance = new SSOTokenCache();
+	}
+
+	public static SSOTokenCache getInstance() {
+		return Holder.instance;
+	}
+}
@@ -30,7 +30,9 @@
 package edu.mit.ll.em.api.dataaccess;
 
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 
 import org.geotools.data.DataStore;
@@ -38,11 +40,14 @@ import org.geotools.data.DataStoreFinder;
 import org.geotools.data.DefaultTransaction;
 import org.geotools.data.Query;
 import org.geotools.data.Transaction;
+import org.geotools.data.collection.ListFeatureCollection;
 import org.geotools.data.simple.SimpleFeatureCollection;
+import org.geotools.data.simple.SimpleFeatureIterator;
 import org.geotools.data.simple.SimpleFeatureSource;
 import org.geotools.data.simple.SimpleFeatureStore;
 import org.geotools.feature.simple.SimpleFeatureTypeBuilder;
 import org.geotools.referencing.CRS;
+import org.opengis.feature.simple.SimpleFeature;
 import org.opengis.feature.simple.SimpleFeatureType;
 import org.opengis.referencing.FactoryException;
 
@@ -58,6 +63,17 @@ public class ShapefileDAO extends BaseDAO {
 		return Holder.instance;
 	}
 
+	/** Number of features added per call to the feature store */
+	private static final int BATCH_SIZE = 1000;
+
+	/**
+	 * Notified as features are added to the new table. Calls happen within the
+	 * transaction, so a failure afterwards still rolls back every feature.
+	 */
+	public interface ProgressListener {
+		void featuresWritten(int count);
+	}
+
 	private DataStore lazyDatastore;
 
 	ShapefileDAO() {
@@ -74,6 +90,11 @@ public class ShapefileDAO extends BaseDAO {
 	}
 
 	public void insertFeatures(String tableName, SimpleFeatureSource featureSource) throws IOException, FactoryException {
+		insertFeatures(tableName, featureSource, null);
+	}
+
+	public void insertFeatures(String tableName, SimpleFeatureSource featureSource, ProgressListener listener)
+			throws IOException, FactoryException {
 		Query query = new Query();
 		query.setCoordinateSystemReproject(CRS.decode("EPSG:3857"));
 		SimpleFeatureCollection featcollection = featureSource.getFeatures(query);
@@ -89,13 +110,27 @@ public class ShapefileDAO extends BaseDAO {
 		
 		Transaction t = new DefaultTransaction("add");
 		featStore.setTransaction(t);
+		SimpleFeatureIterator features = featcollection.features();
 		try {
-			featStore.addFeatures(featcollection);
+			List<SimpleFeature> batch = new ArrayList<SimpleFeature>(BATCH_SIZE);
+			int written = 0;
+			while (features.hasNext()) {
+				batch.add(features.next());
+				if (batch.size() == BATCH_SIZE || !features.hasNext()) {
+					featStore.addFeatures(new ListFeatureCollection(featcollection.getSchema(), batch));
+					written += batch.size();
+					batch = new ArrayList<SimpleFeature>(BATCH_SIZE);
+					if (listener != null) {
+						listener.featuresWritten(written);
+					}
+				}
+			}
 			t.commit();
 		} catch (Exception e) {
 			t.rollback();
 			throw e;
 		} finally {
+			features.close();
 			t.close();
 		}
 	}
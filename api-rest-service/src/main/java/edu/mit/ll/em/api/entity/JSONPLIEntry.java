@@ -29,6 +29,7 @@
  */
 package edu.mit.ll.em.api.entity;
 
+import java.util.Collection;
 import java.util.Iterator;
 
 import org.apache.log4j.Logger;
@@ -101,6 +102,62 @@ public class JSONPLIEntry {
 	 * @return
 	 */
 	public String toGML(String includeFields, boolean format) {
+		StringBuilder stringBuilder = new StringBuilder();
+		appendCollectionStart(stringBuilder, format);
+		appendFeatureMember(stringBuilder, format);
+		appendCollectionEnd(stringBuilder, format);
+
+        LOG.info("\nGML: \n" + stringBuilder.toString() + "\n");
+
+		return stringBuilder.toString();
+	}
+
+	/**
+	 * Converts a number of entries to a single FeatureCollection, with one
+	 * featureMember per entry
+	 * 
+	 * @param entries
+	 * @param format Set to true to enable formatting
+	 * 
+	 * @return
+	 */
+	public static String toFeatureCollection(Collection<JSONPLIEntry> entries, boolean format) {
+		StringBuilder stringBuilder = new StringBuilder(1024 * (entries.size() + 1));
+		appendCollectionStart(stringBuilder, format);
+		for (JSONPLIEntry entry : entries) {
+			entry.appendFeatureMember(stringBuilder, format);
+		}
+		appendCollectionEnd(stringBuilder, format);
+
+		if (LOG.isDebugEnabled()) {
+			LOG.debug("\nGML (" + entries.size() + " features): \n" + stringBuilder.toString() + "\n");
+		}
+
+		return stringBuilder.toString();
+	}
+
+	private static void appendCollectionStart(StringBuilder stringBuilder, boolean format) {
+		final String BR = format ? "\n" : "";
+
+        stringBuilder.append("<?xml version=\"1.0\" encoding=\"UTF-8\"?>" + BR);
+        stringBuilder.append("<wfs:FeatureCollection xsi:schemaLocation=\"");
+        stringBuilder.append(nicsSchemaLocationURI.replaceAll("&", "&amp;") + " ");
+        stringBuilder.append(wfsServiceURI.replaceAll("&", "&amp;") + " http://www.opengis.net/wfs  ");
+        stringBuilder.append(wfsSchemasURI + "\" ");
+        stringBuilder.append("xmlns:gml=\"http://www.opengis.net/gml\" xmlns:xsi=\"http://www.w3.org/2001/XMLSchema-instance\" ");
+        stringBuilder.append("xmlns:NICS=\"" + nicsSchemaLocationURI + "\" xmlns:wfs=\"http://www.opengis.net/wfs\">");
+        LOG.debug("amp== "+wfsServiceURI);
+	}
+
+	private static void appendCollectionEnd(StringBuilder stringBuilder, boolean format) {
+		final String BR = format ? "\n" : "";
+		final String ltc = "</";
+		final String gtc = ">" + BR;
+
+        stringBuilder.append(ltc + "wfs:FeatureCollection" + gtc);
+	}
+
+	private void appendFeatureMember(StringBuilder stringBuilder, boolean format) {
 		final String TAB = format ? "\t" : "";
 		final String BR = format ? "\n" : "";
 
@@ -114,16 +171,6 @@ public class JSONPLIEntry {
         final String bc = "&lt;/b&gt;";
         final String br = "&lt;br/&gt;";
 
-		StringBuilder stringBuilder = new StringBuilder();
-        stringBuilder.append("<?xml version=\"1.0\" encoding=\"UTF-8\"?>" + BR);
-        stringBuilder.append("<wfs:FeatureCollection xsi:schemaLocation=\"");
-        stringBuilder.append(nicsSchemaLocationURI.replaceAll("&", "&amp;") + " ");
-        stringBuilder.append(wfsServiceURI.replaceAll("&", "&amp;") + " http://www.opengis.net/wfs  ");
-        stringBuilder.append(wfsSchemasURI + "\" ");
-        stringBuilder.append("xmlns:gml=\"http://www.opengis.net/gml\" xmlns:xsi=\"http://www.w3.org/2001/XMLSchema-instance\" ");
-        stringBuilder.append("xmlns:NICS=\"" + nicsSchemaLocationURI + "\" xmlns:wfs=\"http://www.opengis.net/wfs\">");
-        LOG.debug("amp== "+wfsServiceURI);
-
         stringBuilder.append("<gml:featureMember>");
         stringBuilder.append(ltn + typeName);
         stringBuilder.append(gtc);
@@ -180,11 +227,6 @@ public class JSONPLIEntry {
         stringBuilder.append(ltnc + "version" + gtc);
         stringBuilder.append(ltnc + typeName + gtc);
         stringBuilder.append(ltc + "gml:featureMember" + gtc);
-        stringBuilder.append(ltc + "wfs:FeatureCollection" + gtc);
-
-        LOG.info("\nGML: \n" + stringBuilder.toString() + "\n");
-
-		return stringBuilder.toString();
 	}
 
 	@Override
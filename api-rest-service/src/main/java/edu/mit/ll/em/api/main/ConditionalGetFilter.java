@@ -0,0 +1,224 @@
+/**
+ * Copyright (c) 2008-2016, Massachusetts Institute of Technology (MIT)
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its contributors
+ * may be used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package edu.mit.ll.em.api.main;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.reflect.Method;
+import java.util.List;
+
+import javax.ws.rs.HttpMethod;
+import javax.ws.rs.WebApplicationException;
+import javax.ws.rs.container.ContainerRequestContext;
+import javax.ws.rs.container.ContainerRequestFilter;
+import javax.ws.rs.container.ContainerResponseContext;
+import javax.ws.rs.container.ContainerResponseFilter;
+import javax.ws.rs.core.EntityTag;
+import javax.ws.rs.core.HttpHeaders;
+import javax.ws.rs.core.Response;
+import javax.ws.rs.ext.WriterInterceptor;
+import javax.ws.rs.ext.WriterInterceptorContext;
+
+import org.apache.cxf.jaxrs.model.OperationResourceInfo;
+import org.apache.cxf.jaxrs.utils.JAXRSUtils;
+import org.apache.cxf.message.Message;
+
+import edu.mit.ll.em.api.dataaccess.ResourceVersions;
+import edu.mit.ll.em.api.rs.CachedResponse;
+import edu.mit.ll.em.api.rs.Versioned;
+import edu.mit.ll.em.api.util.APIConfig;
+
+/**
+ * Conditional GET for the resource methods annotated with {@link Versioned}.
+ * The entity tag is computed from the resource versions before the method is
+ * called, so a request whose If-None-Match matches is answered with 304 without
+ * touching the DAOs or serializing anything. Successful calls of the other
+ * annotated methods bump the versions of their resources.
+ * <p>
+ * Tags are weak and vary with the CUSTOM-uid header, since some of the responses
+ * depend on the requesting user.
+ * <p>
+ * The bodies of the methods also annotated with {@link CachedResponse}, which are
+ * the same for every user, are kept serialized in {@link ResponseCache} and
+ * written straight from there, gzipped if the client accepts it, while their
+ * tag is current.
+ */
+public class ConditionalGetFilter implements ContainerRequestFilter, ContainerResponseFilter,
+		WriterInterceptor {
+
+	private static final String ETAG_PROPERTY = ConditionalGetFilter.class.getName() + ".etag";
+	private static final String CACHE_KEY_PROPERTY = ConditionalGetFilter.class.getName() + ".cachekey";
+	private static final String GZIP_PROPERTY = ConditionalGetFilter.class.getName() + ".gzip";
+
+	private static final String GZIP = "gzip";
+
+	private static final String USER_HEADER = "CUSTOM-uid";
+
+	@Override
+	public void filter(ContainerRequestContext request) throws IOException {
+		if (!isSafe(request.getMethod())) {
+			return;
+		}
+		Method method = getAnnotatedMethod();
+		Versioned versioned = method == null ? null : method.getAnnotation(Versioned.class);
+		if (versioned == null || !APIConfig.getInstance().getConfiguration()
+				.getBoolean(APIConfig.ETAG_ENABLED, true)) {
+			return;
+		}
+
+		boolean cached = method.isAnnotationPresent(CachedResponse.class) &&
+				APIConfig.getInstance().getConfiguration().getBoolean(APIConfig.RESPONSE_CACHE_ENABLED, true);
+		EntityTag etag = new EntityTag(ResourceVersions.getInstance().getETag(
+				versioned.value(), cached ? null : request.getHeaderString(USER_HEADER)), true);
+		if (matches(request.getHeaders().get(HttpHeaders.IF_NONE_MATCH), etag)) {
+			request.abortWith(Response.notModified(etag).build());
+			return;
+		}
+
+		if (cached) {
+			String key = request.getUriInfo().getRequestUri().toString();
+			boolean gzip = acceptsGzip(request.getHeaderString(HttpHeaders.ACCEPT_ENCODING));
+			ResponseCache.Entry entry = ResponseCache.getInstance().get(key, etag.getValue());
+			if (entry != null) {
+				Response.ResponseBuilder response = Response.ok().type(entry.getMediaType())
+						.tag(etag).header(HttpHeaders.VARY, HttpHeaders.ACCEPT_ENCODING);
+				if (gzip) {
+					response.entity(entry.getGzippedBody()).header(HttpHeaders.CONTENT_ENCODING, GZIP);
+				} else {
+					response.entity(entry.getBody());
+				}
+				request.abortWith(response.build());
+				return;
+			}
+			request.setProperty(CACHE_KEY_PROPERTY, key);
+			request.setProperty(GZIP_PROPERTY, gzip);
+		}
+		request.setProperty(ETAG_PROPERTY, etag);
+	}
+
+	@Override
+	public void filter(ContainerRequestContext request, ContainerResponseContext response) throws IOException {
+		EntityTag etag = (EntityTag) request.getProperty(ETAG_PROPERTY);
+		if (etag != null) {
+			if (response.getStatus() == Response.Status.OK.getStatusCode()) {
+				response.getHeaders().putSingle(HttpHeaders.ETAG, etag);
+			} else {
+				request.removeProperty(CACHE_KEY_PROPERTY);
+			}
+		} else if (!isSafe(request.getMethod()) &&
+				response.getStatusInfo().getFamily() == Response.Status.Family.SUCCESSFUL) {
+			Method method = getAnnotatedMethod();
+			Versioned versioned = method == null ? null : method.getAnnotation(Versioned.class);
+			if (versioned != null) {
+				ResourceVersions.getInstance().changed(versioned.value());
+			}
+		}
+	}
+
+	/**
+	 * Serializes the response of a cache miss into memory and caches it before
+	 * writing it out.
+	 */
+	@Override
+	public void aroundWriteTo(WriterInterceptorContext context) throws IOException, WebApplicationException {
+		String key = (String) context.getProperty(CACHE_KEY_PROPERTY);
+		EntityTag etag = (EntityTag) context.getProperty(ETAG_PROPERTY);
+		if (key == null || etag == null) {
+			context.proceed();
+			return;
+		}
+		context.removeProperty(CACHE_KEY_PROPERTY);
+
+		OutputStream out = context.getOutputStream();
+		ByteArrayOutputStream buffer = new ByteArrayOutputStream(8192);
+		context.setOutputStream(buffer);
+		context.proceed();
+		context.setOutputStream(out);
+
+		byte[] body = buffer.toByteArray();
+		ResponseCache.Entry entry = ResponseCache.getInstance().put(key, etag.getValue(),
+				String.valueOf(context.getMediaType()), body);
+		context.getHeaders().putSingle(HttpHeaders.VARY, HttpHeaders.ACCEPT_ENCODING);
+		if (entry != null && Boolean.TRUE.equals(context.getProperty(GZIP_PROPERTY))) {
+			context.getHeaders().putSingle(HttpHeaders.CONTENT_ENCODING, GZIP);
+			out.write(entry.getGzippedBody());
+		} else {
+			out.write(body);
+		}
+	}
+
+	private static boolean isSafe(String method) {
+		return HttpMethod.GET.equals(method) || HttpMethod.HEAD.equals(method);
+	}
+
+	private static Method getAnnotatedMethod() {
+		Message message = JAXRSUtils.getCurrentMessage();
+		OperationResourceInfo ori = message == null ? null : message.getExchange().get(OperationResourceInfo.class);
+		return ori == null ? null : ori.getAnnotatedMethod();
+	}
+
+	private static boolean acceptsGzip(String acceptEncoding) {
+		if (acceptEncoding == null) {
+			return false;
+		}
+		for (String coding : acceptEncoding.split(",")) {
+			String[] parts = coding.trim().split(";");
+			if (GZIP.equalsIgnoreCase(parts[0].trim())) {
+				return parts.length < 2 || !parts[1].trim().matches("q\\s*=\\s*0(\\.0*)?");
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Weak comparison of the tags of an If-None-Match header with the current tag.
+	 */
+	private static boolean matches(List<String> ifNoneMatch, EntityTag etag) {
+		if (ifNoneMatch == null) {
+			return false;
+		}
+		for (String header : ifNoneMatch) {
+			for (String value : header.split(",")) {
+				value = value.trim();
+				if ("*".equals(value)) {
+					return true;
+				}
+				if (value.startsWith("W/")) {
+					value = value.substring(2);
+				}
+				if (value.equals("\"" + etag.getValue() + "\"")) {
+					return true;
+				}
+			}
+		}
+		return false;
+	}
+}
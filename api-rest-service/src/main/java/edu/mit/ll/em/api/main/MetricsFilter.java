@@ -0,0 +1,123 @@
+/**
+ * Copyright (c) 2008-2016, Massachusetts Institute of Technology (MIT)
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its contributors
+ * may be used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package edu.mit.ll.em.api.main;
+
+import java.io.IOException;
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.ws.rs.container.ContainerRequestContext;
+import javax.ws.rs.container.ContainerRequestFilter;
+import javax.ws.rs.container.ContainerResponseContext;
+import javax.ws.rs.container.ContainerResponseFilter;
+
+import org.apache.cxf.jaxrs.model.OperationResourceInfo;
+import org.apache.cxf.jaxrs.model.URITemplate;
+import org.apache.cxf.jaxrs.utils.JAXRSUtils;
+import org.apache.cxf.message.Message;
+
+import edu.mit.ll.em.api.metrics.DaoCallLog;
+import edu.mit.ll.em.api.metrics.EndpointMetrics;
+import edu.mit.ll.em.api.metrics.MetricsRegistry;
+import edu.mit.ll.em.api.util.APIConfig;
+
+/**
+ * Records latency, in-flight requests and error counts for each resource method,
+ * keyed by its URI template rather than the request path so that e.g. every
+ * /features/collabroom/{collabRoomId} call lands in the same histogram, along
+ * with the DAO calls each request makes. The metrics are exposed by
+ * MetricsService. When em.api.metrics.dao.header is enabled, every response also
+ * carries its DAO calls in the X-EM-DAO-Calls header.
+ */
+public class MetricsFilter implements ContainerRequestFilter, ContainerResponseFilter {
+
+	public static final String DAO_CALLS_HEADER = "X-EM-DAO-Calls";
+
+	private static final String START_PROPERTY = MetricsFilter.class.getName() + ".start";
+	private static final String ENDPOINT_PROPERTY = MetricsFilter.class.getName() + ".endpoint";
+
+	private final ConcurrentHashMap<OperationResourceInfo, EndpointMetrics> operations =
+			new ConcurrentHashMap<OperationResourceInfo, EndpointMetrics>();
+
+	@Override
+	public void filter(ContainerRequestContext request) throws IOException {
+		EndpointMetrics endpoint = getEndpoint(request.getMethod());
+		if (endpoint != null) {
+			endpoint.requestStarted();
+			request.setProperty(ENDPOINT_PROPERTY, endpoint);
+			request.setProperty(START_PROPERTY, System.nanoTime());
+			DaoCallLog.begin();
+		}
+	}
+
+	@Override
+	public void filter(ContainerRequestContext request, ContainerResponseContext response) throws IOException {
+		EndpointMetrics endpoint = (EndpointMetrics) request.getProperty(ENDPOINT_PROPERTY);
+		if (endpoint != null) {
+			// Only count the request once, should the filter run again for an error response
+			request.removeProperty(ENDPOINT_PROPERTY);
+			long start = (Long) request.getProperty(START_PROPERTY);
+			endpoint.requestCompleted(response.getStatus(), System.nanoTime() - start);
+
+			DaoCallLog log = DaoCallLog.current();
+			if (log != null) {
+				DaoCallLog.end();
+				endpoint.daoCallsCompleted(log.getCallCount(), log.getNanos());
+				if (APIConfig.getInstance().getConfiguration().getBoolean(APIConfig.METRICS_DAO_HEADER, false)) {
+					response.getHeaders().putSingle(DAO_CALLS_HEADER, log.toHeaderValue());
+				}
+			}
+		}
+	}
+
+	private EndpointMetrics getEndpoint(String method) {
+		Message message = JAXRSUtils.getCurrentMessage();
+		OperationResourceInfo ori = message == null ? null : message.getExchange().get(OperationResourceInfo.class);
+		if (ori == null) {
+			return null;
+		}
+
+		EndpointMetrics endpoint = operations.get(ori);
+		if (endpoint == null) {
+			String template = join(ori.getClassResourceInfo().getURITemplate(), ori.getURITemplate());
+			endpoint = MetricsRegistry.getInstance().getEndpoint(
+					ori.getHttpMethod() != null ? ori.getHttpMethod() : method, template);
+			operations.putIfAbsent(ori, endpoint);
+		}
+		return endpoint;
+	}
+
+	private static String join(URITemplate classTemplate, URITemplate methodTemplate) {
+		String path = classTemplate == null ? "" : classTemplate.getValue();
+		if (methodTemplate != null && !"/".equals(methodTemplate.getValue())) {
+			path = path.replaceAll("/+$", "") + "/" + methodTemplate.getValue().replaceAll("^/+", "");
+		}
+		return path.startsWith("/") ? path : "/" + path;
+	}
+}
@@ -0,0 +1,252 @@
+/**
+ * Copyright (c) 2008-2016, Massachusetts Institute of Technology (MIT)
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its contributors
+ * may be used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package edu.mit.ll.em.api.main;
+
+import java.io.ByteArrayInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.SequenceInputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import javax.ws.rs.container.ContainerRequestContext;
+import javax.ws.rs.container.ContainerRequestFilter;
+import javax.ws.rs.container.ContainerResponseContext;
+import javax.ws.rs.container.ContainerResponseFilter;
+import javax.ws.rs.core.MediaType;
+import javax.ws.rs.ext.WriterInterceptor;
+import javax.ws.rs.ext.WriterInterceptorContext;
+
+import org.apache.commons.configuration.Configuration;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import edu.mit.ll.em.api.util.APIConfig;
+
+/**
+ * Logs one line per request with the method, path, status, response size and time
+ * taken; request and response headers are added at DEBUG. Replaces CXF's
+ * LoggingFeature, which buffered and logged every body, uploads included.
+ * 
+ * Bodies are only captured for requests whose path starts with one of the
+ * "...logging.body.paths" prefixes, for a "...logging.body.samplerate" fraction of
+ * those requests, and only for textual media types. At most "...logging.body.maxbytes"
+ * of each body is kept; the request is never buffered beyond that.
+ * 
+ * Nothing is recorded when INFO is disabled for this class.
+ */
+public class RequestLoggingFilter implements ContainerRequestFilter, ContainerResponseFilter, WriterInterceptor {
+
+	private static final Log logger = LogFactory.getLog(RequestLoggingFilter.class);
+
+	private static final String START_PROPERTY = RequestLoggingFilter.class.getName() + ".start";
+	private static final String LINE_PROPERTY = RequestLoggingFilter.class.getName() + ".line";
+	private static final String CAPTURE_PROPERTY = RequestLoggingFilter.class.getName() + ".capture";
+	private static final String REQUEST_BODY_PROPERTY = RequestLoggingFilter.class.getName() + ".requestBody";
+	private static final String REQUEST_HEADERS_PROPERTY = RequestLoggingFilter.class.getName() + ".requestHeaders";
+
+	private final String[] bodyPaths;
+
+	private final double bodySampleRate;
+
+	private final int bodyMaxBytes;
+
+	public RequestLoggingFilter() {
+		Configuration config = APIConfig.getInstance().getConfiguration();
+		String[] paths = config.getStringArray(APIConfig.LOGGING_BODY_PATHS);
+		int count = 0;
+		for (String path : paths) {
+			if (path != null && !path.trim().isEmpty()) {
+				paths[count++] = normalize(path.trim());
+			}
+		}
+		bodyPaths = Arrays.copyOf(paths, count);
+		bodySampleRate = config.getDouble(APIConfig.LOGGING_BODY_SAMPLE_RATE, 0.01);
+		bodyMaxBytes = Math.max(0, config.getInt(APIConfig.LOGGING_BODY_MAX_BYTES, 2048));
+	}
+
+	@Override
+	public void filter(ContainerRequestContext request) throws IOException {
+		if (!logger.isInfoEnabled()) {
+			return;
+		}
+		request.setProperty(START_PROPERTY, System.nanoTime());
+
+		if (logger.isDebugEnabled()) {
+			request.setProperty(REQUEST_HEADERS_PROPERTY, request.getHeaders().toString());
+		}
+
+		if (isCaptured(request)) {
+			request.setProperty(CAPTURE_PROPERTY, Boolean.TRUE);
+			if (request.hasEntity() && isText(request.getMediaType())) {
+				InputStream in = request.getEntityStream();
+				byte[] buffer = new byte[bodyMaxBytes + 1];
+				int n = 0, r;
+				while (n < buffer.length && (r = in.read(buffer, n, buffer.length - n)) != -1) {
+					n += r;
+				}
+				request.setEntityStream(new SequenceInputStream(new ByteArrayInputStream(buffer, 0, n), in));
+				request.setProperty(REQUEST_BODY_PROPERTY, truncate(buffer, n));
+			}
+		}
+	}
+
+	@Override
+	public void filter(ContainerRequestContext request, ContainerResponseContext response) throws IOException {
+		Long start = (Long) request.getProperty(START_PROPERTY);
+		if (start == null) {
+			return;
+		}
+
+		StringBuilder line = new StringBuilder(128)
+			.append(request.getMethod()).append(' ')
+			.append(normalize(request.getUriInfo().getPath())).append(' ')
+			.append(response.getStatus());
+
+		// With an entity, the line is completed once the entity has been written
+		if (response.hasEntity()) {
+			request.setProperty(LINE_PROPERTY, line);
+			return;
+		}
+		log(line, 0, start, request.getProperty(REQUEST_HEADERS_PROPERTY),
+				request.getProperty(REQUEST_BODY_PROPERTY), response.getHeaders(), null);
+	}
+
+	@Override
+	public void aroundWriteTo(WriterInterceptorContext context) throws IOException {
+		StringBuilder line = (StringBuilder) context.getProperty(LINE_PROPERTY);
+		if (line == null) {
+			context.proceed();
+			return;
+		}
+
+		boolean capture = context.getProperty(CAPTURE_PROPERTY) != null && isText(context.getMediaType());
+		CountingOutputStream out = new CountingOutputStream(context.getOutputStream(), capture ? bodyMaxBytes : 0);
+		context.setOutputStream(out);
+		try {
+			context.proceed();
+		} finally {
+			log(line, out.count, (Long) context.getProperty(START_PROPERTY),
+					context.getProperty(REQUEST_HEADERS_PROPERTY), context.getProperty(REQUEST_BODY_PROPERTY),
+					context.getHeaders(), capture ? truncate(out.captured, out.capturedLength) : null);
+		}
+	}
+
+	private void log(StringBuilder line, long bytes, long start, Object requestHeaders, Object requestBody,
+			Object responseHeaders, String responseBody) {
+		line.append(' ').append(bytes).append("B ")
+			.append(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start)).append("ms");
+		if (logger.isDebugEnabled()) {
+			line.append(" requestHeaders=").append(requestHeaders)
+				.append(" responseHeaders=").append(responseHeaders);
+		}
+		if (requestBody != null) {
+			line.append(" requestBody=").append(requestBody);
+		}
+		if (responseBody != null) {
+			line.append(" responseBody=").append(responseBody);
+		}
+		logger.info(line);
+	}
+
+	private boolean isCaptured(ContainerRequestContext request) {
+		if (bodyPaths.length == 0 || bodyMaxBytes == 0 || bodySampleRate <= 0) {
+			return false;
+		}
+		String path = normalize(request.getUriInfo().getPath());
+		for (String prefix : bodyPaths) {
+			if (path.startsWith(prefix)) {
+				return bodySampleRate >= 1 || ThreadLocalRandom.current().nextDouble() < bodySampleRate;
+			}
+		}
+		return false;
+	}
+
+	private static boolean isText(MediaType type) {
+		if (type == null) {
+			return false;
+		}
+		String subtype = type.getSubtype().toLowerCase();
+		return "text".equalsIgnoreCase(type.getType()) || subtype.contains("json") || subtype.contains("xml")
+				|| MediaType.APPLICATION_FORM_URLENCODED_TYPE.isCompatible(type);
+	}
+
+	private static String normalize(String path) {
+		return path.startsWith("/") ? path : "/" + path;
+	}
+
+	private String truncate(byte[] buffer, int length) {
+		if (length > bodyMaxBytes) {
+			return new String(buffer, 0, bodyMaxBytes, StandardCharsets.UTF_8) + "...(truncated)";
+		}
+		return new String(buffer, 0, length, StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * Counts the bytes written, keeping a copy of the first maxCapture + 1 of them
+	 */
+	private static class CountingOutputStream extends FilterOutputStream {
+
+		private final byte[] captured;
+
+		private int capturedLength = 0;
+
+		private long count = 0;
+
+		CountingOutputStream(OutputStream out, int maxCapture) {
+			super(out);
+			captured = maxCapture > 0 ? new byte[maxCapture + 1] : null;
+		}
+
+		@Override
+		public void write(int b) throws IOException {
+			out.write(b);
+			if (captured != null && capturedLength < captured.length) {
+				captured[capturedLength++] = (byte) b;
+			}
+			count++;
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			out.write(b, off, len);
+			if (captured != null && capturedLength < captured.length) {
+				int n = Math.min(len, captured.length - capturedLength);
+				System.arraycopy(b, off, captured, capturedLength, n);
+				capturedLength += n;
+			}
+			count += len;
+		}
+	}
+}
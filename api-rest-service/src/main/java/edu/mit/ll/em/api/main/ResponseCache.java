@@ -0,0 +1,142 @@
+/**
+ * Copyright (c) 2008-2016, Massachusetts Institute of Technology (MIT)
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its contributors
+ * may be used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package edu.mit.ll.em.api.main;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.zip.GZIPOutputStream;
+
+import edu.mit.ll.em.api.dataaccess.EntityCache;
+import edu.mit.ll.em.api.util.APIConfig;
+
+/**
+ * Serialized response bodies of the {@link edu.mit.ll.em.api.rs.CachedResponse}
+ * methods, per request URI, along with their gzipped form. Each entry holds the
+ * entity tag it was built for and is only served while the tag is current, so a
+ * change to one of its resources invalidates it.
+ */
+public class ResponseCache {
+
+	/** A serialized response body. */
+	public static class Entry {
+		private final String etag;
+		private final String mediaType;
+		private final byte[] body;
+		private final byte[] gzippedBody;
+
+		Entry(String etag, String mediaType, byte[] body) throws IOException {
+			this.etag = etag;
+			this.mediaType = mediaType;
+			this.body = body;
+			ByteArrayOutputStream gzipped = new ByteArrayOutputStream(body.length / 4 + 64);
+			try (GZIPOutputStream out = new GZIPOutputStream(gzipped)) {
+				out.write(body);
+			}
+			this.gzippedBody = gzipped.toByteArray();
+		}
+
+		public String getETag() {
+			return etag;
+		}
+
+		public String getMediaType() {
+			return mediaType;
+		}
+
+		public byte[] getBody() {
+			return body;
+		}
+
+		public byte[] getGzippedBody() {
+			return gzippedBody;
+		}
+	}
+
+	private final EntityCache<String, Entry> cache;
+
+	private final int maxBytes;
+
+	private ResponseCache() {
+		int maxSize = Math.max(1, APIConfig.getInstance().getConfiguration()
+				.getInt(APIConfig.RESPONSE_CACHE_MAXSIZE, 256));
+		this.maxBytes = APIConfig.getInstance().getConfiguration()
+				.getInt(APIConfig.RESPONSE_CACHE_MAXBYTES, 1048576);
+		// Tags change every period anyway, see ResourceVersions
+		long ttlMillis = 1000L * Math.max(1, APIConfig.getInstance().getConfiguration()
+				.getInt(APIConfig.ETAG_MAXAGE_SECONDS, 300));
+		this.cache = new EntityCache<String, Entry>("response", maxSize, ttlMillis, 0);
+	}
+
+	/**
+	 * @param uri Request URI
+	 * @param etag Current entity tag of the response
+	 * @return the cached response, or null if none is cached for the tag
+	 */
+	public Entry get(String uri, String etag) {
+		Entry entry = cache.getIfPresent(uri);
+		if (entry != null && !entry.getETag().equals(etag)) {
+			cache.invalidate(uri);
+			return null;
+		}
+		return entry;
+	}
+
+	/**
+	 * Caches a serialized response, unless it is larger than
+	 * "...responsecache.maxbytes".
+	 * 
+	 * @param uri Request URI
+	 * @param etag Entity tag of the response
+	 * @param mediaType
+	 * @param body Serialized response
+	 * @return the cached response, or null if it was too large
+	 */
+	public Entry put(String uri, String etag, String mediaType, byte[] body) throws IOException {
+		if (body.length > maxBytes) {
+			return null;
+		}
+		Entry entry = new Entry(etag, mediaType, body);
+		cache.put(uri, entry);
+		return entry;
+	}
+
+	public EntityCache<String, Entry> getCache() {
+		return cache;
+	}
+
+	// Lazy-initialization Holder class idiom.
+	private static class Holder {
+		public static final ResponseCache instance = new ResponseCache();
+	}
+
+	public static ResponseCache getInstance() {
+		return Holder.instance;
+	}
+}
@@ -29,33 +29,33 @@
  */
 package edu.mit.ll.em.api.main;
 
-import java.io.IOException;
-import java.util.Set;
-
-import javax.ws.rs.container.ContainerRequestContext;
-import javax.ws.rs.container.ContainerRequestFilter;
+import javax.ws.rs.WebApplicationException;
+import javax.ws.rs.core.MediaType;
 import javax.ws.rs.core.Response;
+import javax.ws.rs.core.Response.Status;
+import javax.ws.rs.ext.ExceptionMapper;
 
+import edu.mit.ll.em.api.util.APILogger;
 
+/**
+ * Answers exceptions thrown out of resource methods with a 500 response.
+ * Unmapped exceptions are written by CXF's fault chain, which skips the response
+ * filters; mapping them lets MetricsFilter and RequestLoggingFilter see the
+ * request end. WebApplicationExceptions keep their own response.
+ */
+public class UnhandledExceptionMapper implements ExceptionMapper<Exception> {
 
-//import org.apache.cxf.jaxrs.ext.RequestHandler;
-import org.apache.cxf.jaxrs.model.ClassResourceInfo;
-import org.apache.cxf.message.Message;
-
-public class DefaultRequestFilter implements ContainerRequestFilter {
-
-	public Response handleRequest(Message inputMessage, ClassResourceInfo resourceClass) {
-		Set<String> keys = inputMessage.keySet();
-		for (String key : keys) {
-			System.out.println("Key: " + key + " => Value: " + inputMessage.get(key).toString());
-		}
-		return null;  // Makes processing chain continue.
-	}
+	private static final String CNAME = UnhandledExceptionMapper.class.getName();
 
 	@Override
-	public void filter(ContainerRequestContext containerRequestContext) throws IOException {
-		// TODO:REFACTOR WIth upgrading cxf to 3.0.3, it removed the RequestHandler, in favor of JAXRS ContainerRequestFilter,
-		//	but the above handleRequest wasn't even doing anything... so, do nothing here? Can this class be removed?
-		
+	public Response toResponse(Exception e) {
+		if (e instanceof WebApplicationException) {
+			return ((WebApplicationException) e).getResponse();
+		}
+		APILogger.getInstance().e(CNAME, "Unhandled exception: " + e);
+		return Response.status(Status.INTERNAL_SERVER_ERROR)
+				.type(MediaType.TEXT_PLAIN)
+				.entity(Status.INTERNAL_SERVER_ERROR.getReasonPhrase())
+				.build();
 	}
 }
@@ -0,0 +1,113 @@
+/**
+ * Copyright (c) 2008-2016, Massachusetts Institute of Technology (MIT)
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its contributors
+ * may be used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package edu.mit.ll.em.api.metrics;
+
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * The DAO calls made while processing a single request, used to spot endpoints
+ * issuing a query per item (N+1) rather than one for the whole request. A log is
+ * bound to the request thread by MetricsFilter; calls made from other threads,
+ * such as background imports, are only counted in the global DAO metrics.
+ */
+public class DaoCallLog {
+
+	private static final ThreadLocal<DaoCallLog> current = new ThreadLocal<DaoCallLog>();
+
+	/** Calls and total nanoseconds, keyed by Dao.method, in order of first call */
+	private final Map<String, long[]> calls = new LinkedHashMap<String, long[]>();
+
+	private int callCount;
+
+	private long nanos;
+
+	/**
+	 * Starts a new log for the calling thread, replacing any left over
+	 */
+	public static DaoCallLog begin() {
+		DaoCallLog log = new DaoCallLog();
+		current.set(log);
+		return log;
+	}
+
+	/**
+	 * @return the log of the calling thread, or null if it is not processing a request
+	 */
+	public static DaoCallLog current() {
+		return current.get();
+	}
+
+	/**
+	 * Unbinds the log from the calling thread
+	 */
+	public static void end() {
+		current.remove();
+	}
+
+	public void record(DaoMethodMetrics method, long nanos) {
+		String key = method.getDao() + '.' + method.getOperation();
+		long[] entry = calls.get(key);
+		if (entry == null) {
+			entry = new long[2];
+			calls.put(key, entry);
+		}
+		entry[0]++;
+		entry[1] += nanos;
+		this.callCount++;
+		this.nanos += nanos;
+	}
+
+	public int getCallCount() {
+		return callCount;
+	}
+
+	public long getNanos() {
+		return nanos;
+	}
+
+	/**
+	 * @return the calls as Dao.method;count=n;dur=ms entries separated by commas,
+	 *         e.g. CollabRoomDAO.hasPermissions;count=3;dur=4.2
+	 */
+	public String toHeaderValue() {
+		StringBuilder value = new StringBuilder();
+		for (Map.Entry<String, long[]> entry : calls.entrySet()) {
+			if (value.length() > 0) {
+				value.append(", ");
+			}
+			value.append(entry.getKey())
+				.append(";count=").append(entry.getValue()[0])
+				.append(";dur=").append(String.format(Locale.ROOT, "%.1f", entry.getValue()[1] / 1e6));
+		}
+		return value.toString();
+	}
+}
@@ -0,0 +1,83 @@
+/**
+ * Copyright (c) 2008-2016, Massachusetts Institute of Technology (MIT)
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its contributors
+ * may be used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package edu.mit.ll.em.api.metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Call metrics for one DAO method, e.g. CollabRoomDAO.hasPermissions, see
+ * InstrumentedDao.
+ */
+public class DaoMethodMetrics {
+
+	private final String dao;
+
+	private final String operation;
+
+	private final LatencyHistogram latency = new LatencyHistogram();
+
+	private final AtomicLong errors = new AtomicLong();
+
+	public DaoMethodMetrics(String dao, String operation) {
+		this.dao = dao;
+		this.operation = operation;
+	}
+
+	/**
+	 * @param nanos time taken
+	 * @param failed whether the call threw
+	 */
+	public void callCompleted(long nanos, boolean failed) {
+		latency.record(nanos);
+		if (failed) {
+			errors.incrementAndGet();
+		}
+	}
+
+	public String getDao() {
+		return dao;
+	}
+
+	public String getOperation() {
+		return operation;
+	}
+
+	public LatencyHistogram getLatency() {
+		return latency;
+	}
+
+	public long getCallCount() {
+		return latency.getCount();
+	}
+
+	public long getErrorCount() {
+		return errors.get();
+	}
+}
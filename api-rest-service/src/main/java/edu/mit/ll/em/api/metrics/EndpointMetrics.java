@@ -0,0 +1,137 @@
+/**
+ * Copyright (c) 2008-2016, Massachusetts Institute of Technology (MIT)
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its contributors
+ * may be used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package edu.mit.ll.em.api.metrics;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Request metrics for one resource method, identified by its HTTP method and
+ * URI template (e.g. GET /features/collabroom/{collabRoomId}).
+ */
+public class EndpointMetrics {
+
+	private final String method;
+
+	private final String template;
+
+	private final LatencyHistogram latency = new LatencyHistogram();
+
+	private final AtomicInteger inFlight = new AtomicInteger();
+
+	private final AtomicLong clientErrors = new AtomicLong();
+
+	private final AtomicLong serverErrors = new AtomicLong();
+
+	private final AtomicLong daoCalls = new AtomicLong();
+
+	private final AtomicLong daoNanos = new AtomicLong();
+
+	private final AtomicInteger maxDaoCalls = new AtomicInteger();
+
+	public EndpointMetrics(String method, String template) {
+		this.method = method;
+		this.template = template;
+	}
+
+	public void requestStarted() {
+		inFlight.incrementAndGet();
+	}
+
+	/**
+	 * @param status HTTP status of the response
+	 * @param nanos time taken
+	 */
+	public void requestCompleted(int status, long nanos) {
+		inFlight.decrementAndGet();
+		latency.record(nanos);
+		if (status >= 500) {
+			serverErrors.incrementAndGet();
+		} else if (status >= 400) {
+			clientErrors.incrementAndGet();
+		}
+	}
+
+	/**
+	 * @param calls DAO calls made by a request
+	 * @param nanos time spent in those calls
+	 */
+	public void daoCallsCompleted(int calls, long nanos) {
+		daoCalls.addAndGet(calls);
+		daoNanos.addAndGet(nanos);
+		int max = maxDaoCalls.get();
+		while (calls > max && !maxDaoCalls.compareAndSet(max, calls)) {
+			max = maxDaoCalls.get();
+		}
+	}
+
+	public String getMethod() {
+		return method;
+	}
+
+	public String getTemplate() {
+		return template;
+	}
+
+	public LatencyHistogram getLatency() {
+		return latency;
+	}
+
+	public int getInFlight() {
+		return inFlight.get();
+	}
+
+	public long getRequestCount() {
+		return latency.getCount();
+	}
+
+	public long getClientErrorCount() {
+		return clientErrors.get();
+	}
+
+	public long getServerErrorCount() {
+		return serverErrors.get();
+	}
+
+	public long getDaoCallCount() {
+		return daoCalls.get();
+	}
+
+	public long getDaoNanos() {
+		return daoNanos.get();
+	}
+
+	/**
+	 * @return the most DAO calls made by a single request
+	 */
+	public int getMaxDaoCalls() {
+		return maxDaoCalls.get();
+	}
+}
@@ -0,0 +1,121 @@
+/**
+ * Copyright (c) 2008-2016, Massachusetts Institute of Technology (MIT)
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its contributors
+ * may be used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package edu.mit.ll.em.api.metrics;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.aopalliance.intercept.MethodInterceptor;
+import org.aopalliance.intercept.MethodInvocation;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.springframework.aop.framework.ProxyFactory;
+
+import edu.mit.ll.em.api.util.APIConfig;
+
+/**
+ * Times the calls made to a nics-dao DAO. Services wrap the DAOs they create, e.g.
+ * 
+ * <pre>
+ * private static final CollabRoomDAOImpl collabDao = InstrumentedDao.wrap(new CollabRoomDAOImpl());
+ * </pre>
+ * 
+ * and every public method called through the returned proxy is recorded in the
+ * MetricsRegistry as Dao.method, and in the DaoCallLog of the current request.
+ * The proxy subclasses the DAO, so fields can keep their *DAOImpl types. Calls
+ * a DAO makes to itself are not intercepted.
+ */
+public class InstrumentedDao implements MethodInterceptor {
+
+	private static final Log LOG = LogFactory.getLog(InstrumentedDao.class);
+
+	private static final InstrumentedDao interceptor = new InstrumentedDao();
+
+	/** DAO names by class, e.g. CollabRoomDAOImpl -> CollabRoomDAO */
+	private final ConcurrentHashMap<Class<?>, String> names = new ConcurrentHashMap<Class<?>, String>();
+
+	private InstrumentedDao() {
+	}
+
+	/**
+	 * @param dao DAO to instrument
+	 * @return a timing proxy for the DAO, or the DAO itself if instrumentation is
+	 *         disabled or the class cannot be proxied
+	 */
+	@SuppressWarnings("unchecked")
+	public static <T> T wrap(T dao) {
+		if (!APIConfig.getInstance().getConfiguration().getBoolean(APIConfig.METRICS_DAO_ENABLED, true)) {
+			return dao;
+		}
+		try {
+			ProxyFactory factory = new ProxyFactory(dao);
+			factory.setProxyTargetClass(true);
+			factory.addAdvice(interceptor);
+			return (T) factory.getProxy(dao.getClass().getClassLoader());
+		} catch (RuntimeException e) {
+			LOG.warn("Unable to instrument " + dao.getClass().getName() + ", its calls will not be timed", e);
+			return dao;
+		}
+	}
+
+	@Override
+	public Object invoke(MethodInvocation invocation) throws Throwable {
+		Method method = invocation.getMethod();
+		if (method.getDeclaringClass() == Object.class) {
+			return invocation.proceed();
+		}
+
+		boolean failed = true;
+		long start = System.nanoTime();
+		try {
+			Object result = invocation.proceed();
+			failed = false;
+			return result;
+		} finally {
+			long nanos = System.nanoTime() - start;
+			DaoMethodMetrics metrics = MetricsRegistry.getInstance().getDaoMethod(
+					getName(invocation.getThis().getClass()), method.getName());
+			metrics.callCompleted(nanos, failed);
+			DaoCallLog log = DaoCallLog.current();
+			if (log != null) {
+				log.record(metrics, nanos);
+			}
+		}
+	}
+
+	private String getName(Class<?> type) {
+		String name = names.get(type);
+		if (name == null) {
+			name = type.getSimpleName().replaceFirst("Impl$", "");
+			names.putIfAbsent(type, name);
+		}
+		return name;
+	}
+}
@@ -0,0 +1,147 @@
+/**
+ * Copyright (c) 2008-2016, Massachusetts Institute of Technology (MIT)
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its contributors
+ * may be used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package edu.mit.ll.em.api.metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lock-free latency histogram with log-linear buckets, in the style of
+ * HdrHistogram: values (in microseconds) are bucketed by their power of two,
+ * and each power of two is split into 8 linear sub-buckets, so any recorded
+ * value is reported within 12.5% of its actual value. Recording is a couple of
+ * shifts and one atomic increment, with no allocation.
+ */
+public class LatencyHistogram {
+
+	private static final int SUB_BUCKET_BITS = 3;
+
+	private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+
+	/** Covers values up to 2^39 microseconds, about 6 days */
+	private static final int BUCKETS = (40 - SUB_BUCKET_BITS) * SUB_BUCKETS;
+
+	private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+
+	private final AtomicLong count = new AtomicLong();
+
+	private final AtomicLong sumMicros = new AtomicLong();
+
+	private final AtomicLong maxMicros = new AtomicLong();
+
+	/**
+	 * @param nanos
+	 */
+	public void record(long nanos) {
+		long micros = Math.max(0, nanos / 1000);
+		counts.incrementAndGet(bucketIndex(micros));
+		count.incrementAndGet();
+		sumMicros.addAndGet(micros);
+
+		long max;
+		while (micros > (max = maxMicros.get())) {
+			if (maxMicros.compareAndSet(max, micros)) {
+				break;
+			}
+		}
+	}
+
+	public long getCount() {
+		return count.get();
+	}
+
+	public long getSumMicros() {
+		return sumMicros.get();
+	}
+
+	public long getMaxMicros() {
+		return maxMicros.get();
+	}
+
+	/**
+	 * @param micros
+	 * @return number of recorded values whose bucket lies entirely at or below micros
+	 */
+	public long getCountAtOrBelow(long micros) {
+		long total = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			if (bucketUpperBound(i) - 1 > micros) {
+				break;
+			}
+			total += counts.get(i);
+		}
+		return total;
+	}
+
+	/**
+	 * @param quantile between 0 and 1
+	 * @return upper bound, in microseconds, of the bucket holding the quantile; 0 if empty
+	 */
+	public long getValueAtQuantile(double quantile) {
+		long[] snapshot = new long[BUCKETS];
+		long total = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			snapshot[i] = counts.get(i);
+			total += snapshot[i];
+		}
+		if (total == 0) {
+			return 0;
+		}
+
+		long rank = Math.max(1, (long) Math.ceil(quantile * total));
+		long seen = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			seen += snapshot[i];
+			if (seen >= rank) {
+				return Math.min(bucketUpperBound(i) - 1, getMaxMicros());
+			}
+		}
+		return getMaxMicros();
+	}
+
+	static int bucketIndex(long micros) {
+		if (micros < SUB_BUCKETS) {
+			return (int) micros;
+		}
+		int shift = (63 - Long.numberOfLeadingZeros(micros)) - SUB_BUCKET_BITS;
+		int index = (shift << SUB_BUCKET_BITS) + (int) (micros >>> shift);
+		return Math.min(index, BUCKETS - 1);
+	}
+
+	/** Exclusive upper bound of a bucket, in microseconds */
+	static long bucketUpperBound(int index) {
+		if (index < SUB_BUCKETS) {
+			return index + 1;
+		}
+		int shift = (index >>> SUB_BUCKET_BITS) - 1;
+		long mantissa = (index & (SUB_BUCKETS - 1)) + SUB_BUCKETS;
+		return (mantissa + 1) << shift;
+	}
+}
@@ -0,0 +1,229 @@
+/**
+ * Copyright (c) 2008-2016, Massachusetts Institute of Technology (MIT)
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its contributors
+ * may be used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package edu.mit.ll.em.api.metrics;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Holds the request metrics of every resource method that has been called, see
+ * edu.mit.ll.em.api.main.MetricsFilter, and of every DAO method, see
+ * InstrumentedDao, and writes them in Prometheus format.
+ */
+public class MetricsRegistry {
+
+	/** Upper bounds, in seconds, of the exported histogram buckets */
+	private static final double[] LATENCY_BUCKETS = {
+		0.005, 0.01, 0.025, 0.05, 0.1, 0.25, 0.5, 1, 2.5, 5, 10, 30
+	};
+
+	private static final double[] LATENCY_QUANTILES = { 0.5, 0.9, 0.99, 0.999 };
+
+	private final ConcurrentHashMap<String, EndpointMetrics> endpoints =
+			new ConcurrentHashMap<String, EndpointMetrics>();
+
+	private final ConcurrentHashMap<String, DaoMethodMetrics> daoMethods =
+			new ConcurrentHashMap<String, DaoMethodMetrics>();
+
+	// Lazy-initialization Holder class idiom.
+	private static class Holder {
+		public static MetricsRegistry instance = new MetricsRegistry();
+	}
+
+	public static MetricsRegistry getInstance() {
+		return Holder.instance;
+	}
+
+	private MetricsRegistry() {
+	}
+
+	/**
+	 * @param method HTTP method
+	 * @param template URI template of the resource method
+	 * @return metrics for the endpoint, created on first use
+	 */
+	public EndpointMetrics getEndpoint(String method, String template) {
+		String key = method + ' ' + template;
+		EndpointMetrics metrics = endpoints.get(key);
+		if (metrics == null) {
+			EndpointMetrics created = new EndpointMetrics(method, template);
+			metrics = endpoints.putIfAbsent(key, created);
+			if (metrics == null) {
+				metrics = created;
+			}
+		}
+		return metrics;
+	}
+
+	/**
+	 * @return all endpoints, ordered by template and method
+	 */
+	public List<EndpointMetrics> getEndpoints() {
+		List<EndpointMetrics> list = new ArrayList<EndpointMetrics>(endpoints.values());
+		Collections.sort(list, new Comparator<EndpointMetrics>() {
+			public int compare(EndpointMetrics a, EndpointMetrics b) {
+				int c = a.getTemplate().compareTo(b.getTemplate());
+				return c != 0 ? c : a.getMethod().compareTo(b.getMethod());
+			}
+		});
+		return list;
+	}
+
+	/**
+	 * @param dao DAO name, e.g. CollabRoomDAO
+	 * @param operation method name
+	 * @return metrics for the DAO method, created on first use
+	 */
+	public DaoMethodMetrics getDaoMethod(String dao, String operation) {
+		String key = dao + '.' + operation;
+		DaoMethodMetrics metrics = daoMethods.get(key);
+		if (metrics == null) {
+			DaoMethodMetrics created = new DaoMethodMetrics(dao, operation);
+			metrics = daoMethods.putIfAbsent(key, created);
+			if (metrics == null) {
+				metrics = created;
+			}
+		}
+		return metrics;
+	}
+
+	/**
+	 * @return all DAO methods, ordered by DAO and method name
+	 */
+	public List<DaoMethodMetrics> getDaoMethods() {
+		List<DaoMethodMetrics> list = new ArrayList<DaoMethodMetrics>(daoMethods.values());
+		Collections.sort(list, new Comparator<DaoMethodMetrics>() {
+			public int compare(DaoMethodMetrics a, DaoMethodMetrics b) {
+				int c = a.getDao().compareTo(b.getDao());
+				return c != 0 ? c : a.getOperation().compareTo(b.getOperation());
+			}
+		});
+		return list;
+	}
+
+	public void writeMetrics(PrometheusWriter writer) {
+		writeEndpointMetrics(writer);
+		writeDaoMetrics(writer);
+	}
+
+	private void writeEndpointMetrics(PrometheusWriter writer) {
+		List<EndpointMetrics> list = getEndpoints();
+
+		writer.family("em_api_requests_in_flight", "gauge", "Requests currently being processed");
+		for (EndpointMetrics metrics : list) {
+			writer.sample("em_api_requests_in_flight", metrics.getInFlight(),
+					"method", metrics.getMethod(), "path", metrics.getTemplate());
+		}
+
+		writer.family("em_api_request_errors_total", "counter", "Requests answered with a 4xx or 5xx status");
+		for (EndpointMetrics metrics : list) {
+			writer.sample("em_api_request_errors_total", metrics.getClientErrorCount(),
+					"method", metrics.getMethod(), "path", metrics.getTemplate(), "class", "4xx");
+			writer.sample("em_api_request_errors_total", metrics.getServerErrorCount(),
+					"method", metrics.getMethod(), "path", metrics.getTemplate(), "class", "5xx");
+		}
+
+		writer.family("em_api_request_duration_seconds", "histogram", "Time taken to process requests");
+		for (EndpointMetrics metrics : list) {
+			LatencyHistogram latency = metrics.getLatency();
+			long cumulative = 0;
+			for (double bucket : LATENCY_BUCKETS) {
+				cumulative = latency.getCountAtOrBelow((long) (bucket * 1000000));
+				writer.sample("em_api_request_duration_seconds_bucket", cumulative,
+						"method", metrics.getMethod(), "path", metrics.getTemplate(), "le", String.valueOf(bucket));
+			}
+			// A request is added to its bucket before the count, keep +Inf the largest
+			long count = Math.max(latency.getCount(), cumulative);
+			writer.sample("em_api_request_duration_seconds_bucket", count,
+					"method", metrics.getMethod(), "path", metrics.getTemplate(), "le", "+Inf");
+			writer.sample("em_api_request_duration_seconds_sum", latency.getSumMicros() / 1e6,
+					"method", metrics.getMethod(), "path", metrics.getTemplate());
+			writer.sample("em_api_request_duration_seconds_count", count,
+					"method", metrics.getMethod(), "path", metrics.getTemplate());
+		}
+
+		writer.family("em_api_request_latency_seconds", "summary", "Request latency quantiles since startup");
+		for (EndpointMetrics metrics : list) {
+			LatencyHistogram latency = metrics.getLatency();
+			for (double quantile : LATENCY_QUANTILES) {
+				writer.sample("em_api_request_latency_seconds", latency.getValueAtQuantile(quantile) / 1e6,
+						"method", metrics.getMethod(), "path", metrics.getTemplate(), "quantile", String.valueOf(quantile));
+			}
+			writer.sample("em_api_request_latency_seconds_sum", latency.getSumMicros() / 1e6,
+					"method", metrics.getMethod(), "path", metrics.getTemplate());
+			writer.sample("em_api_request_latency_seconds_count", latency.getCount(),
+					"method", metrics.getMethod(), "path", metrics.getTemplate());
+		}
+
+		writer.family("em_api_request_dao_calls_total", "counter", "DAO calls made while processing requests");
+		for (EndpointMetrics metrics : list) {
+			writer.sample("em_api_request_dao_calls_total", metrics.getDaoCallCount(),
+					"method", metrics.getMethod(), "path", metrics.getTemplate());
+		}
+
+		writer.family("em_api_request_dao_calls_max", "gauge", "Most DAO calls made by a single request");
+		for (EndpointMetrics metrics : list) {
+			writer.sample("em_api_request_dao_calls_max", metrics.getMaxDaoCalls(),
+					"method", metrics.getMethod(), "path", metrics.getTemplate());
+		}
+
+		writer.family("em_api_request_dao_seconds_total", "counter", "Time spent in DAO calls while processing requests");
+		for (EndpointMetrics metrics : list) {
+			writer.sample("em_api_request_dao_seconds_total", metrics.getDaoNanos() / 1e9,
+					"method", metrics.getMethod(), "path", metrics.getTemplate());
+		}
+	}
+
+	private void writeDaoMetrics(PrometheusWriter writer) {
+		List<DaoMethodMetrics> list = getDaoMethods();
+
+		writer.family("em_api_dao_call_errors_total", "counter", "DAO calls that threw an exception");
+		for (DaoMethodMetrics metrics : list) {
+			writer.sample("em_api_dao_call_errors_total", metrics.getErrorCount(),
+					"dao", metrics.getDao(), "operation", metrics.getOperation());
+		}
+
+		writer.family("em_api_dao_call_latency_seconds", "summary", "DAO call latency quantiles since startup");
+		for (DaoMethodMetrics metrics : list) {
+			LatencyHistogram latency = metrics.getLatency();
+			for (double quantile : LATENCY_QUANTILES) {
+				writer.sample("em_api_dao_call_latency_seconds", latency.getValueAtQuantile(quantile) / 1e6,
+						"dao", metrics.getDao(), "operation", metrics.getOperation(), "quantile", String.valueOf(quantile));
+			}
+			writer.sample("em_api_dao_call_latency_seconds_sum", latency.getSumMicros() / 1e6,
+					"dao", metrics.getDao(), "operation", metrics.getOperation());
+			writer.sample("em_api_dao_call_latency_seconds_count", latency.getCount(),
+					"dao", metrics.getDao(), "operation", metrics.getOperation());
+		}
+	}
+}
@@ -31,45 +31,116 @@ package edu.mit.ll.em.api.msgbus;
 
 import java.util.ArrayList;
 import java.util.Collection;
-import java.util.concurrent.ConcurrentLinkedDeque;
 
 import edu.mit.ll.em.api.rs.MsgEnvelope;
 import edu.mit.ll.em.api.util.APILogger;
 
-
+/**
+ * Fixed-capacity ring buffer of the messages waiting for a subscriber. When it
+ * is full, new messages are handled according to its {@link OverflowPolicy}.
+ */
 public class MsgBusQueue {
 
 	private static final String CNAME = MsgBusQueue.class.getName();
 
-	public MsgBusQueue() {
+	private final MsgEnvelope[] ring;
+
+	private final OverflowPolicy policy;
+
+	// Index of the oldest message, and number of messages, guarded by this
+	private int head;
+	private int size;
+
+	private long dropped;
+
+	public MsgBusQueue(int capacity, OverflowPolicy policy) {
+		if (capacity <= 0) {
+			throw new IllegalArgumentException("capacity must be positive");
+		}
+		this.ring = new MsgEnvelope[capacity];
+		this.policy = policy;
+	}
+
+	/**
+	 * @param msg
+	 * @return number of messages dropped to make room, or the message itself if dropped
+	 */
+	public synchronized int put(MsgEnvelope msg) {
+		if (APILogger.getInstance().isDebugEnabled()) {
+			APILogger.getInstance().d(CNAME, "Message posted to subscription : Type: {} Payload: {}",
+					msg.getMsgType(), msg.getMsgPayload());
+		}
+		if (size < ring.length) {
+			ring[(head + size++) % ring.length] = msg;
+			return 0;
+		}
+
+		dropped++;
+		switch (policy) {
+		case DROP_NEWEST:
+			return 1;
+		case COALESCE:
+			for (int i = size - 1; i >= 0; i--) {
+				int index = (head + i) % ring.length;
+				if (msg.getMsgType() != null && msg.getMsgType().equals(ring[index].getMsgType())) {
+					ring[index] = msg;
+					return 1;
+				}
+			}
+			// No message of the same type, fall through
+		default:
+			ring[head] = msg;
+			head = (head + 1) % ring.length;
+			return 1;
+		}
+	}
 
+	/**
+	 * @param msgs
+	 * @return number of messages dropped
+	 */
+	public synchronized int put(Collection<MsgEnvelope> msgs) {
+		int drops = 0;
+		for (MsgEnvelope msg : msgs) {
+			drops += put(msg);
+		}
+		return drops;
 	}
 
-	private ConcurrentLinkedDeque<MsgEnvelope> queue = new ConcurrentLinkedDeque<MsgEnvelope>();
+	public synchronized boolean isEmpty() {
+		return size == 0;
+	}
 
-	public void put(MsgEnvelope msg) {
-		APILogger.getInstance().d(CNAME, "Message posted to subscription " + 
-				": Type: " + msg.getMsgType() + " Payload: " + msg.getMsgPayload());
-		queue.add(msg);
+	public synchronized int size() {
+		return size;
 	}
 
-	public void put(Collection<MsgEnvelope> msgs) {
-		for (MsgEnvelope me : msgs) {
-			APILogger.getInstance().d(CNAME, "Message posted to subscription " + 
-					": Type: " + me.getMsgType() + " Payload: " + me.getMsgPayload());
-		}		
-		queue.addAll(msgs);
+	public int getCapacity() {
+		return ring.length;
+	}
+
+	public synchronized long getDroppedCount() {
+		return dropped;
 	}
 
 	public Collection<MsgEnvelope> get() {
-		Collection<MsgEnvelope> msgs = new ArrayList<MsgEnvelope>();
-		while (!queue.isEmpty()) {
-			msgs.add(queue.remove());
+		Collection<MsgEnvelope> msgs;
+		synchronized (this) {
+			msgs = new ArrayList<MsgEnvelope>(size);
+			for (int i = 0; i < size; i++) {
+				int index = (head + i) % ring.length;
+				msgs.add(ring[index]);
+				ring[index] = null;
+			}
+			head = 0;
+			size = 0;
+		}
+		if (APILogger.getInstance().isDebugEnabled()) {
+			for (MsgEnvelope me : msgs) {
+				APILogger.getInstance().d(CNAME, "Obtained msg from subscription : Type: {} Payload: {}",
+						me.getMsgType(), me.getMsgPayload());
+			}
 		}
-		for (MsgEnvelope me : msgs) {
-			APILogger.getInstance().d(CNAME, "Obtained msg from subscription " + 
-					": Type: " + me.getMsgType() + " Payload: " + me.getMsgPayload());
-		}	
 		return msgs;
 	}
 }
@@ -0,0 +1,242 @@
+/**
+ * Copyright (c) 2008-2016, Massachusetts Institute of Technology (MIT)
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its contributors
+ * may be used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package edu.mit.ll.em.api.msgbus;
+
+import java.io.IOException;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import com.rabbitmq.client.Channel;
+import com.rabbitmq.client.Connection;
+import com.rabbitmq.client.ConnectionFactory;
+import com.rabbitmq.client.QueueingConsumer;
+
+import edu.mit.ll.em.api.rs.MsgEnvelope;
+import edu.mit.ll.em.api.util.APIConfig;
+import edu.mit.ll.em.api.util.APILogger;
+
+/**
+ * Delivers the messages published on the exchange to the message bus
+ * subscriptions. Each node consumes from a single exclusive, auto-delete queue
+ * bound with the topic patterns its subscriptions use, bound and unbound as they
+ * come and go (or with "...msgbus.router.bindingkeys" when set), and
+ * {@link MsgBusSubscriptionMgr} matches every routing key against those patterns,
+ * rather than each subscriber holding its own broker consumer. At most
+ * "...rabbitmq.consumer.prefetch" messages are delivered ahead of being routed.
+ * <p>
+ * Pattern changes are queued and applied by the router thread, which owns the
+ * channel, between deliveries or at least every BINDING_POLL_MILLIS.
+ * <p>
+ * Messages published while the connection is down are not seen; the router
+ * reconnects after a delay.
+ * <p>
+ * Started and stopped by Spring, see cxf-rest-service.xml.
+ */
+public class MsgBusRouter implements Runnable, MsgBusSubscriptionMgr.TopicListener {
+
+	private static final String CNAME = MsgBusRouter.class.getName();
+
+	private static final long RECONNECT_DELAY_MILLIS = 30 * 1000;
+
+	private static final long BINDING_POLL_MILLIS = 100;
+
+	private volatile boolean running;
+	private volatile Connection connection;
+	private Thread worker;
+
+	// Topic pattern changes waiting to be applied by the router thread
+	private final ConcurrentLinkedQueue<BindingChange> bindingChanges =
+			new ConcurrentLinkedQueue<BindingChange>();
+
+	private static class BindingChange {
+		final String pattern;
+		final boolean bind;
+
+		BindingChange(String pattern, boolean bind) {
+			this.pattern = pattern;
+			this.bind = bind;
+		}
+	}
+
+	public synchronized void start() {
+		if (!APIConfig.getInstance().getConfiguration()
+				.getBoolean(APIConfig.MSGBUS_ROUTER_ENABLED, false)) {
+			APILogger.getInstance().i(CNAME, "Message bus routing is disabled");
+			return;
+		}
+		if (APIConfig.getInstance().getConfiguration()
+				.getString(APIConfig.RABBIT_HOSTNAME_KEY) == null) {
+			APILogger.getInstance().w(CNAME, "No value found for key " + APIConfig.RABBIT_HOSTNAME_KEY +
+					", message bus routing will not be started");
+			return;
+		}
+		running = true;
+		worker = new Thread(this, "MsgBusRouter");
+		worker.setDaemon(true);
+		worker.start();
+	}
+
+	public synchronized void stop() {
+		running = false;
+		MsgBusSubscriptionMgr.getInstance().setTopicListener(null);
+		closeConnection();
+		if (worker != null) {
+			worker.interrupt();
+			worker = null;
+		}
+	}
+
+	public void run() {
+		while (running) {
+			try {
+				consume();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				break;
+			} catch (Exception e) {
+				if (!running) {
+					break;
+				}
+				APILogger.getInstance().e(CNAME, "Lost connection to the message bus: " + e.getMessage());
+			} finally {
+				closeConnection();
+			}
+
+			try {
+				Thread.sleep(RECONNECT_DELAY_MILLIS);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				break;
+			}
+		}
+	}
+
+	private void consume() throws Exception {
+		ConnectionFactory factory = new ConnectionFactory();
+		factory.setHost(APIConfig.getInstance().getConfiguration()
+				.getString(APIConfig.RABBIT_HOSTNAME_KEY));
+		String username = APIConfig.getInstance().getConfiguration()
+				.getString(APIConfig.RABBIT_USERNAME_KEY);
+		if (username != null) {
+			factory.setUsername(username);
+			factory.setPassword(APIConfig.getInstance().getConfiguration()
+					.getString(APIConfig.RABBIT_USERPWD_KEY));
+		}
+		String exchange = APIConfig.getInstance().getConfiguration()
+				.getString(APIConfig.RABBIT_EXCHANGENAME_KEY, "amq.topic");
+		String[] bindingKeys = APIConfig.getInstance().getConfiguration()
+				.getStringArray(APIConfig.MSGBUS_ROUTER_BINDING_KEYS);
+		int prefetch = Math.max(1, APIConfig.getInstance().getConfiguration()
+				.getInt(APIConfig.RABBIT_CONSUMER_PREFETCH, 100));
+
+		connection = factory.newConnection();
+		Channel channel = connection.createChannel();
+		String queue = channel.queueDeclare().getQueue();
+		channel.basicQos(prefetch);
+		// Patterns bound on this queue, null when bound with the configured keys
+		Set<String> bound = null;
+		if (bindingKeys == null || bindingKeys.length == 0) {
+			bound = new HashSet<String>();
+			// Changes seen while disconnected are covered by replaying every pattern
+			bindingChanges.clear();
+			MsgBusSubscriptionMgr.getInstance().setTopicListener(this);
+		} else {
+			for (String key : bindingKeys) {
+				channel.queueBind(queue, exchange, key);
+			}
+		}
+		QueueingConsumer consumer = new QueueingConsumer(channel);
+		channel.basicConsume(queue, false, consumer);
+		APILogger.getInstance().i(CNAME, "Routing messages to subscriptions from exchange " + exchange);
+
+		while (running) {
+			if (bound != null) {
+				applyBindingChanges(channel, queue, exchange, bound);
+			}
+			QueueingConsumer.Delivery delivery = consumer.nextDelivery(BINDING_POLL_MILLIS);
+			if (delivery != null) {
+				route(delivery.getEnvelope().getRoutingKey(), new String(delivery.getBody(), "UTF-8"));
+				channel.basicAck(delivery.getEnvelope().getDeliveryTag(), false);
+			}
+		}
+	}
+
+	private void applyBindingChanges(Channel channel, String queue, String exchange,
+			Set<String> bound) throws IOException {
+		BindingChange change;
+		while ((change = bindingChanges.poll()) != null) {
+			if (change.bind) {
+				if (bound.add(change.pattern)) {
+					channel.queueBind(queue, exchange, change.pattern);
+					APILogger.getInstance().d(CNAME, "Bound topic {}", change.pattern);
+				}
+			} else if (bound.remove(change.pattern)) {
+				channel.queueUnbind(queue, exchange, change.pattern);
+				APILogger.getInstance().d(CNAME, "Unbound topic {}", change.pattern);
+			}
+		}
+	}
+
+	public void topicAdded(String pattern) {
+		bindingChanges.add(new BindingChange(pattern, true));
+	}
+
+	public void topicRemoved(String pattern) {
+		bindingChanges.add(new BindingChange(pattern, false));
+	}
+
+	/**
+	 * Posts a single message to the matching subscriptions.
+	 * 
+	 * @param topic Routing key the message was published with
+	 * @param message Message body
+	 */
+	void route(String topic, String message) {
+		MsgEnvelope msg = new MsgEnvelope();
+		msg.setMsgType(topic);
+		msg.setMsgPayload(message);
+		msg.setMsgTimestamp(Long.toString(System.currentTimeMillis()));
+		int count = MsgBusSubscriptionMgr.getInstance().route(topic, msg);
+		APILogger.getInstance().d(CNAME, "Routed message on topic {} to {} subscriptions", topic, count);
+	}
+
+	private void closeConnection() {
+		Connection c = connection;
+		connection = null;
+		if (c != null) {
+			try {
+				c.close();
+			} catch (Exception e) {
+				// Already closed.
+			}
+		}
+	}
+}
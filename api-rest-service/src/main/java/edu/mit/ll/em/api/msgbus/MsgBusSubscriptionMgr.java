@@ -30,14 +30,28 @@
 package edu.mit.ll.em.api.msgbus;
 
 import java.util.Collection;
+import java.util.HashMap;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 import edu.mit.ll.em.api.rs.MsgEnvelope;
 import edu.mit.ll.em.api.rs.StringConstant;
+import edu.mit.ll.em.api.util.APIConfig;
 import edu.mit.ll.em.api.util.APILogger;
 import edu.mit.ll.em.api.util.MapUtil;
 
+/**
+ * Holds the message bus subscriptions, indexed by the topic patterns they were
+ * opened with so {@link MsgBusRouter} can hand each message on the exchange to
+ * the matching subscriptions. Subscriptions whose subscriber has not
+ * read or waited for messages within the subscription timeout are ended by a
+ * reaper every "...msgbus.reaper.intervalseconds".
+ */
 public class MsgBusSubscriptionMgr {
 
 	private static final String CNAME = MsgBusSubscriptionMgr.class.getName();
@@ -45,6 +59,51 @@ public class MsgBusSubscriptionMgr {
 	private ConcurrentHashMap<Long, SubscriptionSession> sessions =
 			new ConcurrentHashMap<Long, SubscriptionSession>(500);
 
+	private final TopicTrie<SubscriptionSession> topics = new TopicTrie<SubscriptionSession>();
+
+	// Subscriptions per topic pattern, guards the listener calls as well
+	private final Map<String, Integer> patternCounts = new HashMap<String, Integer>();
+
+	private TopicListener topicListener;
+
+	// Messages dropped by full queues since startup
+	private final AtomicLong droppedCount = new AtomicLong();
+
+	private final AtomicLong reapedCount = new AtomicLong();
+
+	private final ScheduledExecutorService reaper = Executors.newSingleThreadScheduledExecutor(
+			new ThreadFactory() {
+				public Thread newThread(Runnable r) {
+					Thread t = new Thread(r, "MsgBusReaper");
+					t.setDaemon(true);
+					return t;
+				}
+			});
+
+	/**
+	 * Told when a topic pattern gains its first subscription or loses its last
+	 * one. Calls are made one at a time, in the order the patterns changed, while
+	 * subscriptions are being started and ended, so they must not block.
+	 */
+	public interface TopicListener {
+		void topicAdded(String pattern);
+		void topicRemoved(String pattern);
+	}
+
+	private MsgBusSubscriptionMgr() {
+		long interval = Math.max(1, APIConfig.getInstance().getConfiguration()
+				.getInt(APIConfig.MSGBUS_REAPER_INTERVALSECONDS, 60));
+		reaper.scheduleWithFixedDelay(new Runnable() {
+			public void run() {
+				try {
+					reap(System.currentTimeMillis());
+				} catch (RuntimeException e) {
+					APILogger.getInstance().e(CNAME, "Unable to reap subscriptions: " + e.getMessage());
+				}
+			}
+		}, interval, interval, TimeUnit.SECONDS);
+	}
+
 	// Lazy-initialization Holder class idiom.
 	private static class Holder {
 		public static MsgBusSubscriptionMgr instance = new MsgBusSubscriptionMgr();
@@ -68,7 +127,7 @@ public class MsgBusSubscriptionMgr {
 				StringConstant.URIOPT_SUBSCRIBER_ID, attrs, "-1");
 		String topicsStr = MapUtil.getDefault(
 				StringConstant.URIOPT_TOPICS, attrs, "");
-		APILogger.getInstance().d(CNAME, "topicsStr = " + topicsStr);
+		APILogger.getInstance().d(CNAME, "topicsStr = {}", topicsStr);
 		String[] topics = topicsStr.split("[+]");
 		String timeoutSecsStr = MapUtil.getDefault(
 				StringConstant.URIOPT_TIMEOUT, attrs, "600");
@@ -76,7 +135,9 @@ public class MsgBusSubscriptionMgr {
 		// Subscribe.		
 		SubscriptionSession ss = SubscriptionSession.create(
 				subscriberIdStr, topics, timeoutSecsStr);
-		sessions.putIfAbsent(ss.getSubscriberId(), ss);
+		if (sessions.putIfAbsent(ss.getSubscriberId(), ss) == null) {
+			addTopics(ss);
+		}
 
 		APILogger.getInstance().d(CNAME, "beginSubscription() - End.");
 	}
@@ -85,8 +146,9 @@ public class MsgBusSubscriptionMgr {
 	MsgBusSubscriptionException {
 		SubscriptionSession ss = sessions.remove(sid);
 		if (ss != null) {
+			removeTopics(ss);
 			ss.terminate();
-			APILogger.getInstance().d(CNAME, "Subscription ID terminated: " + sid);
+			APILogger.getInstance().d(CNAME, "Subscription ID terminated: {}", sid);
 		} else {
 			APILogger.getInstance().w(CNAME, "Unsubscribe failed. Subscription ID not found: " + sid);
 		}
@@ -96,8 +158,8 @@ public class MsgBusSubscriptionMgr {
 	MsgBusSubscriptionException {
 		SubscriptionSession ss = sessions.get(sid);
 		if (ss != null) {
-			ss.post(msg);
-			APILogger.getInstance().d(CNAME, "Subscription ID " + sid + " posted messages.");
+			droppedCount.addAndGet(ss.post(msg));
+			APILogger.getInstance().d(CNAME, "Subscription ID {} posted messages.", sid);
 		} else {
 			APILogger.getInstance().w(CNAME, "Post failed. Subscription ID not found: " + sid);
 		}		
@@ -107,8 +169,8 @@ public class MsgBusSubscriptionMgr {
 	MsgBusSubscriptionException {
 		SubscriptionSession ss = sessions.get(sid);
 		if (ss != null) {
-			ss.post(msgs);
-			APILogger.getInstance().d(CNAME, "Subscription ID " + sid + " posted messages.");
+			droppedCount.addAndGet(ss.post(msgs));
+			APILogger.getInstance().d(CNAME, "Subscription ID {} posted messages.", sid);
 		} else {
 			APILogger.getInstance().w(CNAME, "Post failed. Subscription ID not found: " + sid);
 		}		
@@ -121,7 +183,7 @@ public class MsgBusSubscriptionMgr {
 		SubscriptionSession ss = sessions.get(sid);
 		if (ss != null) {
 			msgs = ss.get();
-			APILogger.getInstance().d(CNAME, "Subscription ID " + sid + " obtained messages.");
+			APILogger.getInstance().d(CNAME, "Subscription ID {} obtained messages.", sid);
 		} else {
 			APILogger.getInstance().w(CNAME, "Post failed. Subscription ID not found: " + sid);
 		}
@@ -129,6 +191,136 @@ public class MsgBusSubscriptionMgr {
 		return msgs;
 	}
 
+	/**
+	 * Posts a message to every subscription with a topic pattern matching the
+	 * routing key.
+	 * @return Number of subscriptions posted to
+	 */
+	public int route(String topic, MsgEnvelope msg) {
+		Collection<SubscriptionSession> matches = topics.match(topic);
+		for (SubscriptionSession ss : matches) {
+			droppedCount.addAndGet(ss.post(msg));
+		}
+		return matches.size();
+	}
+
+	/**
+	 * Sets the listener told about topic pattern changes, and tells it about
+	 * every pattern currently subscribed to.
+	 * @param listener null to stop listening
+	 */
+	public void setTopicListener(TopicListener listener) {
+		synchronized (patternCounts) {
+			topicListener = listener;
+			if (listener != null) {
+				for (String pattern : patternCounts.keySet()) {
+					listener.topicAdded(pattern);
+				}
+			}
+		}
+	}
+
+	private void addTopics(SubscriptionSession ss) {
+		if (ss.getTopicList() != null) {
+			synchronized (patternCounts) {
+				for (String topic : ss.getTopicList()) {
+					String pattern = topic.trim();
+					if (!pattern.isEmpty() && topics.add(pattern, ss)) {
+						Integer count = patternCounts.get(pattern);
+						patternCounts.put(pattern, (count == null) ? 1 : count + 1);
+						if (count == null && topicListener != null) {
+							topicListener.topicAdded(pattern);
+						}
+					}
+				}
+			}
+		}
+	}
+
+	private void removeTopics(SubscriptionSession ss) {
+		if (ss.getTopicList() != null) {
+			synchronized (patternCounts) {
+				for (String topic : ss.getTopicList()) {
+					String pattern = topic.trim();
+					if (!pattern.isEmpty() && topics.remove(pattern, ss)) {
+						int count = patternCounts.get(pattern) - 1;
+						if (count > 0) {
+							patternCounts.put(pattern, count);
+						} else {
+							patternCounts.remove(pattern);
+							if (topicListener != null) {
+								topicListener.topicRemoved(pattern);
+							}
+						}
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * Waits for messages on a subscription, see SubscriptionSession.await.
+	 * @return false if messages are waiting, or there is no such subscription
+	 */
+	public boolean awaitSubscription(long sid, SubscriptionSession.Listener listener) {
+		SubscriptionSession ss = sessions.get(sid);
+		return ss != null && ss.await(listener);
+	}
+
+	public void cancelAwait(long sid, SubscriptionSession.Listener listener) {
+		SubscriptionSession ss = sessions.get(sid);
+		if (ss != null) {
+			ss.cancel(listener);
+		}
+	}
+
+	/**
+	 * Ends the subscriptions that have been idle longer than their timeout.
+	 * @return Number of subscriptions ended
+	 */
+	int reap(long now) {
+		int count = 0;
+		for (Map.Entry<Long, SubscriptionSession> e : sessions.entrySet()) {
+			SubscriptionSession ss = e.getValue();
+			if (ss.isExpired(now) && sessions.remove(e.getKey(), ss)) {
+				removeTopics(ss);
+				ss.terminate();
+				count++;
+				APILogger.getInstance().i(CNAME, "Subscription ID {} idle, terminated.", e.getKey());
+			}
+		}
+		reapedCount.addAndGet(count);
+		return count;
+	}
+
+	public int getSessionCount() {
+		return sessions.size();
+	}
+
+	public long getQueuedMessageCount() {
+		long total = 0;
+		for (SubscriptionSession ss : sessions.values()) {
+			total += ss.getQueueDepth();
+		}
+		return total;
+	}
+
+	public int getMaxQueueDepth() {
+		int max = 0;
+		for (SubscriptionSession ss : sessions.values()) {
+			max = Math.max(max, ss.getQueueDepth());
+		}
+		return max;
+	}
+
+	public long getDroppedCount() {
+		return droppedCount.get();
+	}
+
+	public long getReapedCount() {
+		return reapedCount.get();
+	}
+
 	// Hide the default constructor.
 	@SuppressWarnings("unused")
 	private void SubscritionMgr() {}
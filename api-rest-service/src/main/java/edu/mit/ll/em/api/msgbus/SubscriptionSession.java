@@ -32,19 +32,37 @@ package edu.mit.ll.em.api.msgbus;
 import java.util.Collection;
 
 import edu.mit.ll.em.api.rs.MsgEnvelope;
+import edu.mit.ll.em.api.util.APIConfig;
 import edu.mit.ll.em.api.util.APILogger;
 
 public class SubscriptionSession {
 	
 	private static final String CNAME = SubscriptionSession.class.getName();
 	
+	/**
+	 * Waits for messages on a session, see {@link SubscriptionSession#await(Listener)}.
+	 */
+	public interface Listener {
+		/**
+		 * Called once, from the posting thread, when messages are posted to the
+		 * session or the session is terminated. Must not block.
+		 */
+		void messagesPosted(SubscriptionSession session);
+	}
+	
 	private long subscriberId = -1;
 	
 	private String[] topicList = null;
 	
 	private int timeout = -1;   // Never, by default.
 	
-	private MsgBusQueue msgbusQueue = new MsgBusQueue();
+	private final MsgBusQueue msgbusQueue;
+	
+	// Last time the subscriber read or waited for messages.
+	private volatile long lastAccess = System.currentTimeMillis();
+	
+	// Waiting for the next post, guarded by this.
+	private Listener listener;
 	
 	public static SubscriptionSession create(String subscriberIdStr,
 				String[] topicList, String timeoutStr) throws
@@ -71,13 +89,20 @@ public class SubscriptionSession {
 			throw ex;
 		}		
 				
-		SubscriptionSession s = new SubscriptionSession();
+		SubscriptionSession s = new SubscriptionSession(
+				APIConfig.getInstance().getConfiguration().getInt(APIConfig.MSGBUS_QUEUE_CAPACITY, 1000),
+				OverflowPolicy.parse(APIConfig.getInstance().getConfiguration()
+						.getString(APIConfig.MSGBUS_QUEUE_OVERFLOW), OverflowPolicy.DROP_OLDEST));
 		s.setSubscriberId(subscriberId);
 		s.setTopicList(topicList);
 		s.setTimeout(timeoutSecs);
 		return s;
 	}
 	
+	public SubscriptionSession(int capacity, OverflowPolicy policy) {
+		this.msgbusQueue = new MsgBusQueue(capacity, policy);
+	}
+	
 	public long getSubscriberId() {
 		return subscriberId;
 	}
@@ -103,19 +128,110 @@ public class SubscriptionSession {
 	}
 	
 	public void terminate() {
-		// TODO: Implementation.
 		APILogger.getInstance().i(CNAME, "Subscription terminated: " + this.getSubscriberId());
+		Listener waiting;
+		synchronized (this) {
+			waiting = listener;
+			listener = null;
+		}
+		wake(waiting);
 	}
 
-	public void post(MsgEnvelope msg) {
-		msgbusQueue.put(msg);
+	/**
+	 * @return number of messages dropped because the queue was full
+	 */
+	public int post(MsgEnvelope msg) {
+		Listener waiting;
+		int dropped;
+		synchronized (this) {
+			dropped = msgbusQueue.put(msg);
+			waiting = listener;
+			listener = null;
+		}
+		wake(waiting);
+		return dropped;
+	}
+	
+	/**
+	 * @return number of messages dropped because the queue was full
+	 */
+	public int post(Collection<MsgEnvelope> msgs) {
+		Listener waiting;
+		int dropped;
+		synchronized (this) {
+			dropped = msgbusQueue.put(msgs);
+			waiting = listener;
+			listener = null;
+		}
+		wake(waiting);
+		return dropped;
 	}
 	
-	public void post(Collection<MsgEnvelope> msgs) {
-		msgbusQueue.put(msgs);
+	/**
+	 * Registers a listener to be called at the next post, unless messages are
+	 * already waiting. A session has a single listener; one registered earlier
+	 * is called right away, so the client it belongs to gets an empty answer.
+	 * 
+	 * @param l
+	 * @return false if messages are waiting and the listener was not registered
+	 */
+	public boolean await(Listener l) {
+		Listener replaced;
+		lastAccess = System.currentTimeMillis();
+		synchronized (this) {
+			if (!msgbusQueue.isEmpty()) {
+				return false;
+			}
+			replaced = listener;
+			listener = l;
+		}
+		if (replaced != l) {
+			wake(replaced);
+		}
+		return true;
+	}
+	
+	/**
+	 * Unregisters a listener, e.g. when its wait timed out.
+	 * 
+	 * @param l
+	 */
+	public synchronized void cancel(Listener l) {
+		if (listener == l) {
+			listener = null;
+		}
+	}
+	
+	private void wake(Listener waiting) {
+		if (waiting != null) {
+			try {
+				waiting.messagesPosted(this);
+			} catch (RuntimeException e) {
+				APILogger.getInstance().w(CNAME, "Unable to notify subscriber {}: {}",
+						subscriberId, e.getMessage());
+			}
+		}
 	}
 	
 	public Collection<MsgEnvelope> get() {
+		lastAccess = System.currentTimeMillis();
 		return msgbusQueue.get();
+	}
+	
+	public int getQueueDepth() {
+		return msgbusQueue.size();
+	}
+	
+	public long getDroppedCount() {
+		return msgbusQueue.getDroppedCount();
+	}
+	
+	/**
+	 * @param now
+	 * @return true if the subscriber has neither read nor waited for messages for
+	 * longer than the timeout
+	 */
+	public synchronized boolean isExpired(long now) {
+		return timeout > 0 && listener == null && now - lastAccess > timeout * 1000L;
 	}	
 }
@@ -0,0 +1,157 @@
+/**
+ * Copyright (c) 2008-2016, Massachusetts Institute of Technology (MIT)
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its contributors
+ * may be used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package edu.mit.ll.em.api.msgbus;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Matches routing keys against AMQP topic patterns. Words are separated by '.',
+ * '*' matches exactly one word and '#' matches zero or more words, as on a topic
+ * exchange. Patterns are stored in a trie keyed by word, so matching a key visits
+ * one branch per word (plus the wildcard branches) however many patterns there are.
+ * <p>
+ * Safe for concurrent use; lookups share a read lock and only add and remove
+ * are exclusive.
+ *
+ * @param <V> Value registered under the patterns
+ */
+public class TopicTrie<V> {
+
+	private static final String SEPARATOR = "\\.";
+
+	private static final String ANY_WORD = "*";
+	private static final String ANY_WORDS = "#";
+
+	private static class Node<V> {
+		private final Map<String, Node<V>> children = new HashMap<String, Node<V>>(4);
+		private final Set<V> values = new LinkedHashSet<V>(2);
+
+		private boolean isEmpty() {
+			return children.isEmpty() && values.isEmpty();
+		}
+	}
+
+	private final Node<V> root = new Node<V>();
+
+	private final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+	/**
+	 * @param pattern Topic pattern, for example "iweb.NICS.collabroom.*.feature"
+	 * @param value
+	 * @return false if the value was already registered under the pattern
+	 */
+	public boolean add(String pattern, V value) {
+		lock.writeLock().lock();
+		try {
+			Node<V> node = root;
+			for (String word : pattern.split(SEPARATOR, -1)) {
+				Node<V> child = node.children.get(word);
+				if (child == null) {
+					child = new Node<V>();
+					node.children.put(word, child);
+				}
+				node = child;
+			}
+			return node.values.add(value);
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * Removes a value from a pattern, pruning the branches left empty.
+	 * @return false if the value was not registered under the pattern
+	 */
+	public boolean remove(String pattern, V value) {
+		lock.writeLock().lock();
+		try {
+			return remove(root, pattern.split(SEPARATOR, -1), 0, value);
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	private boolean remove(Node<V> node, String[] words, int index, V value) {
+		if (index == words.length) {
+			return node.values.remove(value);
+		}
+		Node<V> child = node.children.get(words[index]);
+		if (child == null || !remove(child, words, index + 1, value)) {
+			return false;
+		}
+		if (child.isEmpty()) {
+			node.children.remove(words[index]);
+		}
+		return true;
+	}
+
+	/**
+	 * @param topic Routing key, without wildcards
+	 * @return Values registered under any pattern matching the key, each once
+	 */
+	public Collection<V> match(String topic) {
+		Set<V> matches = new LinkedHashSet<V>();
+		lock.readLock().lock();
+		try {
+			match(root, topic.split(SEPARATOR, -1), 0, matches);
+		} finally {
+			lock.readLock().unlock();
+		}
+		return matches;
+	}
+
+	private void match(Node<V> node, String[] words, int index, Set<V> matches) {
+		Node<V> anyWords = node.children.get(ANY_WORDS);
+		if (anyWords != null) {
+			// '#' takes zero or more of the remaining words
+			for (int i = index; i <= words.length; i++) {
+				match(anyWords, words, i, matches);
+			}
+		}
+		if (index == words.length) {
+			matches.addAll(node.values);
+			return;
+		}
+		Node<V> exact = node.children.get(words[index]);
+		if (exact != null) {
+			match(exact, words, index + 1, matches);
+		}
+		Node<V> anyWord = node.children.get(ANY_WORD);
+		if (anyWord != null) {
+			match(anyWord, words, index + 1, matches);
+		}
+	}
+}
@@ -0,0 +1,236 @@
+/**
+ * Copyright (c) 2008-2016, Massachusetts Institute of Technology (MIT)
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its contributors
+ * may be used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package edu.mit.ll.em.api.presence;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import edu.mit.ll.em.api.rs.CollabPresenceStatus;
+import edu.mit.ll.em.api.util.TimingWheel;
+
+/**
+ * Presence held in this JVM only. Each room keeps a snapshot of its members
+ * that is rebuilt whenever one changes, so reads are O(1). Every member has one
+ * timer on a TimingWheel, set for when it should next go IDLE or missing; a
+ * timer that fires after the member has reported again just sets itself for the
+ * new time, so frequent reports never touch the wheel.
+ */
+public class LocalPresenceStore implements PresenceStore {
+
+	private final long idleMillis;
+
+	private final long missingMillis;
+
+	private final TimingWheel wheel;
+
+	private final ConcurrentHashMap<Integer, Room> rooms = new ConcurrentHashMap<Integer, Room>();
+
+	private static final class Member {
+		CollabPresenceStatus status;
+		long lastSeen;
+		/** When the member's timer fires */
+		long deadline;
+		/** Identifies the member's current timer, older ones are ignored */
+		int timer;
+	}
+
+	private static final class Room {
+		final int collabRoomId;
+		final Map<String, Member> members = new HashMap<String, Member>();
+		volatile List<CollabPresenceStatus> snapshot = Collections.emptyList();
+		/** Set once the room is taken out of rooms, after which it must not be updated */
+		boolean removed;
+
+		Room(int collabRoomId) {
+			this.collabRoomId = collabRoomId;
+		}
+
+		void rebuildSnapshot() {
+			List<CollabPresenceStatus> list = new ArrayList<CollabPresenceStatus>(members.size());
+			for (Member member : members.values()) {
+				list.add(member.status);
+			}
+			snapshot = Collections.unmodifiableList(list);
+		}
+	}
+
+	/**
+	 * @param idleMillis Time without a report after which a member is IDLE
+	 * @param missingMillis Time without a report after which a member is removed
+	 */
+	public LocalPresenceStore(long idleMillis, long missingMillis) {
+		this.idleMillis = idleMillis;
+		this.missingMillis = Math.max(idleMillis, missingMillis);
+		this.wheel = new TimingWheel("PresenceTimer", 1000, 64, 3);
+		this.wheel.start();
+	}
+
+	@Override
+	public List<CollabPresenceStatus> getPresence(int collabRoomId) {
+		Room room = rooms.get(collabRoomId);
+		return room == null ? Collections.<CollabPresenceStatus>emptyList() : room.snapshot;
+	}
+
+	@Override
+	public CollabPresenceStatus.Status update(int collabRoomId, CollabPresenceStatus status) {
+		long seen = status.getTimestamp() == null ? System.currentTimeMillis() : status.getTimestamp().getTime();
+		while (true) {
+			Room room = getRoom(collabRoomId, !CollabPresenceStatus.Status.LEAVING.equals(status.getStatus()));
+			if (room == null) {
+				return null;
+			}
+			synchronized (room) {
+				if (room.removed) {
+					continue;
+				}
+				return update(room, status, seen);
+			}
+		}
+	}
+
+	private CollabPresenceStatus.Status update(Room room, CollabPresenceStatus status, long seen) {
+		Member member = room.members.get(status.getUsername());
+		CollabPresenceStatus.Status previous = member == null ? null : member.status.getStatus();
+
+		if (CollabPresenceStatus.Status.LEAVING.equals(status.getStatus())) {
+			if (member != null && seen >= member.lastSeen) {
+				remove(room, status.getUsername());
+			}
+			return previous;
+		}
+
+		if (member == null) {
+			member = new Member();
+			room.members.put(status.getUsername(), member);
+		} else if (seen < member.lastSeen) {
+			// A replicated report older than what we have
+			return previous;
+		}
+		member.status = copy(status, status.getStatus(), seen);
+		member.lastSeen = seen;
+		// Only set a new timer if the current one would fire too late
+		if (member.deadline == 0 || member.deadline > seen + idleMillis) {
+			schedule(room, status.getUsername(), member, seen + idleMillis);
+		}
+		room.rebuildSnapshot();
+		return previous;
+	}
+
+	/**
+	 * @return Every room's members, e.g. to send to a node that just joined
+	 */
+	public Map<Integer, List<CollabPresenceStatus>> getAllPresence() {
+		Map<Integer, List<CollabPresenceStatus>> all = new LinkedHashMap<Integer, List<CollabPresenceStatus>>();
+		for (Room room : rooms.values()) {
+			List<CollabPresenceStatus> snapshot = room.snapshot;
+			if (!snapshot.isEmpty()) {
+				all.put(room.collabRoomId, snapshot);
+			}
+		}
+		return all;
+	}
+
+	@Override
+	public void shutdown() {
+		wheel.stop();
+	}
+
+	private Room getRoom(int collabRoomId, boolean create) {
+		Room room = rooms.get(collabRoomId);
+		if (room == null && create) {
+			Room created = new Room(collabRoomId);
+			room = rooms.putIfAbsent(collabRoomId, created);
+			if (room == null) {
+				room = created;
+			}
+		}
+		return room;
+	}
+
+	private void remove(Room room, String username) {
+		room.members.remove(username);
+		if (room.members.isEmpty()) {
+			room.removed = true;
+			rooms.remove(room.collabRoomId, room);
+		}
+		room.rebuildSnapshot();
+	}
+
+	private void schedule(final Room room, final String username, Member member, long deadline) {
+		final int timer = ++member.timer;
+		member.deadline = deadline;
+		wheel.schedule(new Runnable() {
+			public void run() {
+				expire(room, username, timer);
+			}
+		}, deadline);
+	}
+
+	private void expire(Room room, String username, int timer) {
+		synchronized (room) {
+			Member member = room.members.get(username);
+			if (member == null || member.timer != timer) {
+				return;
+			}
+			long now = System.currentTimeMillis();
+			if (now - member.lastSeen >= missingMillis) {
+				remove(room, username);
+			} else if (now - member.lastSeen >= idleMillis) {
+				if (!CollabPresenceStatus.Status.IDLE.equals(member.status.getStatus())) {
+					member.status = copy(member.status, CollabPresenceStatus.Status.IDLE, member.lastSeen);
+					room.rebuildSnapshot();
+				}
+				schedule(room, username, member, member.lastSeen + missingMillis);
+			} else {
+				schedule(room, username, member, member.lastSeen + idleMillis);
+			}
+		}
+	}
+
+	/**
+	 * Statuses handed out in snapshots are never modified, changes replace them
+	 */
+	private static CollabPresenceStatus copy(CollabPresenceStatus status,
+			CollabPresenceStatus.Status state, long timestamp) {
+		CollabPresenceStatus copy = new CollabPresenceStatus();
+		copy.setUsername(status.getUsername());
+		copy.setNickname(status.getNickname());
+		copy.setOrganization(status.getOrganization());
+		copy.setStatus(state);
+		copy.setTimestamp(new Date(timestamp));
+		return copy;
+	}
+}
@@ -0,0 +1,85 @@
+/**
+ * Copyright (c) 2008-2016, Massachusetts Institute of Technology (MIT)
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its contributors
+ * may be used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package edu.mit.ll.em.api.presence;
+
+import edu.mit.ll.em.api.util.APIConfig;
+import edu.mit.ll.em.api.util.APILogger;
+
+/**
+ * Creates the PresenceStore selected by "em.api.presence.store":
+ * <ul>
+ * <li>replicated (default) - shared by all nodes over the RabbitMQ exchange</li>
+ * <li>local - held by this node only, for single node deployments and testing</li>
+ * </ul>
+ * The replicated store falls back to local if no RabbitMQ host is configured.
+ */
+public class PresenceStoreFactory {
+
+	private static final String CNAME = PresenceStoreFactory.class.getName();
+
+	public static final String LOCAL = "local";
+
+	public static final String REPLICATED = "replicated";
+
+	// Lazy-initialization Holder class idiom.
+	private static class Holder {
+		public static PresenceStore instance = create();
+	}
+
+	public static PresenceStore getStore() {
+		return Holder.instance;
+	}
+
+	private PresenceStoreFactory() {
+	}
+
+	private static PresenceStore create() {
+		long idleMillis = APIConfig.getInstance().getConfiguration()
+				.getLong(APIConfig.PRESENCE_IDLE_SECONDS, 300) * 1000;
+		long missingMillis = APIConfig.getInstance().getConfiguration()
+				.getLong(APIConfig.PRESENCE_MISSING_SECONDS, 900) * 1000;
+		String type = APIConfig.getInstance().getConfiguration()
+				.getString(APIConfig.PRESENCE_STORE, REPLICATED);
+
+		LocalPresenceStore local = new LocalPresenceStore(idleMillis, missingMillis);
+		if (REPLICATED.equalsIgnoreCase(type)) {
+			if (APIConfig.getInstance().getConfiguration().getString(APIConfig.RABBIT_HOSTNAME_KEY) != null) {
+				ReplicatedPresenceStore replicated = new ReplicatedPresenceStore(local);
+				replicated.start();
+				return replicated;
+			}
+			APILogger.getInstance().w(CNAME, "No value found for key {}, presence will not be replicated",
+					APIConfig.RABBIT_HOSTNAME_KEY);
+		} else if (!LOCAL.equalsIgnoreCase(type)) {
+			APILogger.getInstance().w(CNAME, "Unknown presence store {}, using {}", type, LOCAL);
+		}
+		return local;
+	}
+}
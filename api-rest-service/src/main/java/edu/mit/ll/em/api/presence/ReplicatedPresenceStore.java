@@ -0,0 +1,224 @@
+/**
+ * Copyright (c) 2008-2016, Massachusetts Institute of Technology (MIT)
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its contributors
+ * may be used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package edu.mit.ll.em.api.presence;
+
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+import org.codehaus.jackson.JsonNode;
+
+import com.rabbitmq.client.Channel;
+import com.rabbitmq.client.Connection;
+import com.rabbitmq.client.ConnectionFactory;
+import com.rabbitmq.client.QueueingConsumer;
+
+import edu.mit.ll.em.api.dataaccess.RabbitPublisher;
+import edu.mit.ll.em.api.rs.CollabPresenceStatus;
+import edu.mit.ll.em.api.util.APIConfig;
+import edu.mit.ll.em.api.util.APILogger;
+import edu.mit.ll.em.api.util.JsonMapper;
+
+/**
+ * Presence shared by every node behind the load balancer. Each node keeps a full
+ * LocalPresenceStore, publishes every report it receives on the exchange, and
+ * applies the reports published by the others. Since reports carry their
+ * timestamps, every node expires a member at the same time.
+ * <p>
+ * A node that (re)connects asks the others for their members, so it does not
+ * have to wait for every member to report again.
+ */
+public class ReplicatedPresenceStore implements PresenceStore, Runnable {
+
+	private static final String CNAME = ReplicatedPresenceStore.class.getName();
+
+	private static final String TOPIC_PREFIX = "iweb.NICS.emapi.presence.";
+
+	private static final String SYNC_TOPIC = TOPIC_PREFIX + "sync";
+
+	private static final long RECONNECT_DELAY_MILLIS = 30 * 1000;
+
+	private final LocalPresenceStore local;
+
+	private final String node = UUID.randomUUID().toString();
+
+	private volatile boolean running;
+	private volatile Connection connection;
+	private Thread worker;
+
+	public ReplicatedPresenceStore(LocalPresenceStore local) {
+		this.local = local;
+	}
+
+	public synchronized void start() {
+		running = true;
+		worker = new Thread(this, "PresenceReplicator");
+		worker.setDaemon(true);
+		worker.start();
+	}
+
+	@Override
+	public synchronized void shutdown() {
+		running = false;
+		closeConnection();
+		if (worker != null) {
+			worker.interrupt();
+			worker = null;
+		}
+		local.shutdown();
+	}
+
+	@Override
+	public List<CollabPresenceStatus> getPresence(int collabRoomId) {
+		return local.getPresence(collabRoomId);
+	}
+
+	@Override
+	public CollabPresenceStatus.Status update(int collabRoomId, CollabPresenceStatus status) {
+		CollabPresenceStatus.Status previous = local.update(collabRoomId, status);
+		publish(collabRoomId, status);
+		return previous;
+	}
+
+	private void publish(int collabRoomId, CollabPresenceStatus status) {
+		Map<String, Object> message = new LinkedHashMap<String, Object>();
+		message.put("node", node);
+		message.put("collabRoomId", collabRoomId);
+		message.put("status", status);
+		try {
+			RabbitPublisher.getInstance().produce(TOPIC_PREFIX + collabRoomId,
+					JsonMapper.getInstance().toJson(message));
+		} catch (IOException e) {
+			APILogger.getInstance().w(CNAME, "Unable to replicate presence of {} in room {}: {}",
+					status.getUsername(), collabRoomId, e.getMessage());
+		}
+	}
+
+	public void run() {
+		while (running) {
+			try {
+				consume();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				break;
+			} catch (Exception e) {
+				if (!running) {
+					break;
+				}
+				APILogger.getInstance().e(CNAME, "Lost connection to the message bus, " +
+						"presence is local to this node until reconnected: " + e.getMessage());
+			} finally {
+				closeConnection();
+			}
+
+			try {
+				Thread.sleep(RECONNECT_DELAY_MILLIS);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				break;
+			}
+		}
+	}
+
+	private void consume() throws Exception {
+		ConnectionFactory factory = new ConnectionFactory();
+		factory.setHost(APIConfig.getInstance().getConfiguration()
+				.getString(APIConfig.RABBIT_HOSTNAME_KEY));
+		String username = APIConfig.getInstance().getConfiguration()
+				.getString(APIConfig.RABBIT_USERNAME_KEY);
+		if (username != null) {
+			factory.setUsername(username);
+			factory.setPassword(APIConfig.getInstance().getConfiguration()
+					.getString(APIConfig.RABBIT_USERPWD_KEY));
+		}
+		String exchange = APIConfig.getInstance().getConfiguration()
+				.getString(APIConfig.RABBIT_EXCHANGENAME_KEY, "amq.topic");
+
+		connection = factory.newConnection();
+		Channel channel = connection.createChannel();
+		String queue = channel.queueDeclare().getQueue();
+		channel.basicQos(Math.max(1, APIConfig.getInstance().getConfiguration()
+				.getInt(APIConfig.RABBIT_CONSUMER_PREFETCH, 100)));
+		channel.queueBind(queue, exchange, TOPIC_PREFIX + "#");
+		QueueingConsumer consumer = new QueueingConsumer(channel);
+		channel.basicConsume(queue, false, consumer);
+
+		// Catch up on the members reported while we were not listening
+		Map<String, Object> sync = new LinkedHashMap<String, Object>();
+		sync.put("node", node);
+		RabbitPublisher.getInstance().produce(SYNC_TOPIC, JsonMapper.getInstance().toJson(sync));
+		APILogger.getInstance().i(CNAME, "Replicating presence on exchange {}", exchange);
+
+		while (running) {
+			QueueingConsumer.Delivery delivery = consumer.nextDelivery();
+			handle(delivery.getEnvelope().getRoutingKey(), new String(delivery.getBody(), "UTF-8"));
+			channel.basicAck(delivery.getEnvelope().getDeliveryTag(), false);
+		}
+	}
+
+	void handle(String topic, String message) {
+		try {
+			JsonNode json = JsonMapper.getInstance().getMapper().readTree(message);
+			if (json == null || node.equals(json.path("node").getTextValue())) {
+				return;
+			}
+			if (SYNC_TOPIC.equals(topic)) {
+				for (Map.Entry<Integer, List<CollabPresenceStatus>> room : local.getAllPresence().entrySet()) {
+					for (CollabPresenceStatus status : room.getValue()) {
+						publish(room.getKey(), status);
+					}
+				}
+			} else {
+				CollabPresenceStatus status = JsonMapper.getInstance().getMapper()
+						.treeToValue(json.get("status"), CollabPresenceStatus.class);
+				if (status != null && status.getUsername() != null) {
+					local.update(json.path("collabRoomId").getIntValue(), status);
+				}
+			}
+		} catch (Exception e) {
+			APILogger.getInstance().w(CNAME, "Unable to apply presence from topic {}: {}",
+					topic, e.getMessage());
+		}
+	}
+
+	private void closeConnection() {
+		Connection c = connection;
+		connection = null;
+		if (c != null) {
+			try {
+				c.close();
+			} catch (Exception e) {
+				// Already closed.
+			}
+		}
+	}
+}
@@ -44,6 +44,7 @@ import javax.ws.rs.core.Response;
 import org.apache.cxf.jaxrs.ext.multipart.Multipart;
 import org.apache.cxf.jaxrs.ext.multipart.MultipartBody;
 
+import edu.mit.ll.em.api.dataaccess.ResourceVersions;
 import edu.mit.ll.nics.common.entity.datalayer.Datalayer;
 import edu.mit.ll.nics.common.entity.datalayer.Datasource;
 
@@ -53,11 +54,13 @@ public interface DatalayerService {
 	@GET
 	@Path("/{folderId}")
 	@Produces(MediaType.APPLICATION_JSON)
+	@Versioned({ResourceVersions.DATALAYERS, ResourceVersions.FOLDERS})
 	public Response getDatalayers(@PathParam("folderId") String folderId);
 	
 	@GET
 	@Path("/tracking")
 	@Produces(MediaType.APPLICATION_JSON)
+	@Versioned({ResourceVersions.DATALAYERS, ResourceVersions.FOLDERS})
 	public Response getTrackingLayers(@PathParam("workspaceId") int workspaceId);
 	
 	@GET
@@ -77,6 +80,7 @@ public interface DatalayerService {
 	@Path("/sources/{dataSourceId}/layer")
 	@Consumes(MediaType.APPLICATION_JSON)
 	@Produces(MediaType.APPLICATION_JSON)
+	@Versioned(ResourceVersions.DATALAYERS)
 	public Response postDataLayer(
 			@PathParam("workspaceId") int workspaceId,
 			@PathParam("dataSourceId") String dataSourceId,
@@ -85,6 +89,7 @@ public interface DatalayerService {
 	@DELETE
 	@Path("/sources/{dataSourceId}/layer")
 	@Produces(MediaType.APPLICATION_JSON)
+	@Versioned(ResourceVersions.DATALAYERS)
 	public Response deleteDataLayer(
 			@PathParam("workspaceId") int workspaceId,
 			@PathParam("dataSourceId") String dataSourceId);
@@ -93,6 +98,7 @@ public interface DatalayerService {
 	@Path("/sources/layer/update")
 	@Produces(MediaType.APPLICATION_JSON)
 	@Consumes(MediaType.APPLICATION_JSON)
+	@Versioned(ResourceVersions.DATALAYERS)
 	public Response updateDataLayer(
 			@PathParam("workspaceId") int workspaceId,
 			Datalayer datalayer);
@@ -101,6 +107,7 @@ public interface DatalayerService {
 	@Path("/sources/{dataSourceId}/document/{userOrgId}")
 	@Consumes(MediaType.MULTIPART_FORM_DATA)
 	@Produces(MediaType.APPLICATION_JSON)
+	@Versioned(ResourceVersions.DATALAYERS)
 	public Response postDataLayerDocument(
 			@PathParam("workspaceId") int workspaceId,
 			@PathParam("dataSourceId") String dataSourceId,
@@ -119,16 +126,27 @@ public interface DatalayerService {
 			MultipartBody body,
 			@HeaderParam("CUSTOM-uid") String username);
 	
+	@GET
+	@Path("/shapefile/{jobId}")
+	@Produces(MediaType.APPLICATION_JSON)
+	public Response getShapeDataLayerImport(
+			@PathParam("workspaceId") int workspaceId,
+			@PathParam("jobId") String jobId,
+			@HeaderParam("CUSTOM-uid") String username);
+	
 	
 	@GET
 	@Path("/sources/{type}")
 	@Produces(MediaType.APPLICATION_JSON)
+	@Versioned(ResourceVersions.DATASOURCES)
+	@CachedResponse
 	public Response getDatasources(@PathParam("type") String type);
 	
 	@POST
 	@Path("/sources/{type}")
 	@Consumes(MediaType.APPLICATION_JSON)
 	@Produces(MediaType.APPLICATION_JSON)
+	@Versioned({ResourceVersions.DATASOURCES, ResourceVersions.DATALAYERS})
 	public Response postDatasource(
 			@PathParam("type") String type,
 			Datasource dataSource);
@@ -113,6 +113,16 @@ public interface FeatureService {
 			@DefaultValue("3857") @QueryParam("geoType") int geoType,
 			@HeaderParam("CUSTOM-uid") String username);
 	
+	@GET
+	@Produces(MediaType.APPLICATION_JSON)
+	@Path(value = "/collabroom/{collabRoomId}/sync")
+	public Response syncCollabroomFeatures(
+			@PathParam("collabRoomId") int collabRoomId,
+			@QueryParam("userId") long userId,
+			@QueryParam("token") String token,
+			@DefaultValue("3857") @QueryParam("geoType") int geoType,
+			@HeaderParam("CUSTOM-uid") String username);
+	
 	@GET
 	@Produces(MediaType.APPLICATION_JSON)
 	@Path(value = "/user/{userId}")
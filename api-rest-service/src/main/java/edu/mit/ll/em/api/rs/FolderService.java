@@ -40,6 +40,7 @@ import javax.ws.rs.QueryParam;
 import javax.ws.rs.core.MediaType;
 import javax.ws.rs.core.Response;
 
+import edu.mit.ll.em.api.dataaccess.ResourceVersions;
 import edu.mit.ll.nics.common.entity.datalayer.Folder;
 
 @Path("/folder/{workspaceId}")
@@ -47,6 +48,7 @@ public interface FolderService {
 	@GET
 	@Path(value = "/name/{folderName}")
 	@Produces(MediaType.APPLICATION_JSON)
+	@Versioned({ResourceVersions.FOLDERS, ResourceVersions.DATALAYERS})
 	public Response getFolderData(
 			@PathParam("workspaceId") int workspaceId,
 			@PathParam("folderName") String folderName);
@@ -54,6 +56,7 @@ public interface FolderService {
 	@GET
 	@Path(value = "/id/{folderId}")
 	@Produces(MediaType.APPLICATION_JSON)
+	@Versioned({ResourceVersions.FOLDERS, ResourceVersions.DATALAYERS})
 	public Response getChildFolders(
 			@PathParam("workspaceId") int workspaceId,
 			@PathParam("folderId") String folderId);
@@ -62,6 +65,7 @@ public interface FolderService {
 	@Path(value = "/create")
 	@Consumes(MediaType.APPLICATION_JSON)
 	@Produces(MediaType.APPLICATION_JSON)
+	@Versioned(ResourceVersions.FOLDERS)
 	public Response postFolder(
 			@PathParam("workspaceId") int workspaceId,
 			Folder folder);
@@ -70,6 +74,7 @@ public interface FolderService {
 	@Path(value = "/update")
 	@Consumes(MediaType.APPLICATION_JSON)
 	@Produces(MediaType.APPLICATION_JSON)
+	@Versioned(ResourceVersions.FOLDERS)
 	public Response updateFolder(
 			@PathParam("workspaceId") int workspaceId,
 			Folder folder);
@@ -77,6 +82,7 @@ public interface FolderService {
 	@DELETE
 	@Path(value = "/{folderId}")
 	@Produces(MediaType.APPLICATION_JSON)
+	@Versioned(ResourceVersions.FOLDERS)
 	public Response deleteFolder(
 			@PathParam("workspaceId") int workspaceId,
 			@PathParam("folderId") String folderId);
@@ -84,6 +90,7 @@ public interface FolderService {
 	@POST
 	@Path(value = "/move/{parentFolderId}")
 	@Produces(MediaType.APPLICATION_JSON)
+	@Versioned({ResourceVersions.FOLDERS, ResourceVersions.DATALAYERS})
 	public Response moveFolder(
 			@PathParam("workspaceId") int workspaceId,
 			@PathParam("parentFolderId") String parentFolderId,
@@ -46,6 +46,7 @@ import javax.ws.rs.core.Response;
 
 import org.springframework.dao.DataAccessException;
 
+import edu.mit.ll.em.api.dataaccess.ResourceVersions;
 import edu.mit.ll.em.api.exception.DuplicateCollabRoomException;
 import edu.mit.ll.nics.common.entity.Incident;
 
@@ -53,6 +54,7 @@ import edu.mit.ll.nics.common.entity.Incident;
 public interface IncidentService {
 	@GET
 	@Produces(MediaType.APPLICATION_JSON)
+	@Versioned(ResourceVersions.INCIDENTS)
 	public Response getIncidents(
 			@PathParam("workspaceId") Integer workspaceId,
 			@QueryParam("accessibleByUserId") Integer userId);
@@ -60,6 +62,7 @@ public interface IncidentService {
 	@GET
 	@Produces(MediaType.APPLICATION_JSON)
 	@Path(value = "/getincidenttree")
+	@Versioned(ResourceVersions.INCIDENTS)
 	public Response getIncidentsTree(
 			@PathParam("workspaceId") Integer workspaceId,
 			@QueryParam("accessibleByUserId") Integer userId);
@@ -67,11 +70,13 @@ public interface IncidentService {
 	@GET
 	@Produces(MediaType.APPLICATION_JSON)
 	@Path(value = "/incidentorgs")
+	@Versioned(ResourceVersions.INCIDENTS)
 	public Response getIncidentOrgs(
 			@PathParam("workspaceId") Integer workspaceId);
 	@GET
 	@Produces(MediaType.APPLICATION_JSON)
 	@Path(value = "/archived/{orgId}")
+	@Versioned(ResourceVersions.INCIDENTS)
 	public Response getArchivedIncidents(
 			@PathParam("workspaceId") Integer workspaceId,
 			@PathParam("orgId") Integer orgId);
@@ -79,6 +84,7 @@ public interface IncidentService {
 	@GET
 	@Produces(MediaType.APPLICATION_JSON)
 	@Path(value = "/active/{orgId}")
+	@Versioned(ResourceVersions.INCIDENTS)
 	public Response getActiveIncidents(
 			@PathParam("workspaceId") Integer workspaceId,
 			@PathParam("orgId") Integer orgId);
@@ -86,6 +92,7 @@ public interface IncidentService {
 	@GET
 	@Produces(MediaType.APPLICATION_JSON)
 	@Path(value = "/find")
+	@Versioned(ResourceVersions.INCIDENTS)
 	public Response findArchivedIncidents(
 			@PathParam("workspaceId") Integer workspaceId, 
 			@QueryParam("orgPrefix") String orgPrefix, 
@@ -95,6 +102,7 @@ public interface IncidentService {
 	@Consumes(MediaType.APPLICATION_JSON)
 	@Produces(MediaType.APPLICATION_JSON)
 	@Path(value = "/update")
+	@Versioned(ResourceVersions.INCIDENTS)
 	public Response updateIncident(
 			@PathParam("workspaceId") Integer workspaceId,
 			Incident incident);
@@ -103,6 +111,7 @@ public interface IncidentService {
 	@Consumes(MediaType.APPLICATION_JSON)
 	@Produces(MediaType.APPLICATION_JSON)
 	@Path(value = "/archive/{incidentId}")
+	@Versioned(ResourceVersions.INCIDENTS)
 	public Response archiveIncident(
 			@PathParam("workspaceId") int workspaceId,
 			@PathParam("incidentId") int incidentId,
@@ -112,6 +121,7 @@ public interface IncidentService {
 	@Consumes(MediaType.APPLICATION_JSON)
 	@Produces(MediaType.APPLICATION_JSON)
 	@Path(value = "/activate/{incidentId}")
+	@Versioned(ResourceVersions.INCIDENTS)
 	public Response activateIncident(
 			@PathParam("workspaceId") int workspaceId,
 			@PathParam("incidentId") int incidentId,
@@ -131,6 +141,7 @@ public interface IncidentService {
 	@POST
 	@Consumes(MediaType.APPLICATION_JSON)
 	@Produces(MediaType.APPLICATION_JSON)
+	@Versioned(ResourceVersions.INCIDENTS)
 	public Response postIncident(
 			@PathParam("workspaceId") Integer workspaceId,
 			@QueryParam("orgId") Integer orgId,
@@ -141,6 +152,7 @@ public interface IncidentService {
 	@GET
 	@Path(value = "/getincidentbyname")
 	@Produces(MediaType.APPLICATION_JSON)
+	@Versioned(ResourceVersions.INCIDENTS)
 	public Response getIncident(
 			@PathParam("workspaceId") Integer workspaceId,
 			@QueryParam("incidentName") String incidentName);
@@ -73,6 +73,12 @@ public interface MDTrackService {
 	@Produces(MediaType.APPLICATION_JSON)
 	public Response postMDTrack(@CookieParam("iPlanetDirectoryPro") Cookie cookie, MDTrack mdtrack);
 
+	@POST
+	@Path(value = "/batch")
+	@Consumes(MediaType.APPLICATION_JSON)
+	@Produces(MediaType.APPLICATION_JSON)
+	public Response postMDTracks(@CookieParam("iPlanetDirectoryPro") Cookie cookie, Collection<MDTrack> mdtracks);
+
 	@GET
 	@Path(value = "/count")
 	@Produces(MediaType.APPLICATION_JSON)
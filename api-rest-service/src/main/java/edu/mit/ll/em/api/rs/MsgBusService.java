@@ -34,11 +34,15 @@ import java.util.Map;
 
 import javax.ws.rs.Consumes;
 import javax.ws.rs.DELETE;
+import javax.ws.rs.DefaultValue;
 import javax.ws.rs.GET;
 import javax.ws.rs.POST;
 import javax.ws.rs.Path;
 import javax.ws.rs.PathParam;
 import javax.ws.rs.Produces;
+import javax.ws.rs.QueryParam;
+import javax.ws.rs.container.AsyncResponse;
+import javax.ws.rs.container.Suspended;
 import javax.ws.rs.core.MediaType;
 import javax.ws.rs.core.Response;
 
@@ -46,15 +50,39 @@ import edu.mit.ll.em.api.rs.MsgEnvelope;
 
 @Path("/msgbus")
 public interface MsgBusService {
+	
+	public static final String EVENT_STREAM = "text/event-stream";
+	
 	/**
-	 * Get all messages in the user's bus.
+	 * Get all messages in the user's bus. With a wait time and no messages in the
+	 * bus, the response is held, without holding a thread, until messages are
+	 * posted or the time runs out.
 	 * @param userId Identifies the user
-	 * @return List of messages embedded in the Response. Each message is wrapped in a MsgEnvelope.
+	 * @param waitSecs Seconds to wait for messages, 0 to answer right away
+	 * @param response List of messages embedded in the Response. Each message is wrapped in a MsgEnvelope.
 	 */
 	@GET
 	@Path(value = "/{userId}/")
 	@Produces(MediaType.APPLICATION_JSON)
-	public Response getMsgs(@PathParam("userId") long userId);
+	public void getMsgs(@PathParam("userId") long userId,
+			@DefaultValue("0") @QueryParam("wait") int waitSecs,
+			@Suspended AsyncResponse response);
+
+	/**
+	 * Get the messages in the user's bus as Server-Sent Events, one event per
+	 * message named after its type, with the MsgEnvelope as JSON data. The
+	 * response is held until messages are posted or the wait time runs out, and
+	 * tells the EventSource to reconnect right away for the next events.
+	 * @param userId Identifies the user
+	 * @param waitSecs Seconds to wait for messages
+	 * @param response Event stream
+	 */
+	@GET
+	@Path(value = "/{userId}/events")
+	@Produces(MsgBusService.EVENT_STREAM)
+	public void getMsgEvents(@PathParam("userId") long userId,
+			@DefaultValue("30") @QueryParam("wait") int waitSecs,
+			@Suspended AsyncResponse response);
 
 	/**
 	 * Post messages to the user's bus.
@@ -38,6 +38,7 @@ import javax.ws.rs.QueryParam;
 import javax.ws.rs.core.MediaType;
 import javax.ws.rs.core.Response;
 
+import edu.mit.ll.em.api.dataaccess.ResourceVersions;
 import edu.mit.ll.nics.common.entity.Org;
 
 @Path("/orgs/{workspaceId}")
@@ -59,11 +60,15 @@ public interface OrganizationService {
 	@GET
 	@Produces(MediaType.APPLICATION_JSON)
 	@Path("/types")
+	@Versioned(ResourceVersions.ORGANIZATION_TYPES)
+	@CachedResponse
 	public Response getOrganizationTypes();
 	
 	@GET
 	@Produces(MediaType.APPLICATION_JSON)
 	@Path("/typemap")
+	@Versioned(ResourceVersions.ORGANIZATION_TYPES)
+	@CachedResponse
 	public Response getOrganizationTypeMap();
 	
 
@@ -80,11 +85,13 @@ public interface OrganizationService {
 
 	@POST
 	@Produces(MediaType.APPLICATION_JSON)
+	@Versioned(ResourceVersions.ORGANIZATION_TYPES)
 	public Response postOrganization(Org org);
 	
 	@POST
 	@Produces(MediaType.APPLICATION_JSON)
 	@Path("/orgtype/add/{orgId}/{orgTypeId}")
+	@Versioned(ResourceVersions.ORGANIZATION_TYPES)
 	public Response postOrgOrgType(
 			@PathParam("orgId") int orgId,
 			@PathParam("orgTypeId") int orgTypeId);
@@ -92,6 +99,7 @@ public interface OrganizationService {
 	@POST
 	@Produces(MediaType.APPLICATION_JSON)
 	@Path("/orgtype/remove/{orgId}/{orgTypeId}")
+	@Versioned(ResourceVersions.ORGANIZATION_TYPES)
 	public Response removeOrgOrgType(
 			@PathParam("orgId") int orgId,
 			@PathParam("orgTypeId") int orgTypeId);
@@ -45,6 +45,7 @@ import javax.ws.rs.core.Response;
 
 import org.apache.cxf.jaxrs.ext.multipart.MultipartBody;
 
+import edu.mit.ll.em.api.dataaccess.ResourceVersions;
 import edu.mit.ll.em.api.rs.Report;
 import edu.mit.ll.nics.common.entity.Form;
 
@@ -101,6 +102,8 @@ public interface ReportService {
 	@GET
 	@Path(value = "/types")
 	@Produces(MediaType.APPLICATION_JSON)
+	@Versioned(ResourceVersions.REPORT_TYPES)
+	@CachedResponse
 	public Response getReportTypes();
 
 	@GET
@@ -43,6 +43,7 @@ import javax.ws.rs.QueryParam;
 import javax.ws.rs.core.MediaType;
 import javax.ws.rs.core.Response;
 
+import edu.mit.ll.em.api.dataaccess.ResourceVersions;
 import edu.mit.ll.em.api.rs.RegisterUser;
 import edu.mit.ll.em.api.rs.User;
 
@@ -55,6 +56,8 @@ public interface UserService {
 	@GET
 	@Produces(MediaType.APPLICATION_JSON)
 	@Path("/systemroles")
+	@Versioned(ResourceVersions.SYSTEM_ROLES)
+	@CachedResponse
 	public Response getSystemRoles();
 	
 	@GET
@@ -45,6 +45,7 @@ import org.w3c.dom.Document;
 import org.w3c.dom.Node;
 import org.w3c.dom.NodeList;
 
+import edu.mit.ll.em.api.metrics.InstrumentedDao;
 import edu.mit.ll.em.api.util.APIConfig;
 import edu.mit.ll.em.api.util.SADisplayConstants;
 import edu.mit.ll.nics.common.entity.CollabRoom;
@@ -66,7 +67,7 @@ public abstract class GetCapabilitiesExportFile extends DatalayerExportFile{
 	protected XPath xPath;
 	protected Document response;
 	
-	private static final CollabRoomDAOImpl collabRoomDao = new CollabRoomDAOImpl();
+	private static final CollabRoomDAOImpl collabRoomDao = InstrumentedDao.wrap(new CollabRoomDAOImpl());
 	
 	/** Build a filtered getCapabilities document
 	 * @param exportFormat - wms or wf
@@ -35,6 +35,7 @@ import javax.ws.rs.core.Response.Status;
 import edu.mit.ll.nics.common.entity.Log;
 import edu.mit.ll.nics.nicsdao.impl.LogDAOImpl;
 import edu.mit.ll.nics.nicsdao.impl.UserOrgDAOImpl;
+import edu.mit.ll.em.api.metrics.InstrumentedDao;
 import edu.mit.ll.em.api.rs.AnnouncementService;
 import edu.mit.ll.em.api.rs.LogServiceResponse;
 import edu.mit.ll.em.api.util.SADisplayConstants;
@@ -51,8 +52,8 @@ public class AnnouncementServiceImpl implements AnnouncementService {
 	private static String DELETE_ERROR_MESSAGE = "An error occurred while attempting to delete an announcement.";
 	
 	/** User DAO */
-	private static final UserOrgDAOImpl userOrgDao = new UserOrgDAOImpl();
-	private static final LogDAOImpl logDao = new LogDAOImpl();
+	private static final UserOrgDAOImpl userOrgDao = InstrumentedDao.wrap(new UserOrgDAOImpl());
+	private static final LogDAOImpl logDao = InstrumentedDao.wrap(new LogDAOImpl());
 
 	@Override
 	public Response postAnnouncement(int workspaceId, Log log, String username) {
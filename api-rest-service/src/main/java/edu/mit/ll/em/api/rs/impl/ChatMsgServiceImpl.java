@@ -37,14 +37,15 @@ import java.util.List;
 import javax.ws.rs.core.Response;
 import javax.ws.rs.core.Response.Status;
 
+import edu.mit.ll.em.api.dataaccess.RabbitPublisher;
+import edu.mit.ll.em.api.dataaccess.EntityCacheMgr;
+import edu.mit.ll.em.api.metrics.InstrumentedDao;
 import edu.mit.ll.em.api.util.APIConfig;
+import edu.mit.ll.em.api.util.JsonMapper;
 import edu.mit.ll.em.api.util.SADisplayConstants;
-import edu.mit.ll.nics.common.rabbitmq.RabbitFactory;
-import edu.mit.ll.nics.common.rabbitmq.RabbitPubSubProducer;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
-import org.codehaus.jackson.map.ObjectMapper;
 
 import edu.mit.ll.em.api.rs.ChatMsgService;
 import edu.mit.ll.em.api.rs.ChatMsgServiceResponse;
@@ -53,8 +54,6 @@ import edu.mit.ll.em.api.rs.QueryConstraintHelper;
 import edu.mit.ll.nics.common.entity.Chat;
 import edu.mit.ll.nics.nicsdao.ChatDAO;
 import edu.mit.ll.nics.nicsdao.impl.ChatDAOImpl;
-import edu.mit.ll.nics.nicsdao.impl.CollabRoomDAOImpl;
-import edu.mit.ll.nics.nicsdao.impl.UserDAOImpl;
 import edu.mit.ll.nics.nicsdao.query.QueryConstraint.OrderBy;
 import edu.mit.ll.nics.nicsdao.query.QueryConstraint.ResultSetPage;
 import edu.mit.ll.nics.nicsdao.query.QueryConstraint.UTCRange;
@@ -67,18 +66,11 @@ import edu.mit.ll.nics.nicsdao.query.QueryConstraint.UTCRange;
 public class ChatMsgServiceImpl implements ChatMsgService {
 
 	/** Chat DAO */
-	private static final ChatDAO chatDao = new ChatDAOImpl();
+	private static final ChatDAO chatDao = InstrumentedDao.wrap(new ChatDAOImpl());
 	
-	/** CollabRoom DAO */
-	private static final CollabRoomDAOImpl collabDao = new CollabRoomDAOImpl();
-	
-	/** CollabRoom DAO */
-	private static final UserDAOImpl userDao = new UserDAOImpl();
 	
 	private static final Log logger = LogFactory.getLog(ChatMsgServiceImpl.class);
 	
-	private RabbitPubSubProducer rabbitProducer;
-	
 	
 	/**
 	 * Retrieve chat messages from the specified collab room
@@ -93,7 +85,7 @@ public class ChatMsgServiceImpl implements ChatMsgService {
 		String incidentMap = APIConfig.getInstance().getConfiguration().getString(
 				APIConfig.INCIDENT_MAP, SADisplayConstants.INCIDENT_MAP);
 		
-		if(!collabDao.hasPermissions(userDao.getUserId(requestingUser), collabroomId, incidentMap)){
+		if(!EntityCacheMgr.getInstance().hasPermissions(requestingUser, collabroomId, incidentMap)){
 			return getInvalidResponse();
 		}
 		
@@ -122,7 +114,7 @@ public class ChatMsgServiceImpl implements ChatMsgService {
 	 */
 	public Response postChatMsg(int collabroomId, Chat chat, String requestingUser) {
 		
-		if(!collabDao.hasPermissions(userDao.getUserId(requestingUser), collabroomId)){
+		if(!EntityCacheMgr.getInstance().hasPermissions(requestingUser, collabroomId)){
 			return getInvalidResponse();
 		}
 
@@ -162,21 +154,13 @@ public class ChatMsgServiceImpl implements ChatMsgService {
 	private void notifyChange(Chat chat) throws IOException {
 		if (chat != null) {
 			String topic = String.format("iweb.NICS.collabroom.%s.chat", chat.getCollabroomid());
-			ObjectMapper mapper = new ObjectMapper();
-			String message = mapper.writeValueAsString(chat);
+			String message = JsonMapper.getInstance().toJson(chat);
 			getRabbitProducer().produce(topic, message);
 		}
 	}
 	
-	private RabbitPubSubProducer getRabbitProducer() throws IOException {
-		if (rabbitProducer == null) {
-			rabbitProducer = RabbitFactory.makeRabbitPubSubProducer(
-					APIConfig.getInstance().getConfiguration().getString(APIConfig.RABBIT_HOSTNAME_KEY),
-					APIConfig.getInstance().getConfiguration().getString(APIConfig.RABBIT_EXCHANGENAME_KEY),
-					APIConfig.getInstance().getConfiguration().getString(APIConfig.RABBIT_USERNAME_KEY),
-					APIConfig.getInstance().getConfiguration().getString(APIConfig.RABBIT_USERPWD_KEY));
-		}
-		return rabbitProducer;
+	private RabbitPublisher getRabbitProducer() {
+		return RabbitPublisher.getInstance();
 	}
 	
 	private Response getInvalidResponse(){
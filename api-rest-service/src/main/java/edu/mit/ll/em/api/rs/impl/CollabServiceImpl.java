@@ -32,28 +32,27 @@ package edu.mit.ll.em.api.rs.impl;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Calendar;
 import java.util.Collection;
-import java.util.Collections;
 import java.util.Date;
-import java.util.Iterator;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.ConcurrentMap;
 
 import javax.ws.rs.HeaderParam;
 import javax.ws.rs.PathParam;
 import javax.ws.rs.core.Response;
 import javax.ws.rs.core.Response.Status;
 
+import edu.mit.ll.em.api.dataaccess.RabbitPublisher;
+import edu.mit.ll.em.api.dataaccess.EntityCacheMgr;
+import edu.mit.ll.em.api.dataaccess.ICSDatastoreException;
+import edu.mit.ll.em.api.metrics.InstrumentedDao;
+import edu.mit.ll.em.api.presence.PresenceStoreFactory;
 import edu.mit.ll.em.api.util.APIConfig;
-import edu.mit.ll.nics.common.rabbitmq.RabbitFactory;
-import edu.mit.ll.nics.common.rabbitmq.RabbitPubSubProducer;
+import edu.mit.ll.em.api.util.JsonMapper;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
-import org.codehaus.jackson.map.ObjectMapper;
 import org.springframework.dao.DataAccessException;
 
 import edu.mit.ll.em.api.exception.DuplicateCollabRoomException;
@@ -77,23 +76,17 @@ import edu.mit.ll.nics.nicsdao.impl.UserOrgDAOImpl;
 public class CollabServiceImpl implements CollabService {
 
 	/** CollabRoom DAO */
-	private static final CollabRoomDAOImpl collabDao = new CollabRoomDAOImpl();
+	private static final CollabRoomDAOImpl collabDao = InstrumentedDao.wrap(new CollabRoomDAOImpl());
 	
 	/** User DAO */
-	private static final UserOrgDAOImpl userOrgDao = new UserOrgDAOImpl();
-	private static final UserDAOImpl userDao = new UserDAOImpl();
-	private static final OrgDAOImpl orgDao = new OrgDAOImpl();
-	private static final IncidentDAOImpl incidentDao = new IncidentDAOImpl();
+	private static final UserOrgDAOImpl userOrgDao = InstrumentedDao.wrap(new UserOrgDAOImpl());
+	private static final UserDAOImpl userDao = InstrumentedDao.wrap(new UserDAOImpl());
+	private static final OrgDAOImpl orgDao = InstrumentedDao.wrap(new OrgDAOImpl());
+	private static final IncidentDAOImpl incidentDao = InstrumentedDao.wrap(new IncidentDAOImpl());
 	
 	private static final Log logger = LogFactory.getLog(CollabServiceImpl.class);
 	
-	private RabbitPubSubProducer rabbitProducer;
-	
-	private static final int EXPECTED_ROOMS = 20;
-	private static final int EXPECTED_PARTICIPANTS = 20;
 	private static final String SECURE_ROOMS_ERROR = "One or more users failed to be added to the collaboration room";
-	private ConcurrentMap<Integer, ConcurrentMap<String, CollabPresenceStatus>> statuses =
-			new ConcurrentHashMap<Integer, ConcurrentMap<String, CollabPresenceStatus>>(EXPECTED_ROOMS);
 	
 	
 	
@@ -123,9 +116,11 @@ public class CollabServiceImpl implements CollabService {
 			
 			List<CollabRoom> collabRooms = collabDao.getAccessibleCollabRooms(userId, incidentId, incidentMap);
 			
+			Map<Integer, Integer> roles = getCollabRoomRoles(userId, incidentId, secureRooms);
+			
 			for(CollabRoom room : secureRooms){
 				if(room.getName().equalsIgnoreCase(incidentMap)){
-					int roleId = collabDao.getCollabRoomSystemRole(room.getCollabRoomId(), userId);
+					int roleId = getSystemRole(roles, room.getCollabRoomId());
 					if(roleId == SADisplayConstants.USER_ROLE_ID){
 						room.setReadWriteUsers(Arrays.asList(userId));
 					}else if(roleId == SADisplayConstants.ADMIN_ROLE_ID){
@@ -135,7 +130,7 @@ public class CollabServiceImpl implements CollabService {
 					room.setIncidentMapAdmins(incidentDao.getIncidentMapAdmins(incidentId, incidentMap));
 					collabRooms.add(0, room);
 				}else{
-					if(collabDao.getCollabRoomSystemRole(room.getCollabRoomId(), userId) ==
+					if(getSystemRole(roles, room.getCollabRoomId()) ==
 						SADisplayConstants.ADMIN_ROLE_ID){
 						adminRooms.add(room.getCollabRoomId());
 					}
@@ -158,6 +153,46 @@ public class CollabServiceImpl implements CollabService {
 		return response;
 	}
 	
+	/**
+	 * Reads the user's role in every secured room of the incident with a single
+	 * query, cached until the permissions of one of the rooms change. Falls back
+	 * to one query per room should the bulk read fail.
+	 */
+	private Map<Integer, Integer> getCollabRoomRoles(int userId, int incidentId, List<CollabRoom> secureRooms) {
+		try {
+			return EntityCacheMgr.getInstance().getCollabRoomRoles(userId, incidentId);
+		} catch (ICSDatastoreException e) {
+			logger.warn("Reading CollabRoom roles one room at a time: " + e.getMessage());
+			Map<Integer, Integer> roles = new HashMap<Integer, Integer>();
+			for (CollabRoom room : secureRooms) {
+				roles.put(room.getCollabRoomId(),
+						collabDao.getCollabRoomSystemRole(room.getCollabRoomId(), userId));
+			}
+			return roles;
+		}
+	}
+	
+	private static int getSystemRole(Map<Integer, Integer> roles, int collabRoomId) {
+		Integer roleId = roles.get(collabRoomId);
+		return (roleId == null) ? -1 : roleId;
+	}
+	
+	/**
+	 * Drops the cached permission decisions of every user on the room, and the
+	 * cached roles of every user on its incident
+	 */
+	private void evictPermissions(int collabRoomId) {
+		EntityCacheMgr.getInstance().evictCollabRoomPermissions(collabRoomId);
+		try {
+			EntityCacheMgr.getInstance().evictCollabRoomRoles(
+					EntityCacheMgr.getInstance().getCollabRoomEntity(collabRoomId).getIncidentid());
+		} catch (Exception e) {
+			logger.warn("Unable to find the incident of CollabRoom " + collabRoomId +
+					", flushing all CollabRoom roles: " + e.getMessage());
+			EntityCacheMgr.getInstance().evictAllCollabRoomRoles();
+		}
+	}
+	
 	//Not an endpoint. Method used by other EM-API classes to create a room
 	public Response createCollabRoomWithPermissions(int incidentId, int orgId, int workspaceId, CollabRoom collabroom){
 		return this.postCollabRoomWithPermissions(incidentId, orgId, workspaceId, collabroom);
@@ -263,25 +298,7 @@ public class CollabServiceImpl implements CollabService {
 	public Response getCollabRoomPresence(int incidentId, int collabroomId) {
 		CollabServiceResponse collabResponse = new CollabServiceResponse();
 		
-		Date idleTime = getIdleTime();
-		Date missingTime = getMissingTime();
-		
-		ConcurrentMap<String, CollabPresenceStatus> members = statuses.get(collabroomId);
-		
-		Collection<CollabPresenceStatus> userStatuses = Collections.<CollabPresenceStatus>emptyList();
-		if (members != null) {
-			userStatuses = members.values(); 
-		}
-		
-		Iterator<CollabPresenceStatus> i = userStatuses.iterator();
-		while(i.hasNext()) {
-			CollabPresenceStatus status = i.next();
-			if (status.getTimestamp().before(missingTime)) {
-				i.remove();
-			} else if (status.getTimestamp().before(idleTime)) {
-				status.setStatus(CollabPresenceStatus.Status.IDLE);
-			}
-		}
+		Collection<CollabPresenceStatus> userStatuses = PresenceStoreFactory.getStore().getPresence(collabroomId);
 		
 		collabResponse.setResults(userStatuses);
 		collabResponse.setCount(userStatuses.size());
@@ -298,26 +315,10 @@ public class CollabServiceImpl implements CollabService {
 		}
 		status.setTimestamp(new Date());
 		
-		
-		ConcurrentMap<String, CollabPresenceStatus> members = statuses.get(collabroomId);
-		if (members == null) {
-			members = new ConcurrentHashMap<String, CollabPresenceStatus>(EXPECTED_PARTICIPANTS);
-			
-			ConcurrentMap<String, CollabPresenceStatus> previous = statuses.putIfAbsent(collabroomId, members);
-			if (previous != null) {
-				members = previous;
-			}
-		}
-		
-		CollabPresenceStatus oldStatus = null;
-		if (CollabPresenceStatus.Status.LEAVING.equals(status.getStatus())) {
-			oldStatus = members.remove(status.getUsername());
-		} else {
-			oldStatus = members.put(status.getUsername(), status);
-		}
+		CollabPresenceStatus.Status oldStatus = PresenceStoreFactory.getStore().update(collabroomId, status);
 		
 		//fire presence change on new users and changes
-		if (oldStatus == null || !status.getStatus().equals(oldStatus.getStatus()) ) {
+		if (oldStatus == null || !status.getStatus().equals(oldStatus) ) {
 			try {
 				notifyChange(incidentId, collabroomId, status);
 			} catch (IOException e) {
@@ -334,10 +335,10 @@ public class CollabServiceImpl implements CollabService {
 		
 		Response response = null;
 		CollabRoomPermissionResponse collabResponse = new CollabRoomPermissionResponse();
-		long userId = userDao.getUserId(username);
+		long userId = EntityCacheMgr.getInstance().getUserId(username);
 		
 		//verify the user has permissions
-		if(collabDao.hasPermissions(userId, collabRoomId, incidentMap)){ //Everyone can susbscribe to the incidentmap
+		if(EntityCacheMgr.getInstance().hasPermissions(username, collabRoomId, incidentMap)){ //Everyone can susbscribe to the incidentmap
 			response = Response.ok(collabResponse).status(Status.OK).build();
 		}else{
 			response = Response.status(Status.BAD_REQUEST).entity(Status.FORBIDDEN.getReasonPhrase()).build();
@@ -348,7 +349,7 @@ public class CollabServiceImpl implements CollabService {
 	
 	public Response updateCollabRoomPermission(FieldMapResponse secureUsers, int collabRoomId, long userId, 
 			int orgId, int workspaceId, String username){
-		if(userDao.getUserId(username) != userId){
+		if(EntityCacheMgr.getInstance().getUserId(username) != userId){
 			return Response.status(Status.BAD_REQUEST).entity(Status.FORBIDDEN.getReasonPhrase()).build();
 		}
 		
@@ -384,13 +385,14 @@ public class CollabServiceImpl implements CollabService {
 		Response response = null;
 		CollabRoomPermissionResponse collabResponse = new CollabRoomPermissionResponse();
 		
-		if(userDao.getUserId(username) != userId){
+		if(EntityCacheMgr.getInstance().getUserId(username) != userId){
 			return Response.status(Status.BAD_REQUEST).entity(Status.FORBIDDEN.getReasonPhrase()).build();
 		}
 		
 		//verify the user has permissions
 		if(collabDao.hasPermissions(userId, collabRoomId)){
 			if(collabDao.unsecureRoom(collabRoomId)){
+				evictPermissions((int) collabRoomId);
 				collabResponse.setMessage(Status.OK.getReasonPhrase());
 				response = Response.ok(collabResponse).status(Status.OK).build();
 			}else{
@@ -453,13 +455,14 @@ public class CollabServiceImpl implements CollabService {
 		}catch(Exception e){
 			collabResponse.setMessage("Unhandled exception: " + e.getMessage());
 		}
+		evictPermissions(collabRoomId);
 		return collabResponse;
 	}
 	
 	public Response getCollabRoomSecureUsers(int collabRoomId, String username){
 		Response response = null;
 		
-		if(collabDao.hasPermissions(userDao.getUserId(username), collabRoomId)){
+		if(collabDao.hasPermissions(EntityCacheMgr.getInstance().getUserId(username), collabRoomId)){
 			FieldMapResponse dataResponse = new FieldMapResponse();
 	        dataResponse.setData(collabDao.getCollabRoomSecureUsers(collabRoomId));
 			
@@ -477,7 +480,7 @@ public class CollabServiceImpl implements CollabService {
 		Response response = null;
 		FieldMapResponse dataResponse = new FieldMapResponse();
         
-		if(collabRoomId != -1 && collabDao.hasPermissions(userDao.getUserId(username), collabRoomId)){
+		if(collabRoomId != -1 && collabDao.hasPermissions(EntityCacheMgr.getInstance().getUserId(username), collabRoomId)){
 			dataResponse.setData(collabDao.getUsersWithoutPermission(collabRoomId, orgId, workspaceId));
 			
 			dataResponse.setMessage(Status.OK.getReasonPhrase());
@@ -507,23 +510,10 @@ public class CollabServiceImpl implements CollabService {
 		return collabDao.getCollabRoomById(newCollabId);
 	}
 	
-	private Date getIdleTime() {
-		Calendar cal = Calendar.getInstance();
-		cal.add(Calendar.MINUTE, -5);
-		return cal.getTime();
-	}
-	
-	private Date getMissingTime() {
-		Calendar cal = Calendar.getInstance();
-		cal.add(Calendar.MINUTE, -15);
-		return cal.getTime();
-	}
-	
 	private void notifyChange(CollabRoom collabroom) throws IOException {
 		if (collabroom != null) {
 			String topic = String.format("iweb.NICS.incident.%s.newcollabroom", collabroom.getIncidentid());
-			ObjectMapper mapper = new ObjectMapper();
-			String message = mapper.writeValueAsString(collabroom);
+			String message = JsonMapper.getInstance().toJson(collabroom);
 			getRabbitProducer().produce(topic, message);
 		}
 	}
@@ -531,8 +521,7 @@ public class CollabServiceImpl implements CollabService {
 	private void notifyUpdateChange(CollabRoom collabroom) throws IOException {
 		if (collabroom != null) {
 			String topic = String.format("iweb.NICS.incident.%s.updatedcollabroom", collabroom.getIncidentid());
-			ObjectMapper mapper = new ObjectMapper();
-			String message = mapper.writeValueAsString(collabroom);
+			String message = JsonMapper.getInstance().toJson(collabroom);
 			getRabbitProducer().produce(topic, message);
 		}
 	}
@@ -540,21 +529,13 @@ public class CollabServiceImpl implements CollabService {
 	private void notifyChange(int incidentId, int collabroomId, CollabPresenceStatus status) throws IOException {
 		if (status != null) {
 			String topic = String.format("iweb.NICS.collabroom.%s.presence", collabroomId);
-			ObjectMapper mapper = new ObjectMapper();
-			String message = mapper.writeValueAsString(status);
+			String message = JsonMapper.getInstance().toJson(status);
 			getRabbitProducer().produce(topic, message);
 		}
 	}
 	
-	private RabbitPubSubProducer getRabbitProducer() throws IOException {
-		if (rabbitProducer == null) {
-			rabbitProducer = RabbitFactory.makeRabbitPubSubProducer(
-					APIConfig.getInstance().getConfiguration().getString(APIConfig.RABBIT_HOSTNAME_KEY),
-					APIConfig.getInstance().getConfiguration().getString(APIConfig.RABBIT_EXCHANGENAME_KEY),
-					APIConfig.getInstance().getConfiguration().getString(APIConfig.RABBIT_USERNAME_KEY),
-							APIConfig.getInstance().getConfiguration().getString(APIConfig.RABBIT_USERPWD_KEY));
-		}
-		return rabbitProducer;
+	private RabbitPublisher getRabbitProducer() {
+		return RabbitPublisher.getInstance();
 	}
 }
 
@@ -38,6 +38,8 @@ import java.util.Set;
 
 import com.vividsolutions.jts.geom.Envelope;
 
+import edu.mit.ll.em.api.dataaccess.EntityCacheMgr;
+import edu.mit.ll.em.api.metrics.InstrumentedDao;
 import edu.mit.ll.em.api.rs.DatalayerExport;
 import edu.mit.ll.em.api.rs.export.DatalayerExportFile;
 import edu.mit.ll.em.api.rs.export.GetCapabilitiesExportFile;
@@ -53,7 +55,6 @@ import edu.mit.ll.nics.common.entity.IncidentIncidentType;
 import edu.mit.ll.nics.common.geoserver.api.GeoServer;
 import edu.mit.ll.nics.nicsdao.impl.CollabRoomDAOImpl;
 import edu.mit.ll.nics.nicsdao.impl.IncidentDAOImpl;
-import edu.mit.ll.nics.nicsdao.impl.UserDAOImpl;
 
 import javax.ws.rs.core.MediaType;
 import javax.ws.rs.core.Response;
@@ -86,9 +87,8 @@ public class DatalayerExportImpl implements DatalayerExport{
     public static int SRID = 3857;
     public static String SRS_STRING = "EPSG:3857";
 	
-    private static final IncidentDAOImpl incidentDao = new IncidentDAOImpl();
-    private static final CollabRoomDAOImpl collabDao = new CollabRoomDAOImpl();
-    private static final UserDAOImpl userDao = new UserDAOImpl();
+    private static final IncidentDAOImpl incidentDao = InstrumentedDao.wrap(new IncidentDAOImpl());
+    private static final CollabRoomDAOImpl collabDao = InstrumentedDao.wrap(new CollabRoomDAOImpl());
     
     
 	public DatalayerExportImpl(){
@@ -109,14 +109,14 @@ public class DatalayerExportImpl implements DatalayerExport{
 		
 		File response = null;
 		
-		if(userDao.getUserId(requestingUser) != userId){
+		if(EntityCacheMgr.getInstance().getUserId(requestingUser) != userId){
 			//Export Error
 			response = this.getErrorReport(PERMISSION_ERROR).getTextFile();
 		}
 		else{
 			if(!this.isValidType(type)){
 				response = this.getErrorReport(INVALID_TYPE_ERROR).getTextFile();
-			}else if(this.hasPermissions(userId, incidentId, collabRoomId)){
+			}else if(this.hasPermissions(requestingUser, incidentId, collabRoomId)){
 				//Check to see if layer exists
 				String layername = this.buildLayername(collabRoomId, type);
 				
@@ -328,12 +328,12 @@ public class DatalayerExportImpl implements DatalayerExport{
 	
 	/**
 	 * hasPermissions - verify the user has permissions to access room
-	 * @param userId - the user requesting information
+	 * @param username - the user requesting information
 	 * @param incidentId - the incident that the collaboration room belongs to
 	 * @param collabRoomId - the collaboration room
 	 * @return boolean
 	 */
-	private boolean hasPermissions(long userId, int incidentId, int collabRoomId){
+	private boolean hasPermissions(String username, int incidentId, int collabRoomId){
 		try{
 			String incidentMap = APIConfig.getInstance().getConfiguration().getString(
 					APIConfig.INCIDENT_MAP, SADisplayConstants.INCIDENT_MAP);
@@ -347,7 +347,7 @@ public class DatalayerExportImpl implements DatalayerExport{
 			}*/
 			
 			//Allows users to export the Incident Map
-			return collabDao.hasPermissions(userId, collabRoomId, incidentMap);
+			return EntityCacheMgr.getInstance().hasPermissions(username, collabRoomId, incidentMap);
 			
 		}catch(Exception e){
 			return false;
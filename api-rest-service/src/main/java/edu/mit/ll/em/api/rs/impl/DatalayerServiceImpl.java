@@ -29,13 +29,11 @@
  */
 package edu.mit.ll.em.api.rs.impl;
 
-import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
-import java.math.BigInteger;
+import java.nio.file.DirectoryNotEmptyException;
+import java.nio.file.FileAlreadyExistsException;
 import java.nio.file.Files;
 import java.nio.file.OpenOption;
 import java.nio.file.Path;
@@ -43,10 +41,6 @@ import java.nio.file.Paths;
 import java.nio.file.StandardCopyOption;
 import java.nio.file.StandardOpenOption;
 import java.nio.file.attribute.PosixFilePermission;
-import java.security.DigestInputStream;
-import java.security.DigestOutputStream;
-import java.security.MessageDigest;
-import java.security.NoSuchAlgorithmException;
 import java.util.Arrays;
 import java.util.Date;
 import java.util.EnumSet;
@@ -54,10 +48,15 @@ import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
-import java.util.zip.ZipEntry;
-import java.util.zip.ZipInputStream;
+import java.util.UUID;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import javax.ws.rs.PathParam;
 import javax.ws.rs.WebApplicationException;
@@ -71,24 +70,33 @@ import javax.ws.rs.core.Response.Status;
 
 import org.apache.commons.configuration.Configuration;
 import org.apache.commons.io.FileUtils;
-import org.apache.commons.io.IOUtils;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.apache.cxf.jaxrs.ext.multipart.Attachment;
 import org.apache.cxf.jaxrs.ext.multipart.MultipartBody;
-import org.codehaus.jackson.map.ObjectMapper;
 import org.geotools.data.FileDataStore;
 import org.geotools.data.FileDataStoreFinder;
+import org.geotools.data.Query;
 import org.geotools.data.simple.SimpleFeatureSource;
 import org.opengis.referencing.FactoryException;
 
+import edu.mit.ll.em.api.dataaccess.DocumentStore;
+import edu.mit.ll.em.api.dataaccess.RabbitPublisher;
+import edu.mit.ll.em.api.dataaccess.ResourceVersions;
 import edu.mit.ll.em.api.dataaccess.ShapefileDAO;
 import edu.mit.ll.em.api.dataaccess.UserOrgDAO;
+import edu.mit.ll.em.api.metrics.InstrumentedDao;
 import edu.mit.ll.em.api.rs.DatalayerDocumentServiceResponse;
 import edu.mit.ll.em.api.rs.DatalayerService;
 import edu.mit.ll.em.api.rs.DatalayerServiceResponse;
 import edu.mit.ll.em.api.rs.FieldMapResponse;
+import edu.mit.ll.em.api.rs.ShapefileImportResponse;
+import edu.mit.ll.em.api.rs.ShapefileImportStatus;
 import edu.mit.ll.em.api.util.APIConfig;
+import edu.mit.ll.em.api.util.AttachmentWriter;
+import edu.mit.ll.em.api.util.AttachmentWriter.QuotaExceededException;
+import edu.mit.ll.em.api.util.JsonMapper;
+import edu.mit.ll.em.api.util.KmzExtractor;
 import edu.mit.ll.em.api.util.FileUtil;
 import edu.mit.ll.em.api.util.SADisplayConstants;
 import edu.mit.ll.nics.common.entity.User;
@@ -100,8 +108,6 @@ import edu.mit.ll.nics.common.entity.datalayer.Datasource;
 import edu.mit.ll.nics.common.entity.datalayer.Document;
 import edu.mit.ll.nics.common.entity.datalayer.Rootfolder;
 import edu.mit.ll.nics.common.geoserver.api.GeoServer;
-import edu.mit.ll.nics.common.rabbitmq.RabbitFactory;
-import edu.mit.ll.nics.common.rabbitmq.RabbitPubSubProducer;
 import edu.mit.ll.nics.nicsdao.DatalayerDAO;
 import edu.mit.ll.nics.nicsdao.DocumentDAO;
 import edu.mit.ll.nics.nicsdao.FolderDAO;
@@ -122,23 +128,13 @@ public class DatalayerServiceImpl implements DatalayerService {
 
 	private static final Log logger = LogFactory.getLog(DatalayerServiceImpl.class);
 	
-	/** A standard KML root element. */
-	private static final String KML_ROOT_START_TAG =
-			"<kml xmlns=\"http://www.opengis.net/kml/2.2\" " +
-			"xmlns:gx=\"http://www.google.com/kml/ext/2.2\" " +
-			"xmlns:kml=\"http://www.opengis.net/kml/2.2\" " +
-			"xmlns:atom=\"http://www.w3.org/2005/Atom\">";
-	
-	/** A pattern that matches KML documents without a root <kml> element. */
-	private static final Pattern MALFORMED_KML_PATTERN = Pattern.compile("^\\s*<\\?xml[^>]+>\\s*<Document>", Pattern.MULTILINE);
-	
 	/** Folder DAO */
-	private static final DatalayerDAO datalayerDao = new DatalayerDAOImpl();
-	private static final FolderDAO folderDao = new FolderDAOImpl();
-	private static final DocumentDAO documentDao = new DocumentDAOImpl();
-	private static final UserDAO userDao = new UserDAOImpl();
-	private static final UserOrgDAOImpl userOrgDao = new UserOrgDAOImpl();
-	private static final UserSessionDAOImpl usersessionDao = new UserSessionDAOImpl();
+	private static final DatalayerDAO datalayerDao = InstrumentedDao.wrap(new DatalayerDAOImpl());
+	private static final FolderDAO folderDao = InstrumentedDao.wrap(new FolderDAOImpl());
+	private static final DocumentDAO documentDao = InstrumentedDao.wrap(new DocumentDAOImpl());
+	private static final UserDAO userDao = InstrumentedDao.wrap(new UserDAOImpl());
+	private static final UserOrgDAOImpl userOrgDao = InstrumentedDao.wrap(new UserOrgDAOImpl());
+	private static final UserSessionDAOImpl usersessionDao = InstrumentedDao.wrap(new UserSessionDAOImpl());
 	
 	private static String fileUploadPath;
 	private static String mapserverURL;
@@ -146,13 +142,33 @@ public class DatalayerServiceImpl implements DatalayerService {
 	private static String geoserverDatastore;
 	private static String webserverURL;
 	
-	private RabbitPubSubProducer rabbitProducer;
+	/** Runs shapefile imports, rejects new imports once the queue is full */
+	private static final ExecutorService importExecutor = new ThreadPoolExecutor(
+			APIConfig.getInstance().getConfiguration().getInt(APIConfig.IMPORT_SHAPEFILE_THREADS, 2),
+			APIConfig.getInstance().getConfiguration().getInt(APIConfig.IMPORT_SHAPEFILE_THREADS, 2),
+			0L, TimeUnit.MILLISECONDS,
+			new ArrayBlockingQueue<Runnable>(
+					APIConfig.getInstance().getConfiguration().getInt(APIConfig.IMPORT_SHAPEFILE_QUEUE_SIZE, 20)),
+			new ThreadFactory() {
+				private final AtomicInteger count = new AtomicInteger();
+				public Thread newThread(Runnable r) {
+					Thread t = new Thread(r, "ShapefileImport-" + count.incrementAndGet());
+					t.setDaemon(true);
+					return t;
+				}
+			});
+	
+	private static final ConcurrentHashMap<String, ShapefileImportJob> importJobs =
+			new ConcurrentHashMap<String, ShapefileImportJob>();
+	
+	private static int importRetentionMinutes;
 	
 	private final Client jerseyClient;
 
 	public DatalayerServiceImpl() {
 		Configuration config = APIConfig.getInstance().getConfiguration();
 		fileUploadPath = config.getString(APIConfig.FILE_UPLOAD_PATH, "/opt/data/nics/upload");
+		importRetentionMinutes = config.getInt(APIConfig.IMPORT_SHAPEFILE_RETENTION_MINUTES, 60);
 		geoserverWorkspace = config.getString(APIConfig.IMPORT_SHAPEFILE_WORKSPACE, "nics");
 		geoserverDatastore = config.getString(APIConfig.IMPORT_SHAPEFILE_STORE, "shapefiles");
 		mapserverURL = config.getString(APIConfig.EXPORT_MAPSERVER_URL);
@@ -351,8 +367,6 @@ public class DatalayerServiceImpl implements DatalayerService {
 			return getInvalidResponse();
 		}
 			
-		ShapefileDAO geoserverDao = ShapefileDAO.getInstance();
-		GeoServer geoserver = getGeoServer(APIConfig.getInstance().getConfiguration());
 		String dataSourceId = getMapserverDatasourceId();
 		if (dataSourceId == null) {
 			throw new WebApplicationException("Failed to find configured NICS wms datasource");
@@ -374,93 +388,266 @@ public class DatalayerServiceImpl implements DatalayerService {
 			
 			batchDirectory = Files.createTempDirectory(shapesDirectory, batchName);
 			List<Attachment> attachments = body.getAllAttachments();
+			AttachmentWriter writer = new AttachmentWriter();
 			for(Attachment attachment : attachments) {
 				String filename = attachment.getContentDisposition().getParameter("filename");
 				String extension = FileUtil.getFileExtension(filename);
 				if (extension != null) {
 					Path path = batchDirectory.resolve(batchName.concat(extension));
-					InputStream is = attachment.getDataHandler().getInputStream();
-					Files.copy(is, path);
+					writer.write(attachment, path);
 				}
 			}
+		} catch (QuotaExceededException e) {
+			deleteBatchDirectory(batchDirectory);
+			throw new WebApplicationException(e, Status.REQUEST_ENTITY_TOO_LARGE);
+		} catch (IOException e) {
+			deleteBatchDirectory(batchDirectory);
+			throw new WebApplicationException("Failed to import shapefile", e);
+		}
+		
+		//optional custom sld, applied once the layer is published
+		String sldXml = null;
+		Attachment aSld = body.getAttachment("sldFile");
+		if (aSld != null) {
+			sldXml = aSld.getObject(String.class);
+		}
+		
+		ShapefileImportJob job = new ShapefileImportJob(workspaceId, displayName, username, dataSourceId,
+				layerName, batchDirectory.resolve(batchName.concat(".shp")), sldXml);
+		
+		ShapefileImportResponse importResponse = new ShapefileImportResponse();
+		try {
+			purgeImportJobs();
+			importJobs.put(job.jobId, job);
+			importExecutor.execute(job);
+		} catch (RejectedExecutionException e) {
+			importJobs.remove(job.jobId);
+			deleteBatchDirectory(batchDirectory);
+			importResponse.setMessage("Too many shapefile imports in progress, try again later");
+			return Response.ok(importResponse).status(Status.SERVICE_UNAVAILABLE).build();
+		}
+		
+		importResponse.setSuccess(true);
+		importResponse.setMessage("Shapefile import started");
+		importResponse.setImportJob(job.getStatus());
+		return Response.ok(importResponse).status(Status.ACCEPTED).build();
+	}
+	
+	@Override
+	public Response getShapeDataLayerImport(int workspaceId, String jobId, String username) {
+		ShapefileImportResponse importResponse = new ShapefileImportResponse();
+		
+		purgeImportJobs();
+		ShapefileImportJob job = importJobs.get(jobId);
+		if (job == null || job.workspaceId != workspaceId || !job.username.equalsIgnoreCase(username)) {
+			importResponse.setMessage("Shapefile import not found");
+			return Response.ok(importResponse).status(Status.NOT_FOUND).build();
+		}
+		
+		ShapefileImportStatus status = job.getStatus();
+		importResponse.setImportJob(status);
+		importResponse.setSuccess(status.getStage() != ShapefileImportStatus.Stage.FAILED);
+		importResponse.setMessage(status.getMessage());
+		if (job.datalayerfolder != null) {
+			importResponse.setCount(1);
+			importResponse.setDatalayerfolders(Arrays.asList(job.datalayerfolder));
+		}
+		return Response.ok(importResponse).status(Status.OK).build();
+	}
+	
+	/** Drops finished import jobs older than the retention period */
+	private void purgeImportJobs() {
+		long cutoff = System.currentTimeMillis() - TimeUnit.MINUTES.toMillis(importRetentionMinutes);
+		Iterator<ShapefileImportJob> iter = importJobs.values().iterator();
+		while (iter.hasNext()) {
+			ShapefileImportJob job = iter.next();
+			if (job.isFinished() && job.updated < cutoff) {
+				iter.remove();
+			}
+		}
+	}
+	
+	private void deleteBatchDirectory(Path batchDirectory) {
+		if (batchDirectory != null) {
+			try {
+				FileUtil.deleteRecursively(batchDirectory);
+			} catch (IOException e) {
+				logger.error("Failed to cleanup shapefile batch directory", e);
+			}
+		}
+	}
+	
+	/**
+	 * Imports an uploaded shapefile into its own PostGIS table, publishes it on
+	 * GeoServer and adds it to the workspace Data folder. Runs on importExecutor;
+	 * the progress is read by getShapeDataLayerImport.
+	 */
+	private class ShapefileImportJob implements Runnable, ShapefileDAO.ProgressListener {
+		
+		private final String jobId = UUID.randomUUID().toString();
+		private final int workspaceId;
+		private final String displayName;
+		private final String username;
+		private final String dataSourceId;
+		private final String layerName;
+		private final Path shpPath;
+		private final String sldXml;
+		private final Date created = new Date();
+		
+		private volatile ShapefileImportStatus.Stage stage = ShapefileImportStatus.Stage.QUEUED;
+		private volatile int featuresWritten = 0;
+		private volatile int featuresTotal = -1;
+		private volatile String message;
+		private volatile long updated = System.currentTimeMillis();
+		private volatile Datalayerfolder datalayerfolder;
+		
+		ShapefileImportJob(int workspaceId, String displayName, String username, String dataSourceId,
+				String layerName, Path shpPath, String sldXml) {
+			this.workspaceId = workspaceId;
+			this.displayName = displayName;
+			this.username = username;
+			this.dataSourceId = dataSourceId;
+			this.layerName = layerName;
+			this.shpPath = shpPath;
+			this.sldXml = sldXml;
+		}
+		
+		@Override
+		public void run() {
+			try {
+				if (importFeatures() && publishLayer()) {
+					createDatalayer();
+				}
+			} catch (RuntimeException e) {
+				removeFeaturesTable();
+				fail("Failed to import shapefile", e);
+			}
+		}
+		
+		@Override
+		public void featuresWritten(int count) {
+			featuresWritten = count;
+			updated = System.currentTimeMillis();
+		}
+		
+		private boolean importFeatures() {
+			setStage(ShapefileImportStatus.Stage.IMPORTING_FEATURES);
+			FileDataStore store = null;
+			try {
+				//attempt to read our shapefile and accompanying files
+				store = FileDataStoreFinder.getDataStore(shpPath.toFile());
+				SimpleFeatureSource featureSource = store.getFeatureSource();
+				featuresTotal = featureSource.getCount(Query.ALL);
+				
+				//attempt to insert our features into their own table
+				ShapefileDAO.getInstance().insertFeatures(layerName, featureSource, this);
+				return true;
+			} catch (IOException | FactoryException e) {
+				removeFeaturesTable();
+				fail("Failed to import shapefile", e);
+				return false;
+			} finally {
+				if (store != null) {
+					store.dispose();
+				}
+				//always clean up our temp directory
+				deleteBatchDirectory(shpPath.getParent());
+			}
+		}
+		
+		private boolean publishLayer() {
+			setStage(ShapefileImportStatus.Stage.PUBLISHING_LAYER);
+			GeoServer geoserver = getGeoServer(APIConfig.getInstance().getConfiguration());
 			
-			//attempt to read our shapefile and accompanying files
-			Path shpPath = batchDirectory.resolve(batchName.concat(".shp"));
-			FileDataStore store = FileDataStoreFinder.getDataStore(shpPath.toFile());
-			SimpleFeatureSource featureSource = store.getFeatureSource();
+			//add postgis layer to map server
+			if(!geoserver.addFeatureType(geoserverWorkspace, geoserverDatastore, layerName, "EPSG:3857")){
+				removeFeaturesTable();
+				fail("Failed to create features " + layerName, null);
+				return false;
+			}
 			
-			//attempt to insert our features into their own table
-			geoserverDao.insertFeatures(layerName, featureSource);
-		} catch (IOException | FactoryException e) {
-			try {
-				geoserverDao.removeFeaturesTable(layerName);
-			} catch (IOException ioe) { /* bury */}
-			throw new WebApplicationException("Failed to import shapefile", e);
-		} finally {
-			//always clean up our temp directory
-			if (batchDirectory != null) {
-				try {
-					FileUtil.deleteRecursively(batchDirectory);
-				} catch (IOException e) {
-					logger.error("Failed to cleanup shapefile batch directory", e);
+			//apply styling default or custom sld
+			String defaultStyleName = "defaultShapefileStyle";
+			if (sldXml != null) {
+				if (geoserver.addStyle(layerName, sldXml) ) {
+					defaultStyleName = layerName;
 				}
 			}
+			geoserver.updateLayerStyle(layerName, defaultStyleName);
+			geoserver.updateLayerEnabled(layerName, true);
+			return true;
 		}
 		
-		//add postgis layer to map server
-		if(!geoserver.addFeatureType(geoserverWorkspace, geoserverDatastore, layerName, "EPSG:3857")){
+		private void createDatalayer() {
+			setStage(ShapefileImportStatus.Stage.CREATING_DATALAYER);
+			
+			//create datalayer and datalayersource for our new layer 
+			int usersessionid = usersessionDao.getUserSessionid(username);
+			
+			Datalayer datalayer = new Datalayer(); 
+			datalayer.setCreated(new Date());
+			datalayer.setBaselayer(false);
+			datalayer.setDisplayname(displayName);
+			datalayer.setUsersessionid(usersessionid);
+			
+			Datalayersource dlsource = new Datalayersource();
+			dlsource.setLayername(layerName);
+			dlsource.setCreated(new Date());
+			dlsource.setDatasourceid(dataSourceId);
+			datalayer.setDatalayersource(dlsource);
+			
+			String datalayerId = datalayerDao.insertDataLayer(dataSourceId, datalayer);
+			Rootfolder folder = folderDao.getRootFolder("Data", workspaceId);
+			int nextFolderIndex = datalayerDao.getNextDatalayerFolderIndex(folder.getFolderid());
+			datalayerDao.insertDataLayerFolder(folder.getFolderid(), datalayerId, nextFolderIndex);
+			// Not a request, so not seen by ConditionalGetFilter
+			ResourceVersions.getInstance().changed(ResourceVersions.DATALAYERS);
+			
+			//retrieve the new datalayerfolder to return to the client and broadcast
+			datalayerfolder = datalayerDao.getDatalayerfolder(datalayerId, folder.getFolderid());
+			message = "Shapefile import complete";
+			setStage(ShapefileImportStatus.Stage.COMPLETE);
+			
+			try {
+				notifyNewChange(datalayerfolder, workspaceId);
+			} catch (IOException e) {
+				logger.error("Failed to publish DatalayerService message event", e);
+			}
+		}
+		
+		private void removeFeaturesTable() {
 			try {
-				geoserverDao.removeFeaturesTable(layerName);
+				ShapefileDAO.getInstance().removeFeaturesTable(layerName);
 			} catch (IOException e) { /* bury */}
-			throw new WebApplicationException("Failed to create features " + layerName);
 		}
 		
-		//apply styling default or custom sld
-		String defaultStyleName = "defaultShapefileStyle";
-		Attachment aSld = body.getAttachment("sldFile");
-		if (aSld != null) {
-			String sldXml = aSld.getObject(String.class);
-			if (geoserver.addStyle(layerName, sldXml) ) {
-				defaultStyleName = layerName;
-			}
+		private void setStage(ShapefileImportStatus.Stage stage) {
+			this.stage = stage;
+			this.updated = System.currentTimeMillis();
 		}
-		geoserver.updateLayerStyle(layerName, defaultStyleName);
-		geoserver.updateLayerEnabled(layerName, true);
-
-		//create datalayer and datalayersource for our new layer 
-		int usersessionid = usersessionDao.getUserSessionid(username);
-		
-		Datalayer datalayer = new Datalayer(); 
-		datalayer.setCreated(new Date());
-		datalayer.setBaselayer(false);
-		datalayer.setDisplayname(displayName);
-		datalayer.setUsersessionid(usersessionid);
-		
-		Datalayersource dlsource = new Datalayersource();
-		dlsource.setLayername(layerName);
-		dlsource.setCreated(new Date());
-		dlsource.setDatasourceid(dataSourceId);
-		datalayer.setDatalayersource(dlsource);
-		
-		String datalayerId = datalayerDao.insertDataLayer(dataSourceId, datalayer);
-		Rootfolder folder = folderDao.getRootFolder("Data", workspaceId);
-		int nextFolderIndex = datalayerDao.getNextDatalayerFolderIndex(folder.getFolderid());
-		datalayerDao.insertDataLayerFolder(folder.getFolderid(), datalayerId, nextFolderIndex);
-
-		//retrieve the new datalayerfolder to return to the client and broadcast
-		Datalayerfolder newDatalayerFolder = datalayerDao.getDatalayerfolder(datalayerId, folder.getFolderid());
 		
-		try {
-			notifyNewChange(newDatalayerFolder, workspaceId);
-		} catch (IOException e) {
-			logger.error("Failed to publish DatalayerService message event", e);
+		private void fail(String message, Exception e) {
+			logger.error(message + " (job " + jobId + ")", e);
+			this.message = message;
+			setStage(ShapefileImportStatus.Stage.FAILED);
 		}
 		
-		DatalayerDocumentServiceResponse datalayerResponse = new DatalayerDocumentServiceResponse();
-		datalayerResponse.setSuccess(true);
-		datalayerResponse.setCount(1);
-		datalayerResponse.setDatalayerfolders(Arrays.asList(newDatalayerFolder));
-		return Response.ok(datalayerResponse).status(Status.OK).build();
+		boolean isFinished() {
+			return stage == ShapefileImportStatus.Stage.COMPLETE || stage == ShapefileImportStatus.Stage.FAILED;
+		}
+		
+		ShapefileImportStatus getStatus() {
+			ShapefileImportStatus status = new ShapefileImportStatus();
+			status.setJobId(jobId);
+			status.setLayerName(layerName);
+			status.setStage(stage);
+			status.setFeaturesWritten(featuresWritten);
+			status.setFeaturesTotal(featuresTotal);
+			status.setMessage(message);
+			status.setCreated(created);
+			status.setUpdated(new Date(updated));
+			return status;
+		}
 	}
 	
 	public Response postDataLayerDocument(int workspaceId, String fileExt, int userOrgId, int refreshRate, MultipartBody body, String username){
@@ -501,6 +688,7 @@ public class DatalayerServiceImpl implements DatalayerService {
 				return getInvalidResponse();
 			}
 			
+			AttachmentWriter writer = new AttachmentWriter();
 			for(Attachment attachment : body.getAllAttachments()) {
 	
 				if(MediaType.TEXT_PLAIN_TYPE.isCompatible(attachment.getContentType())){
@@ -529,7 +717,7 @@ public class DatalayerServiceImpl implements DatalayerService {
 					}
 					
 					if(filePath != null){
-						doc = getDocument(attachment, Paths.get(filePath));
+						doc = getDocument(attachment, Paths.get(filePath), writer);
 					}
 				}
 			}
@@ -553,47 +741,13 @@ public class DatalayerServiceImpl implements DatalayerService {
 				if (uploadedDataLayer = docFilename.endsWith(".kmz")) {
 					String subdir = docFilename.substring(0, docFilename.length() - 4);
 					Path kmzDir = Paths.get(filePath, subdir);
-					if (! Files.exists(kmzDir))
-						Files.createDirectory(kmzDir);
 					
-					try (
-						FileInputStream fis = new FileInputStream(filePath + doc.getFilename());
-						ZipInputStream zipStream = new ZipInputStream(fis)
-					) {
-						ZipEntry entry;
-						
-						// Stream all KMZ entries into new files under this temp dir.
-						while((entry = zipStream.getNextEntry()) != null) {
-							if (entry.getSize() == 0){ 				             
-								 continue; 				            
-							}
-							
-							String entryName = entry.getName();
-							Path outPath = kmzDir.resolve(entryName);
-				            
-				            if (entryName.toLowerCase().endsWith(".kml"))
-				            	fileName = entryName;
-				            	
-				            if (entryName.contains("/"))
-				            	Files.createDirectories(outPath.getParent());
-				            	
-				            try (
-				            	OutputStream output = Files.newOutputStream(outPath)
-				            ) {
-				            	// KML files may require some translation, to workaround broken input files.
-				            	if (fileName != null)
-				            		copyKmlStream(zipStream, output);
-				            	
-				            	// Just copy the content directly, without translation.
-				            	else
-				            		IOUtils.copy(zipStream, output);
-				            }
-				       }
+					try {
+						fileName = extractKmz(Paths.get(filePath, doc.getFilename()), kmzDir);
 					}
 					catch(IOException ex) {
 						logger.error("Failed to unzip file", ex);
 						uploadedDataLayer = false;
-						FileUtils.deleteDirectory(kmzDir.toFile ());
 			        }
 				
 					// Set the final file name of the data layer.
@@ -636,6 +790,10 @@ public class DatalayerServiceImpl implements DatalayerService {
 				response = Response.ok(datalayerResponse).status(Status.INTERNAL_SERVER_ERROR).build();
 			}
 		}
+		catch(WebApplicationException e) {
+			// Upload over quota
+			throw e;
+		}
 		catch(Exception e) {
 			logger.error("Failed to insert data layer", e);
 			datalayerResponse.setSuccess(false);
@@ -699,50 +857,55 @@ public class DatalayerServiceImpl implements DatalayerService {
 	}
 		
 	
-	private byte[] writeAttachmentWithDigest(Attachment attachment, Path path, String digestAlgorithm) throws IOException, NoSuchAlgorithmException {
-		try(
-			InputStream is = attachment.getDataHandler().getInputStream();
-		) {
-			MessageDigest md = MessageDigest.getInstance(digestAlgorithm);
-			
-			String ext = getFileExtension(attachment);
-			if ("kml".equalsIgnoreCase(ext)) {
-				try(
-					OutputStream os = Files.newOutputStream(path);
-					DigestOutputStream dos = new DigestOutputStream(os, md)
-				) {
-					copyKmlStream(is, dos);
-				}
+	/**
+	 * Extracts a stored KMZ into its directory. Identical uploads share the stored
+	 * file and so the directory, which may already be serving a data layer: it is
+	 * reused as is, and a new extraction is done in a temp directory and only moved
+	 * into place once complete.
+	 * 
+	 * @return name of the KML document within the archive
+	 */
+	private String extractKmz(Path kmz, Path kmzDir) throws IOException {
+		if (Files.isDirectory(kmzDir)) {
+			return KmzExtractor.getInstance().getKmlName(kmz);
+		}
+		
+		Path tempDir = Files.createTempDirectory(kmzDir.getParent(), "." + kmzDir.getFileName() + ".");
+		try {
+			String kmlName = KmzExtractor.getInstance().extract(kmz, tempDir);
+			try {
+				Files.move(tempDir, kmzDir, StandardCopyOption.ATOMIC_MOVE);
+			} catch (FileAlreadyExistsException | DirectoryNotEmptyException e) {
+				// Extracted by a concurrent upload of the same file.
 			}
-			
-			else {
-				try (
-					DigestInputStream dis = new DigestInputStream(is, md)
-				) {
-					Files.copy(dis, path, StandardCopyOption.REPLACE_EXISTING);
-				}
+			return kmlName;
+		} finally {
+			if (Files.exists(tempDir)) {
+				FileUtils.deleteDirectory(tempDir.toFile());
 			}
-			
-			return md.digest();	
 		}
 	}
 	
-	private Document getDocument(Attachment attachment, Path directory) {
-		Path tempPath = null, path = null;
+	private Document getDocument(Attachment attachment, Path directory, AttachmentWriter writer) {
+		Path path = null;
 		
-		try {
-			Files.createDirectories(directory);
-
-			tempPath = Files.createTempFile(directory, null, null);
-			byte[] digest = writeAttachmentWithDigest(attachment, tempPath, "MD5");
-			
-			String filename = new BigInteger(1, digest).toString();
+		try(
+			final InputStream is = writer.openStream(attachment);
+		) {
+			DocumentStore store = DocumentStore.getInstance(directory);
 			String ext = getFileExtension(attachment);
-			if (ext != null) {
-				filename += "." + ext;
+			
+			// KML files may require some translation, to workaround broken input files.
+			if ("kml".equalsIgnoreCase(ext)) {
+				path = store.store(new DocumentStore.ContentWriter() {
+					@Override
+					public void write(OutputStream os) throws IOException {
+						KmzExtractor.copyKmlStream(is, os);
+					}
+				}, ext);
+			} else {
+				path = store.store(is, ext);
 			}
-			path = directory.resolve(filename);
-			path = Files.move(tempPath, path, StandardCopyOption.REPLACE_EXISTING);
 		
 			// Set proper file permissions on this file.
 			Files.setPosixFilePermissions(path, EnumSet.of(
@@ -752,17 +915,11 @@ public class DatalayerServiceImpl implements DatalayerService {
 					PosixFilePermission.GROUP_WRITE,
 					PosixFilePermission.OTHERS_READ
 				));
-		} catch (IOException|NoSuchAlgorithmException e) {
+		} catch (QuotaExceededException e) {
+			throw new WebApplicationException(e, Status.REQUEST_ENTITY_TOO_LARGE);
+		} catch (IOException e) {
 			logger.error("Failed to save file attachment", e);
 			return null;
-		} finally {
-			//cleanup files
-			if (tempPath != null) {
-				File file = tempPath.toFile();
-				if (file.exists()) {
-					file.delete();
-				}
-			}
 		}
 		
 		Document doc = new Document();
@@ -773,42 +930,6 @@ public class DatalayerServiceImpl implements DatalayerService {
 		return doc;
 	}
 
-	/** Utility method for copying (and possibly translating) a KML input stream to an output stream. */
-	public void copyKmlStream(InputStream input, OutputStream output)
-			throws IOException
-	{
-		byte[] buffer = new byte[4096];
-		int n;
-
-		// Convert the first (maximum of) 4096 bytes to a string.
-		if (-1 == (n = input.read(buffer)))
-			return;
-		String prologue = new String(buffer, 0, n, "UTF-8");
-	
-		// Attempt to repair the document prologue, if a root <kml> tag is missing.
-		Matcher matcher = MALFORMED_KML_PATTERN.matcher(prologue);
-		if (matcher.find ()) {
-			int insertionPoint = matcher.end() - 10; // Insertion point, before <Document> tag.
-	
-			IOUtils.write(prologue.substring(0, insertionPoint), output);
-			IOUtils.write(KML_ROOT_START_TAG, output);
-			IOUtils.write(prologue.substring(insertionPoint), output);
-		}
-	
-		// Otherwise, simply write out the byte buffer and signal that no epilogue is needed.
-		else {
-			output.write(buffer, 0, n);
-			prologue = null;
-		}
-	
-		// Write out the rest of the stream.
-		IOUtils.copy(input, output);
-	
-		// If an epilogue is needed, write it now.
-		if (prologue != null)
-			IOUtils.write("</kml>", output);
-	}
-	
 	private String getMapserverDatasourceId() {
 		if(mapserverURL == null) {
 			return null;
@@ -880,8 +1001,7 @@ public class DatalayerServiceImpl implements DatalayerService {
 	private void notifyNewChange(Datalayerfolder datalayerfolder, int workspaceId) throws IOException {
 		if (datalayerfolder != null) {
 			String topic = String.format("iweb.NICS.%s.datalayer.new", workspaceId);
-			ObjectMapper mapper = new ObjectMapper();
-			String message = mapper.writeValueAsString(datalayerfolder);
+			String message = JsonMapper.getInstance().toJson(datalayerfolder);
 			getRabbitProducer().produce(topic, message);
 		}
 	}
@@ -889,8 +1009,7 @@ public class DatalayerServiceImpl implements DatalayerService {
 	private void notifyDeleteChange(String dataSourceId) throws IOException {
 		if (dataSourceId != null) {
 			String topic = String.format("iweb.NICS.datalayer.delete");
-			ObjectMapper mapper = new ObjectMapper();
-			String message = mapper.writeValueAsString(dataSourceId);
+			String message = JsonMapper.getInstance().toJson(dataSourceId);
 			getRabbitProducer().produce(topic, message);
 		}
 	}
@@ -898,21 +1017,13 @@ public class DatalayerServiceImpl implements DatalayerService {
 	private void notifyUpdateChange(Datalayer datalayer) throws IOException {
 		if (datalayer != null) {
 			String topic = String.format("iweb.NICS.datalayer.update");
-			ObjectMapper mapper = new ObjectMapper();
-			String message = mapper.writeValueAsString(datalayer);
+			String message = JsonMapper.getInstance().toJson(datalayer);
 			getRabbitProducer().produce(topic, message);
 		}
 	}
 	
-	private RabbitPubSubProducer getRabbitProducer() throws IOException {
-		if (rabbitProducer == null) {
-			rabbitProducer = RabbitFactory.makeRabbitPubSubProducer(
-					APIConfig.getInstance().getConfiguration().getString(APIConfig.RABBIT_HOSTNAME_KEY),
-					APIConfig.getInstance().getConfiguration().getString(APIConfig.RABBIT_EXCHANGENAME_KEY),
-					APIConfig.getInstance().getConfiguration().getString(APIConfig.RABBIT_USERNAME_KEY),
-					APIConfig.getInstance().getConfiguration().getString(APIConfig.RABBIT_USERPWD_KEY));
-		}
-		return rabbitProducer;
+	private RabbitPublisher getRabbitProducer() {
+		return RabbitPublisher.getInstance();
 	}
 	
 	private Response getInvalidResponse(){
@@ -29,31 +29,29 @@
  */
 package edu.mit.ll.em.api.rs.impl;
 
-import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
-import java.math.BigInteger;
-import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
-import java.nio.file.StandardCopyOption;
-import java.security.DigestInputStream;
-import java.security.MessageDigest;
-import java.security.NoSuchAlgorithmException;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.Date;
 import java.util.List;
 import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
+import javax.ws.rs.WebApplicationException;
 import javax.ws.rs.core.MediaType;
 import javax.ws.rs.core.Response;
 import javax.ws.rs.core.Response.Status;
 import javax.ws.rs.core.UriBuilder;
 
-import edu.mit.ll.nics.common.rabbitmq.RabbitFactory;
-import edu.mit.ll.nics.common.rabbitmq.RabbitPubSubProducer;
 
 import org.apache.commons.configuration.Configuration;
 import org.apache.commons.logging.Log;
@@ -63,25 +61,30 @@ import org.codehaus.jackson.map.ObjectMapper;
 import org.json.JSONException;
 import org.json.JSONObject;
 
+import edu.mit.ll.em.api.dataaccess.DocumentStore;
+import edu.mit.ll.em.api.dataaccess.RabbitPublisher;
+import edu.mit.ll.em.api.dataaccess.EntityCacheMgr;
+import edu.mit.ll.em.api.dataaccess.FeatureSyncTracker;
+import edu.mit.ll.em.api.metrics.InstrumentedDao;
 import edu.mit.ll.em.api.rs.FeatureService;
 import edu.mit.ll.em.api.rs.FeatureServiceResponse;
+import edu.mit.ll.em.api.rs.FeatureSyncResponse;
 import edu.mit.ll.em.api.rs.MultipartFeatureResponse;
 import edu.mit.ll.em.api.rs.QueryConstraintHelper;
 import edu.mit.ll.em.api.rs.QueryConstraintParms;
 import edu.mit.ll.em.api.util.APIConfig;
+import edu.mit.ll.em.api.util.AttachmentWriter;
+import edu.mit.ll.em.api.util.AttachmentWriter.QuotaExceededException;
+import edu.mit.ll.em.api.util.JsonMapper;
 import edu.mit.ll.em.api.util.SADisplayConstants;
 import edu.mit.ll.nics.common.entity.CollabroomFeature;
 import edu.mit.ll.nics.common.entity.Feature;
 import edu.mit.ll.nics.common.entity.UserFeature;
 import edu.mit.ll.nics.common.entity.datalayer.Document;
-import edu.mit.ll.nics.nicsdao.CollabRoomDAO;
 import edu.mit.ll.nics.nicsdao.DocumentDAO;
 import edu.mit.ll.nics.nicsdao.FeatureDAO;
-import edu.mit.ll.nics.nicsdao.UserDAO;
-import edu.mit.ll.nics.nicsdao.impl.CollabRoomDAOImpl;
 import edu.mit.ll.nics.nicsdao.impl.DocumentDAOImpl;
 import edu.mit.ll.nics.nicsdao.impl.FeatureDAOImpl;
-import edu.mit.ll.nics.nicsdao.impl.UserDAOImpl;
 import edu.mit.ll.nics.nicsdao.query.QueryConstraint.UTCRange;
 
 /**
@@ -93,13 +96,9 @@ public class FeatureServiceImpl implements FeatureService {
 
 	private static final String FEATURES_SUBPATH = "features";
 	/** Feature DAO */
-	private static final FeatureDAO featureDao = new FeatureDAOImpl();
-	/** User CollabRoom DAO */
-	private static final CollabRoomDAO collabRoomDao = new CollabRoomDAOImpl();
+	private static final FeatureDAO featureDao = InstrumentedDao.wrap(new FeatureDAOImpl());
 	/** User Document DAO */
-	private static final DocumentDAO documentDao = new DocumentDAOImpl();
-	/** User DAO */
-	private static final UserDAO userDao = new UserDAOImpl();
+	private static final DocumentDAO documentDao = InstrumentedDao.wrap(new DocumentDAOImpl());
 	
 	private static final Log logger = LogFactory.getLog(FeatureServiceImpl.class);
 	
@@ -110,16 +109,30 @@ public class FeatureServiceImpl implements FeatureService {
 	//The property for the collabroom topic - telling users this feature has been deleted
 	private static final String DELETED_FEATURE_ID = "deletedFeatureId";
 	
-	private RabbitPubSubProducer rabbitProducer;
+	//Publishes share/copy workspace notifications off the request thread. When
+	//the queue is full the request thread publishes them itself.
+	private static final ExecutorService notificationExecutor = new ThreadPoolExecutor(
+			2, 2, 0L, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<Runnable>(100),
+			new ThreadFactory() {
+				private final AtomicInteger count = new AtomicInteger();
+				public Thread newThread(Runnable r) {
+					Thread t = new Thread(r, "FeatureNotifier-" + count.incrementAndGet());
+					t.setDaemon(true);
+					return t;
+				}
+			},
+			new ThreadPoolExecutor.CallerRunsPolicy());
 	
 	private final String fileUploadPath;
 	private final String fileUploadUrl;
+	private final int shareBatchSize;
 	
 	
 	public FeatureServiceImpl() {
 		Configuration config = APIConfig.getInstance().getConfiguration();
 		fileUploadPath = config.getString(APIConfig.FILE_UPLOAD_PATH, "/opt/data/nics/upload");
 		fileUploadUrl = config.getString(APIConfig.FILE_UPLOAD_URL, "/static/");
+		shareBatchSize = Math.max(1, config.getInt(APIConfig.FEATURE_SHARE_BATCH_SIZE, 1));
 	}
 	
 	/**
@@ -139,8 +152,8 @@ public class FeatureServiceImpl implements FeatureService {
 		
 		UTCRange dateRange = QueryConstraintHelper.makeDateRange(optionalParams);
 		
-		if(userDao.getUserId(requestingUser) == userId && 
-				collabRoomDao.hasPermissions(userId, collabroomId, incidentMap)){
+		if(EntityCacheMgr.getInstance().getUserId(requestingUser) == userId && 
+				EntityCacheMgr.getInstance().hasPermissions(requestingUser, collabroomId, incidentMap)){
 			List<Feature> features = featureDao.getFeatureState(collabroomId, dateRange, geoType);
 			buildDocumentUrls(features);
 			
@@ -159,6 +172,60 @@ public class FeatureServiceImpl implements FeatureService {
 		}
 	}
 	
+	/**
+	 * Retrieve the features of a collaboration room changed since a sync token.
+	 * Without a valid token, or if features were shared into or out of the room
+	 * since the token was issued, every feature of the room is returned. If nothing
+	 * changed the response is 304 Not Modified, and the client keeps its token.
+	 * 
+	 * @param collabroomId
+	 * @param token Token from the previous sync, if any
+	 * 
+	 * @return Response FeatureSyncResponse containing the changed and deleted features
+	 * @See FeatureSyncResponse
+	 */
+	public Response syncCollabroomFeatures(int collabroomId, long userId, 
+			String token, int geoType, String requestingUser) {
+		
+		String incidentMap = APIConfig.getInstance().getConfiguration().getString(
+				APIConfig.INCIDENT_MAP, SADisplayConstants.INCIDENT_MAP);
+		
+		if(EntityCacheMgr.getInstance().getUserId(requestingUser) != userId || 
+				!EntityCacheMgr.getInstance().hasPermissions(requestingUser, collabroomId, incidentMap)){
+			FeatureServiceResponse featureResponse = new FeatureServiceResponse();
+			featureResponse.setMessage("Permission denied to view this room");
+			return Response.ok(featureResponse).status(Status.INTERNAL_SERVER_ERROR).build();
+		}
+		
+		FeatureSyncTracker tracker = FeatureSyncTracker.getInstance();
+		FeatureSyncTracker.Token since = tracker.parse(token);
+		if(tracker.isCurrent(collabroomId, since)){
+			return Response.notModified().build();
+		}
+		
+		// Issued before querying, so anything changed meanwhile is in the next sync
+		FeatureSyncTracker.Token next = tracker.issue(collabroomId);
+		
+		FeatureSyncResponse syncResponse = new FeatureSyncResponse();
+		List<Feature> features;
+		if(tracker.needsFullSync(collabroomId, since)){
+			features = featureDao.getFeatureState(collabroomId, null, geoType);
+			syncResponse.setFullSync(true);
+		}else{
+			UTCRange dateRange = new UTCRange(SADisplayConstants.LAST_UPDATE,
+					tracker.getWatermark(since), null);
+			features = featureDao.getFeatureState(collabroomId, dateRange, geoType);
+			syncResponse.setDeletedFeature(featureDao.getDeletedFeatures(collabroomId, dateRange));
+		}
+		buildDocumentUrls(features);
+		
+		syncResponse.setMessage(Status.OK.getReasonPhrase());
+		syncResponse.setFeatures(features);
+		syncResponse.setCount(features.size());
+		syncResponse.setToken(next.toString());
+		return Response.ok(syncResponse).status(Status.OK).build();
+	}
+	
 	/**
 	 * Retrieve features for a user
 	 * 
@@ -168,7 +235,7 @@ public class FeatureServiceImpl implements FeatureService {
 	 * @See FeatureServiceResponse
 	 */
 	public Response getUserFeatures(int userId, String requestingUser) {
-		if(userDao.getUserId(requestingUser) == userId){
+		if(EntityCacheMgr.getInstance().getUserId(requestingUser) == userId){
 			List<Feature> features = featureDao.getUserFeatureState(userId);
 			this.buildDocumentUrls(features);
 			return this.buildGetResponse(features);
@@ -190,13 +257,14 @@ public class FeatureServiceImpl implements FeatureService {
 		Long featureId = null;
 		FeatureServiceResponse featureResponse = new FeatureServiceResponse();
 		
-		if(!collabRoomDao.hasPermissions(userDao.getUserId(requestingUser), collabRoomId)){
+		if(!EntityCacheMgr.getInstance().hasPermissions(requestingUser, collabRoomId)){
 			return getAccessDeniedResponse();
 		}
 		
 		try{
 			featureId = this.persistFeatureChange(feature);
 			featureDao.setCollabroomFeatureDeleted(featureId, false);
+			FeatureSyncTracker.getInstance().featuresChanged(collabRoomId);
 		
 			featureResponse.setMessage(Status.OK.getReasonPhrase());
 			
@@ -254,7 +322,7 @@ public class FeatureServiceImpl implements FeatureService {
 	 */
 	public Response postCollabRoomFeature(int collabRoomId, int geoType , String feature , String requestingUser) {
 		
-		if(!collabRoomDao.hasPermissions(userDao.getUserId(requestingUser), collabRoomId)){
+		if(!EntityCacheMgr.getInstance().hasPermissions(requestingUser, collabRoomId)){
 			return getAccessDeniedResponse();
 		}
 		
@@ -270,6 +338,7 @@ public class FeatureServiceImpl implements FeatureService {
 				collabroomFeature.setCollabroomid(collabRoomId);
 				
 				featureDao.addCollabroomFeature(collabroomFeature);
+				FeatureSyncTracker.getInstance().featuresChanged(collabRoomId);
 			}
 			this.buildDocumentUrls(Arrays.asList(newFeature));
 			this.updatePostResponse(featureResponse, newFeature);
@@ -305,7 +374,7 @@ public class FeatureServiceImpl implements FeatureService {
 	 */
 	public Response postUserFeature(long userId, String feature, String requestingUser) {
 		
-		if(userDao.getUserId(requestingUser) != userId){
+		if(EntityCacheMgr.getInstance().getUserId(requestingUser) != userId){
 			return getAccessDeniedResponse();
 		}
 		
@@ -365,7 +434,7 @@ public class FeatureServiceImpl implements FeatureService {
 	 */
 	public Response deleteCollabRoomFeature(int collabRoomId, long featureId, String requestingUser){
 		
-		if(!collabRoomDao.hasPermissions(userDao.getUserId(requestingUser), collabRoomId)){
+		if(!EntityCacheMgr.getInstance().hasPermissions(requestingUser, collabRoomId)){
 			return getAccessDeniedResponse();
 		}
 		
@@ -373,6 +442,7 @@ public class FeatureServiceImpl implements FeatureService {
 		FeatureServiceResponse featureResponse = new FeatureServiceResponse();
 		try{
 			featureDao.setCollabroomFeatureDeleted(featureId, true);
+			FeatureSyncTracker.getInstance().featuresChanged(collabRoomId);
 			
 			this.updatePostResponse(featureResponse, featureId);
 			
@@ -410,7 +480,7 @@ public class FeatureServiceImpl implements FeatureService {
 		Feature feature = mapper.treeToValue(node, Feature.class);*/
 		
 		JSONObject feature = new JSONObject(featureProperties);
-		ObjectMapper mapper = new ObjectMapper();
+		ObjectMapper mapper = JsonMapper.getInstance().getMapper();
 		
 		List<String> fields = mapper.readValue(
 	            feature.names().toString(),
@@ -451,7 +521,7 @@ public class FeatureServiceImpl implements FeatureService {
 	 * @param collabRoomId The id of the collaboration room to share the feature to 
 	 */
 	public Response shareWorkspace(int userId, int collabRoomId, String username) {
-		if(userDao.getUserId(username) != userId){
+		if(EntityCacheMgr.getInstance().getUserId(username) != userId){
 			return getAccessDeniedResponse();
 		}
 		
@@ -460,17 +530,13 @@ public class FeatureServiceImpl implements FeatureService {
 		List<Feature> userFeatures = featureDao.getUserFeatureState(userId);
 		featureDao.deleteSharedFeatures(userId, collabRoomId);
 		featureDao.shareFeatures(userId, collabRoomId);
-		for (Feature userFeature : userFeatures) {
-			//we hijack topic to flag this feature not to be ignored
-			//otherwise a client ignores new features from the current user
-			userFeature.setTopic("share");
-			try {
-				notifyNewFeature(userFeature, topic);
-			} catch (Exception e) {
-				logger.error("Failed to publish new feature message", e);
-			}
-		}
-		return null;
+		FeatureSyncTracker.getInstance().featuresReplaced(collabRoomId);
+		notifySharedFeatures(userFeatures, topic);
+		
+		FeatureServiceResponse response = new FeatureServiceResponse();
+		response.setMessage(Status.OK.getReasonPhrase());
+		response.setCount(userFeatures.size());
+		return Response.ok(response).build();
 	}
 	
 	/**
@@ -480,13 +546,14 @@ public class FeatureServiceImpl implements FeatureService {
 	 * @param collabRoomId The id of the collaboration room to stop sharing with 
 	 */
 	public Response unshareWorkspace(int userId, int collabRoomId, String username) {
-		if(userDao.getUserId(username) != userId){
+		if(EntityCacheMgr.getInstance().getUserId(username) != userId){
 			return getAccessDeniedResponse();
 		}
 		
 		String topic = String.format("iweb.NICS.collabroom.%s.deletefeature", collabRoomId);
 		
 		List<Long> deletedIds = featureDao.markSharedFeaturesDeleted(userId, collabRoomId);
+		FeatureSyncTracker.getInstance().featuresReplaced(collabRoomId);
 		for (Long deletedId : deletedIds) {
 			try {
 				notifyDeletedFeature(deletedId, topic);
@@ -505,7 +572,7 @@ public class FeatureServiceImpl implements FeatureService {
 	 */
 	@Override
 	public Response copyWorkspace(int userId, int collabRoomId, String username) {
-		if(userDao.getUserId(username) != userId){
+		if(EntityCacheMgr.getInstance().getUserId(username) != userId){
 			return getAccessDeniedResponse();
 		}
 		
@@ -514,22 +581,14 @@ public class FeatureServiceImpl implements FeatureService {
 		List<Feature> userFeatures = Collections.emptyList();
 		try {
 			List<Long> newFeatureIds = featureDao.copyFeatures(userId, collabRoomId);
+			FeatureSyncTracker.getInstance().featuresReplaced(collabRoomId);
 			if (newFeatureIds.size() > 0) {
 				userFeatures = featureDao.getFeatures(newFeatureIds);
 			}
 		} catch (Exception e) {
 			return Response.status(Status.INTERNAL_SERVER_ERROR).entity(e.getMessage()).build();
 		}
-		for (Feature userFeature : userFeatures) {
-			//we hijack topic to flag this feature not to be ignored
-			//otherwise a client ignores new features from the current user
-			userFeature.setTopic("share");
-			try {
-				notifyNewFeature(userFeature, topic);
-			} catch (Exception e) {
-				logger.error("Failed to publish new feature message", e);
-			}
-		}
+		notifySharedFeatures(userFeatures, topic);
 		
 		FeatureServiceResponse response = new FeatureServiceResponse();
 		response.setMessage(Status.OK.getReasonPhrase());
@@ -555,13 +614,14 @@ public class FeatureServiceImpl implements FeatureService {
 		MediaType imageMediaType = new MediaType("image","*");
 		
 		boolean found = false;
+		AttachmentWriter writer = new AttachmentWriter();
 		for(Attachment attachment : attachments) {
 			MediaType attachmentType = attachment.getContentType();
 			
 			if (MediaType.TEXT_PLAIN_TYPE.isCompatible(attachmentType)){
 				description = attachment.getObject(String.class);
 			} else if (imageMediaType.isCompatible(attachmentType)) {
-				imageDoc = getDocument(attachment, Paths.get(fileUploadPath).resolve(FEATURES_SUBPATH));
+				imageDoc = getDocument(attachment, Paths.get(fileUploadPath).resolve(FEATURES_SUBPATH), writer);
 				if (imageDoc != null) {
 					imageDoc.setUsersessionid(usersessionId);
 					imageDoc.setDescription(description);
@@ -592,6 +652,7 @@ public class FeatureServiceImpl implements FeatureService {
 		try {
 			List<CollabroomFeature> rooms = featureDao.getCollabroomFeatures(newFeature.getFeatureId());
 			for (CollabroomFeature room : rooms) {
+				FeatureSyncTracker.getInstance().featuresChanged(room.getCollabroomid());
 				notifyNewFeature(newFeature, String.format("iweb.NICS.collabroom.%s.changefeature", room.getCollabroomid()));
 			}
 		} catch (Exception e) {
@@ -630,17 +691,6 @@ public class FeatureServiceImpl implements FeatureService {
 		
 	}
 	
-	private byte[] writeAttachmentWithDigest(Attachment attachment, Path path, String digestAlgorithm) throws IOException, NoSuchAlgorithmException {
-		try(
-			InputStream is = attachment.getDataHandler().getInputStream();
-		) {
-			MessageDigest md = MessageDigest.getInstance(digestAlgorithm);
-			DigestInputStream dis = new DigestInputStream(is, md);
-			Files.copy(dis, path, StandardCopyOption.REPLACE_EXISTING);
-			return md.digest();	
-		}
-	}
-	
 	private String getFileExtension(Attachment attachment) {
 		String filename = attachment.getContentDisposition().getParameter("filename");
 		
@@ -651,33 +701,18 @@ public class FeatureServiceImpl implements FeatureService {
 		return null;
 	}
 	
-	private Document getDocument(Attachment attachment, Path directory) {
-		Path tempPath = null, path = null;
+	private Document getDocument(Attachment attachment, Path directory, AttachmentWriter writer) {
+		Path path = null;
 		
-		try {
-			Files.createDirectories(directory);
-
-			tempPath = Files.createTempFile(directory, null, null);
-			byte[] digest = writeAttachmentWithDigest(attachment, tempPath, "MD5");
-			
-			String filename = new BigInteger(1, digest).toString();
-			String ext = getFileExtension(attachment);
-			if (ext != null) {
-				filename += "." + ext;
-			}
-			path = directory.resolve(filename);
-			path = Files.move(tempPath, path, StandardCopyOption.REPLACE_EXISTING);
-		} catch (IOException|NoSuchAlgorithmException e) {
+		try(
+			InputStream is = writer.openStream(attachment);
+		) {
+			path = DocumentStore.getInstance(directory).store(is, getFileExtension(attachment));
+		} catch (QuotaExceededException e) {
+			throw new WebApplicationException(e, Status.REQUEST_ENTITY_TOO_LARGE);
+		} catch (IOException e) {
 			logger.error("Failed to save file attachment", e);
 			return null;
-		} finally {
-			//cleanup files
-			if (tempPath != null) {
-				File file = tempPath.toFile();
-				if (file.exists()) {
-					file.delete();
-				}
-			}
 		}
 		
 		Document doc = new Document();
@@ -752,14 +787,49 @@ public class FeatureServiceImpl implements FeatureService {
 	 */
 	private void notifyNewFeature(Feature feature, String topic) throws Exception {
 		if (topic != null && feature != null) {
-			ObjectMapper mapper = new ObjectMapper();
-			String message = mapper.writeValueAsString(feature);
+			String message = JsonMapper.getInstance().toJson(feature);
 			getRabbitProducer().produce(topic, message);
 		}else{
 			throw new Exception("Could not notify user of a new feature. Feature/Topic was null.");
 		}
 	}
 	
+	/**
+	 * Notify users of features shared or copied into a collaboration room. The
+	 * notifications are serialized and published from the notification executor,
+	 * so the request does not wait on them. When shareBatchSize is greater than 1,
+	 * each message is a JSON array of up to that many features.
+	 * @param features
+	 * @param topic
+	 */
+	private void notifySharedFeatures(final List<Feature> features, final String topic) {
+		if (features.isEmpty()) {
+			return;
+		}
+		for (Feature feature : features) {
+			//we hijack topic to flag this feature not to be ignored
+			//otherwise a client ignores new features from the current user
+			feature.setTopic("share");
+		}
+		
+		notificationExecutor.execute(new Runnable() {
+			public void run() {
+				for (int start = 0; start < features.size(); start += shareBatchSize) {
+					List<Feature> batch = features.subList(start,
+							Math.min(features.size(), start + shareBatchSize));
+					try {
+						String message = (shareBatchSize > 1) ?
+								JsonMapper.getInstance().toJson(batch) :
+								JsonMapper.getInstance().toJson(batch.get(0));
+						getRabbitProducer().produce(topic, message);
+					} catch (Exception e) {
+						logger.error("Failed to publish new feature message", e);
+					}
+				}
+			}
+		});
+	}
+	
 	/**
 	 * Notify users of a new feature in a collaboration room
 	 * @param feature
@@ -777,15 +847,8 @@ public class FeatureServiceImpl implements FeatureService {
 	 * @return
 	 * @throws IOException
 	 */
-	private RabbitPubSubProducer getRabbitProducer() throws IOException {
-		if (rabbitProducer == null) {
-			rabbitProducer = RabbitFactory.makeRabbitPubSubProducer(
-					APIConfig.getInstance().getConfiguration().getString(APIConfig.RABBIT_HOSTNAME_KEY),
-					APIConfig.getInstance().getConfiguration().getString(APIConfig.RABBIT_EXCHANGENAME_KEY),
-					APIConfig.getInstance().getConfiguration().getString(APIConfig.RABBIT_USERNAME_KEY),
-					APIConfig.getInstance().getConfiguration().getString(APIConfig.RABBIT_USERPWD_KEY));
-		}
-		return rabbitProducer;
+	private RabbitPublisher getRabbitProducer() {
+		return RabbitPublisher.getInstance();
 	}
 	
 	private Response getAccessDeniedResponse(){
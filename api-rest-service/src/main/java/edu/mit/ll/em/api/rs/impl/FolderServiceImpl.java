@@ -36,15 +36,15 @@ import java.util.Date;
 import javax.ws.rs.core.Response;
 import javax.ws.rs.core.Response.Status;
 
-import org.codehaus.jackson.map.ObjectMapper;
 
+import edu.mit.ll.em.api.dataaccess.RabbitPublisher;
+import edu.mit.ll.em.api.metrics.InstrumentedDao;
 import edu.mit.ll.em.api.rs.FeatureServiceResponse;
 import edu.mit.ll.em.api.rs.FolderDataServiceResponse;
 import edu.mit.ll.em.api.rs.FolderService;
 import edu.mit.ll.em.api.util.APIConfig;
+import edu.mit.ll.em.api.util.JsonMapper;
 import edu.mit.ll.em.api.util.APILogger;
-import edu.mit.ll.nics.common.rabbitmq.RabbitFactory;
-import edu.mit.ll.nics.common.rabbitmq.RabbitPubSubProducer;
 import edu.mit.ll.nics.common.entity.Feature;
 import edu.mit.ll.nics.common.entity.Incident;
 import edu.mit.ll.nics.common.entity.datalayer.Datalayerfolder;
@@ -68,12 +68,10 @@ public class FolderServiceImpl implements FolderService {
 	private static final String CNAME = FolderServiceImpl.class.getName();
 	
 	/** Folder DAO */
-	private static final FolderDAO folderDao = new FolderDAOImpl();
+	private static final FolderDAO folderDao = InstrumentedDao.wrap(new FolderDAOImpl());
 	
 	/** Datalayer DAO */
-	private static final DatalayerDAO datalayerDao = new DatalayerDAOImpl();
-
-	private RabbitPubSubProducer rabbitProducer;
+	private static final DatalayerDAO datalayerDao = InstrumentedDao.wrap(new DatalayerDAOImpl());
 	
 	/**
 	 * Return Folder items
@@ -341,8 +339,7 @@ public class FolderServiceImpl implements FolderService {
 	
 	private void notifyFolder(Object folder, String topic) throws IOException {
 		if (folder != null) {
-			ObjectMapper mapper = new ObjectMapper();
-			String message = mapper.writeValueAsString(folder);
+			String message = JsonMapper.getInstance().toJson(folder);
 			getRabbitProducer().produce(topic, message);
 		}
 	}
@@ -352,15 +349,8 @@ public class FolderServiceImpl implements FolderService {
 	 * @return
 	 * @throws IOException
 	 */
-	private RabbitPubSubProducer getRabbitProducer() throws IOException {
-		if (rabbitProducer == null) {
-			rabbitProducer = RabbitFactory.makeRabbitPubSubProducer(
-					APIConfig.getInstance().getConfiguration().getString(APIConfig.RABBIT_HOSTNAME_KEY),
-					APIConfig.getInstance().getConfiguration().getString(APIConfig.RABBIT_EXCHANGENAME_KEY),
-					APIConfig.getInstance().getConfiguration().getString(APIConfig.RABBIT_USERNAME_KEY),
-					APIConfig.getInstance().getConfiguration().getString(APIConfig.RABBIT_USERPWD_KEY));
-		}
-		return rabbitProducer;
+	private RabbitPublisher getRabbitProducer() {
+		return RabbitPublisher.getInstance();
 	}
 
 }
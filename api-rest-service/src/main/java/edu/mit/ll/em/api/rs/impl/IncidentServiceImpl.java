@@ -39,12 +39,12 @@ import java.util.List;
 import javax.ws.rs.core.Response;
 import javax.ws.rs.core.Response.Status;
 
+import edu.mit.ll.em.api.dataaccess.RabbitPublisher;
+import edu.mit.ll.em.api.metrics.InstrumentedDao;
 import edu.mit.ll.em.api.util.APIConfig;
+import edu.mit.ll.em.api.util.JsonMapper;
 import edu.mit.ll.em.api.util.SADisplayConstants;
-import edu.mit.ll.nics.common.rabbitmq.RabbitFactory;
-import edu.mit.ll.nics.common.rabbitmq.RabbitPubSubProducer;
 
-import org.codehaus.jackson.map.ObjectMapper;
 import org.springframework.dao.DataAccessException;
 
 import edu.mit.ll.nics.common.entity.CollabRoom;
@@ -80,21 +80,19 @@ public class IncidentServiceImpl implements IncidentService {
 	private static final String DUPLICATE_NAME = "Incident name already exists.";
 	
 	/** The Incident DAO */
-	private static final IncidentDAOImpl incidentDao = new IncidentDAOImpl();
+	private static final IncidentDAOImpl incidentDao = InstrumentedDao.wrap(new IncidentDAOImpl());
 	
 	/** The Org DAO */
-	private static final OrgDAOImpl orgDao = new OrgDAOImpl();
+	private static final OrgDAOImpl orgDao = InstrumentedDao.wrap(new OrgDAOImpl());
 	
 	/** The User DAO */
-	private static final UserDAOImpl userDao = new UserDAOImpl();
+	private static final UserDAOImpl userDao = InstrumentedDao.wrap(new UserDAOImpl());
 	
 	/** The User DAO */
-	private static final UserOrgDAOImpl userOrgDao = new UserOrgDAOImpl();
+	private static final UserOrgDAOImpl userOrgDao = InstrumentedDao.wrap(new UserOrgDAOImpl());
 	
 	/** The User DAO */
-	private static final WorkspaceDAOImpl workspaceDao = new WorkspaceDAOImpl();
-	
-	private RabbitPubSubProducer rabbitProducer;
+	private static final WorkspaceDAOImpl workspaceDao = InstrumentedDao.wrap(new WorkspaceDAOImpl());
 	
 	
 	/**
@@ -488,8 +486,7 @@ public class IncidentServiceImpl implements IncidentService {
 	
 	private void notifyIncident(Incident newIncident, String topic) throws IOException {
 		if (newIncident != null) {
-			ObjectMapper mapper = new ObjectMapper();
-			String message = mapper.writeValueAsString(newIncident);
+			String message = JsonMapper.getInstance().toJson(newIncident);
 			getRabbitProducer().produce(topic, message);
 		}
 	}
@@ -806,15 +803,8 @@ public class IncidentServiceImpl implements IncidentService {
 	 * @return
 	 * @throws IOException
 	 */
-	private RabbitPubSubProducer getRabbitProducer() throws IOException {
-		if (rabbitProducer == null) {
-			rabbitProducer = RabbitFactory.makeRabbitPubSubProducer(
-					APIConfig.getInstance().getConfiguration().getString(APIConfig.RABBIT_HOSTNAME_KEY),
-					APIConfig.getInstance().getConfiguration().getString(APIConfig.RABBIT_EXCHANGENAME_KEY),
-					APIConfig.getInstance().getConfiguration().getString(APIConfig.RABBIT_USERNAME_KEY),
-					APIConfig.getInstance().getConfiguration().getString(APIConfig.RABBIT_USERPWD_KEY));
-		}
-		return rabbitProducer;
+	private RabbitPublisher getRabbitProducer() {
+		return RabbitPublisher.getInstance();
 	}
 }
 
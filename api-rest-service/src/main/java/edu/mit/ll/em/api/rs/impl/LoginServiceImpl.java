@@ -39,6 +39,8 @@ import javax.ws.rs.core.Response.Status;
 
 import org.springframework.dao.DataAccessException;
 
+import edu.mit.ll.em.api.dataaccess.SSOTokenCache;
+import edu.mit.ll.em.api.metrics.InstrumentedDao;
 import edu.mit.ll.em.api.rs.Login;
 import edu.mit.ll.em.api.rs.LoginResponse;
 import edu.mit.ll.em.api.rs.LoginService;
@@ -66,19 +68,19 @@ import edu.mit.ll.soa.sso.exception.InitializationException;
 public class LoginServiceImpl implements LoginService {
 
 	/** User DAO */
-	private static final UserDAOImpl userDao = new UserDAOImpl();
+	private static final UserDAOImpl userDao = InstrumentedDao.wrap(new UserDAOImpl());
 	
 	/** UserSession DAO */
-	private static final UserSessionDAOImpl userSessDao = new UserSessionDAOImpl();
+	private static final UserSessionDAOImpl userSessDao = InstrumentedDao.wrap(new UserSessionDAOImpl());
 	
 	/** UserOrg DAO */
-	private static final UserOrgDAOImpl userOrgDao = new UserOrgDAOImpl();
+	private static final UserOrgDAOImpl userOrgDao = InstrumentedDao.wrap(new UserOrgDAOImpl());
 	
 	/** Org DAO */
-	private static final OrgDAOImpl orgDao = new OrgDAOImpl();
+	private static final OrgDAOImpl orgDao = InstrumentedDao.wrap(new OrgDAOImpl());
 	
 	/** Workspace DAO */
-	private static final WorkspaceDAOImpl wsDao = new WorkspaceDAOImpl();
+	private static final WorkspaceDAOImpl wsDao = InstrumentedDao.wrap(new WorkspaceDAOImpl());
 	
 	private SSOUtil ssoUtil = null;
 	
@@ -226,8 +228,8 @@ public class LoginServiceImpl implements LoginService {
 					return response;
 				}
 				
-				APILogger.getInstance().d("LoginServiceImpl", "Login found user: " + u.getUsername() + "(" +
-						u.getUserId() + ")");
+				APILogger.getInstance().d("LoginServiceImpl", "Login found user: {}({})",
+						u.getUsername(), u.getUserId());
 				
 				int userId = u.getUserId();
 				if(userId <= 0) {
@@ -377,6 +379,7 @@ public class LoginServiceImpl implements LoginService {
 			
 			if(ssoUtil != null) {
 				ssoUtil.destroyToken(token);
+				SSOTokenCache.getInstance().revoke(token);
 				status = true;
 			} else {
 				APILogger.getInstance().i("LoginServiceImpl", 
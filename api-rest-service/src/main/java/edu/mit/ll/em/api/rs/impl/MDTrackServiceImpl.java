@@ -46,6 +46,7 @@ import org.json.JSONObject;
 import edu.mit.ll.em.api.dataaccess.EntityCacheMgr;
 import edu.mit.ll.em.api.dataaccess.ICSDatastoreException;
 import edu.mit.ll.em.api.dataaccess.MDTrackDAO;
+import edu.mit.ll.em.api.dataaccess.SSOTokenCache;
 import edu.mit.ll.em.api.rs.MDTOptionalParms;
 import edu.mit.ll.em.api.rs.MDTrack;
 import edu.mit.ll.em.api.rs.MDTrackService;
@@ -66,6 +67,38 @@ public class MDTrackServiceImpl implements MDTrackService {
 
 	private static final String CNAME = MDTrackServiceImpl.class.getName();
 	
+	/**
+	 * Reads the uid of a token's user from the SSO server, as an admin.
+	 */
+	private static final SSOTokenCache.Resolver SSO_RESOLVER = new SSOTokenCache.Resolver() {
+		public String resolve(String token) throws Exception {
+			SSOUtil ssoUtil = null;
+			try {
+				ssoUtil = new SSOUtil();
+				ssoUtil.loginAsAdmin();
+				
+				Map map = ssoUtil.getUserAttributes(token);
+				if(map == null || !map.containsKey("uid")) {
+					APILogger.getInstance().i("MDTrackService:verifySender", "No uid in user attributes of token");
+					return null;
+				}
+				
+				String email = null;
+				HashSet emailSet = (HashSet)map.get("uid");
+				Iterator<String> emailSetIter = emailSet.iterator();
+				while(emailSetIter.hasNext()) {
+					email = (String) emailSetIter.next();
+					APILogger.getInstance().i("MDTrackService:verifySender", "found email in email hash set: " + email);
+				}
+				return email;
+			} finally {
+				if(ssoUtil != null) {
+					ssoUtil.logout();
+				}
+			}
+		}
+	};
+	
 	/**
 	 * Read and return all MDTrack items.
 	 * @return Response
@@ -162,36 +195,9 @@ public class MDTrackServiceImpl implements MDTrackService {
 	public Response postMDTrack(Cookie cookie, MDTrack mdtrack) {
 		MDTrackServiceResponse mdtrackResponse = new MDTrackServiceResponse();
 		Response response = null;
-		boolean verified = false;
 		if(mdtrack != null) {
-			String verifyMsg = null;
-			try {
-				verifyMsg = verifySender(cookie, mdtrack.getUserId());
-				APILogger.getInstance().i("MDTrackService", "\nGot verifyMsg: " + verifyMsg + "\n");
-				if(verifyMsg != null) {
-					JSONObject verifyJson = new JSONObject(verifyMsg);
-					if(verifyJson.getString("status").equals("success")) {
-						APILogger.getInstance().i("MDTrackService", "Got status SUCCESS: " + verifyJson.getString("status"));
-						verified = true;
-						APILogger.getInstance().i("MDTrackService", "Token identity matched NICS identity!");
-					} else if(verifyJson.getString("status").equals("fail")){
-						APILogger.getInstance().i("MDTrackService", "Got status FAIL: " + verifyJson.getString("status"));
-						mdtrackResponse.setMessage(verifyJson.getString("message"));
-						mdtrackResponse.setCount(0);
-						response = Response.ok(mdtrackResponse).status(Status.EXPECTATION_FAILED).build();
-					} else {
-						mdtrackResponse.setMessage(verifyJson.getString("message"));
-						response = Response.ok(mdtrackResponse).status(Status.EXPECTATION_FAILED).build();
-						APILogger.getInstance().i("MDTrackService", "Got unknown status: " + verifyJson.getString("status")); 
-					}
-				}
-			} catch (JSONException e) {
-				mdtrackResponse.setMessage("Error processing Identity: " + e.getMessage());
-				mdtrackResponse.setCount(0);
-				response = Response.ok(mdtrackResponse).status(Status.INTERNAL_SERVER_ERROR).build();
-			}
-			
-			if(!verified) {
+			response = verify(cookie, mdtrack.getUserId(), mdtrackResponse);
+			if(response != null) {
 				return response;
 			}
 		} else {
@@ -216,6 +222,98 @@ public class MDTrackServiceImpl implements MDTrackService {
 
 		return response;	
 	}
+	
+	/**
+	 *  Creation of a batch of MDTrack items, all sent by the same user. The
+	 *  sender is verified once for the batch, and the positions are published
+	 *  with those of other batches, keeping only the latest position of each
+	 *  device. See MDTrackDAO.createMDTracks.
+	 *  
+	 *  Response
+	 *  MDTrackResponse, with the count of positions accepted
+	 */	
+	public Response postMDTracks(Cookie cookie, Collection<MDTrack> mdtracks) {
+		MDTrackServiceResponse mdtrackResponse = new MDTrackServiceResponse();
+		Response response = null;
+		if(mdtracks == null || mdtracks.isEmpty() || mdtracks.contains(null)) {
+			mdtrackResponse.setMessage("Invalid MDTracks sent");
+			mdtrackResponse.setCount(0);
+			return Response.ok(mdtrackResponse).status(Status.EXPECTATION_FAILED).build();
+		}
+		
+		int userId = mdtracks.iterator().next().getUserId();
+		for(MDTrack mdtrack : mdtracks) {
+			if(mdtrack.getUserId() != userId) {
+				mdtrackResponse.setMessage("All MDTracks in a batch must have the same userId");
+				mdtrackResponse.setCount(0);
+				return Response.ok(mdtrackResponse).status(Status.BAD_REQUEST).build();
+			}
+		}
+		
+		response = verify(cookie, userId, mdtrackResponse);
+		if(response != null) {
+			return response;
+		}
+		
+		try {
+			int count = MDTrackDAO.getInstance().createMDTracks(mdtracks);
+			mdtrackResponse.setMessage("ok");
+			mdtrackResponse.setCount(count);
+			response = Response.ok(mdtrackResponse).status(Status.OK).build();
+		} catch (ICSDatastoreException e) {
+			APILogger.getInstance().e(CNAME, e.getMessage());
+			mdtrackResponse.setMessage("failed to create mdtracks. " + e.getMessage());
+			response = Response.ok(mdtrackResponse).status(Status.INTERNAL_SERVER_ERROR).build();
+		}
+		
+		return response;
+	}
+	
+	/**
+	 * Checks the SSO token in the cookie belongs to the user.
+	 * 
+	 * @return null if verified, otherwise the failure response
+	 */
+	private Response verify(Cookie cookie, int userId, MDTrackServiceResponse mdtrackResponse) {
+		Response response = null;
+		boolean verified = false;
+		String verifyMsg = null;
+		try {
+			verifyMsg = verifySender(cookie, userId);
+			APILogger.getInstance().i("MDTrackService", "\nGot verifyMsg: " + verifyMsg + "\n");
+			if(verifyMsg != null) {
+				JSONObject verifyJson = new JSONObject(verifyMsg);
+				if(verifyJson.getString("status").equals("success")) {
+					APILogger.getInstance().i("MDTrackService", "Got status SUCCESS: " + verifyJson.getString("status"));
+					verified = true;
+					APILogger.getInstance().i("MDTrackService", "Token identity matched NICS identity!");
+				} else if(verifyJson.getString("status").equals("fail")){
+					APILogger.getInstance().i("MDTrackService", "Got status FAIL: " + verifyJson.getString("status"));
+					mdtrackResponse.setMessage(verifyJson.getString("message"));
+					mdtrackResponse.setCount(0);
+					response = Response.ok(mdtrackResponse).status(Status.EXPECTATION_FAILED).build();
+				} else {
+					mdtrackResponse.setMessage(verifyJson.getString("message"));
+					response = Response.ok(mdtrackResponse).status(Status.EXPECTATION_FAILED).build();
+					APILogger.getInstance().i("MDTrackService", "Got unknown status: " + verifyJson.getString("status")); 
+				}
+			}
+		} catch (JSONException e) {
+			mdtrackResponse.setMessage("Error processing Identity: " + e.getMessage());
+			mdtrackResponse.setCount(0);
+			response = Response.ok(mdtrackResponse).status(Status.INTERNAL_SERVER_ERROR).build();
+		}
+		
+		if(verified) {
+			return null;
+		}
+		if(response == null) {
+			mdtrackResponse.setMessage("Unable to verify identity");
+			mdtrackResponse.setCount(0);
+			response = Response.ok(mdtrackResponse).status(Status.EXPECTATION_FAILED).build();
+		}
+		return response;
+	}
 		
 		
 	private String verifySender(Cookie cookie, int userId) throws JSONException {
@@ -250,52 +348,27 @@ public class MDTrackServiceImpl implements MDTrackService {
 			return ret.toString();
 		}
 		
-		SSOUtil ssoUtil = null;
+		// Cached, so steady posts with the same token don't go to the SSO server
+		String email = null;
 		try {
-			ssoUtil = new SSOUtil();
-			ssoUtil.loginAsAdmin();
-						
-			Map map = ssoUtil.getUserAttributes(token);
-			StringBuilder sb = new StringBuilder();
-			
-			if(map != null && map.containsKey("uid")) {
-				//String email = (String)map.get("uid");
-				String email = null;
-				
-				HashSet emailSet = (HashSet)map.get("uid");
-				Iterator<String> emailSetIter = emailSet.iterator();
-				while(emailSetIter.hasNext()) {
-					email = (String) emailSetIter.next();
-					APILogger.getInstance().i("MDTrackService:verifySender", "found email in email hash set: " + email);
-				}
-				
-				if(email != null && !email.isEmpty() && email.contains(username)) {
-					// matches
-					ret.put("message", "User's ID matches Identity");
-					ret.put("status", "success");
-				} else {
-					ret.put("message", String.format("User's ID does not match identity. Sent token belongs to %s, but"
-							+ " the userId maps to %s", email, username));
-					ret.put("status", "fail");
-				}
-				
-			} else {
-				ret.put("message", "Error reading uid from user attributes");
-				ret.put("status", "fail");
-			}
-			
-			return ret.toString();
-		
+			email = SSOTokenCache.getInstance().getUid(token, SSO_RESOLVER);
 		} catch(Exception e) {
 			ret.put("message", "Unhanlded exception verifying identity: " + e.getMessage());
 			ret.put("status", "fail");
-		} finally {
-			if(ssoUtil != null) {
-				String adminToken = ssoUtil.getTokenIfExists();
-				if(token != null && !token.isEmpty()) {
-					boolean destroyed = ssoUtil.logout(); 
-				}
-			}
+			return ret.toString();
+		}
+		
+		if(email == null) {
+			ret.put("message", "Error reading uid from user attributes");
+			ret.put("status", "fail");
+		} else if(!email.isEmpty() && email.contains(username)) {
+			// matches
+			ret.put("message", "User's ID matches Identity");
+			ret.put("status", "success");
+		} else {
+			ret.put("message", String.format("User's ID does not match identity. Sent token belongs to %s, but"
+					+ " the userId maps to %s", email, username));
+			ret.put("status", "fail");
 		}
 		
 		return ret.toString();
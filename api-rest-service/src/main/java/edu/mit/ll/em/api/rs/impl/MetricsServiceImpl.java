@@ -0,0 +1,125 @@
+/**
+ * Copyright (c) 2008-2016, Massachusetts Institute of Technology (MIT)
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its contributors
+ * may be used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package edu.mit.ll.em.api.rs.impl;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.ws.rs.core.Response;
+import javax.ws.rs.core.Response.Status;
+
+import edu.mit.ll.em.api.dataaccess.EntityCache;
+import edu.mit.ll.em.api.dataaccess.EntityCacheMgr;
+import edu.mit.ll.em.api.dataaccess.RabbitPublisher;
+import edu.mit.ll.em.api.dataaccess.SSOTokenCache;
+import edu.mit.ll.em.api.main.ResponseCache;
+import edu.mit.ll.em.api.metrics.MetricsRegistry;
+import edu.mit.ll.em.api.msgbus.MsgBusSubscriptionMgr;
+import edu.mit.ll.em.api.metrics.PrometheusWriter;
+import edu.mit.ll.em.api.rs.MetricsService;
+
+/**
+ * Exposes the endpoint metrics recorded by MetricsFilter, along with the entity
+ * cache, response cache, SSO token cache, notification publisher and message bus statistics,
+ * in Prometheus text format.
+ */
+public class MetricsServiceImpl implements MetricsService {
+
+	@Override
+	public Response getMetrics() {
+		StringBuilder out = new StringBuilder(16384);
+		PrometheusWriter writer = new PrometheusWriter(out);
+		
+		MetricsRegistry.getInstance().writeMetrics(writer);
+		writeCacheMetrics(writer);
+		writePublisherMetrics(writer);
+		writeMsgBusMetrics(writer);
+		
+		return Response.ok(out.toString(), PrometheusWriter.CONTENT_TYPE).status(Status.OK).build();
+	}
+	
+	private void writeCacheMetrics(PrometheusWriter writer) {
+		List<EntityCache<?, ?>> caches = new ArrayList<EntityCache<?, ?>>(
+				EntityCacheMgr.getInstance().getCaches());
+		caches.add(ResponseCache.getInstance().getCache());
+		caches.add(SSOTokenCache.getInstance().getCache());
+		caches.add(SSOTokenCache.getInstance().getInvalidCache());
+		
+		writer.family("em_api_cache_size", "gauge", "Entries held by the entity cache");
+		for (EntityCache<?, ?> cache : caches) {
+			writer.sample("em_api_cache_size", cache.size(), "cache", cache.getName());
+		}
+		writer.family("em_api_cache_requests_total", "counter", "Entity cache lookups");
+		for (EntityCache<?, ?> cache : caches) {
+			writer.sample("em_api_cache_requests_total", cache.getHitCount(), "cache", cache.getName(), "result", "hit");
+			writer.sample("em_api_cache_requests_total", cache.getMissCount(), "cache", cache.getName(), "result", "miss");
+		}
+		writer.family("em_api_cache_loads_total", "counter", "Entity cache loads from the database");
+		for (EntityCache<?, ?> cache : caches) {
+			writer.sample("em_api_cache_loads_total", cache.getLoadCount(), "cache", cache.getName(), "result", "success");
+			writer.sample("em_api_cache_loads_total", cache.getLoadFailureCount(), "cache", cache.getName(), "result", "failure");
+		}
+		writer.family("em_api_cache_removals_total", "counter", "Entity cache entries dropped");
+		for (EntityCache<?, ?> cache : caches) {
+			writer.sample("em_api_cache_removals_total", cache.getEvictionCount(), "cache", cache.getName(), "cause", "size");
+			writer.sample("em_api_cache_removals_total", cache.getExpirationCount(), "cache", cache.getName(), "cause", "expired");
+		}
+	}
+	
+	private void writePublisherMetrics(PrometheusWriter writer) {
+		RabbitPublisher publisher = RabbitPublisher.getInstance();
+		
+		writer.family("em_api_publisher_outbox_depth", "gauge", "Notifications waiting to be published")
+			.sample("em_api_publisher_outbox_depth", publisher.getOutboxDepth());
+		writer.family("em_api_publisher_unconfirmed", "gauge", "Published notifications not yet confirmed by the broker")
+			.sample("em_api_publisher_unconfirmed", publisher.getUnconfirmedCount());
+		writer.family("em_api_publisher_messages_total", "counter", "Notifications handled by the publisher")
+			.sample("em_api_publisher_messages_total", publisher.getPublishedCount(), "result", "published")
+			.sample("em_api_publisher_messages_total", publisher.getConfirmedCount(), "result", "confirmed")
+			.sample("em_api_publisher_messages_total", publisher.getRetriedCount(), "result", "retried")
+			.sample("em_api_publisher_messages_total", publisher.getRejectedCount(), "result", "rejected")
+			.sample("em_api_publisher_messages_total", publisher.getFailedCount(), "result", "failed");
+	}
+	
+	private void writeMsgBusMetrics(PrometheusWriter writer) {
+		MsgBusSubscriptionMgr mgr = MsgBusSubscriptionMgr.getInstance();
+		
+		writer.family("em_api_msgbus_sessions", "gauge", "Open message bus subscriptions")
+			.sample("em_api_msgbus_sessions", mgr.getSessionCount());
+		writer.family("em_api_msgbus_queue_depth", "gauge", "Messages queued across all subscriptions")
+			.sample("em_api_msgbus_queue_depth", mgr.getQueuedMessageCount());
+		writer.family("em_api_msgbus_queue_depth_max", "gauge", "Messages queued for the furthest behind subscription")
+			.sample("em_api_msgbus_queue_depth_max", mgr.getMaxQueueDepth());
+		writer.family("em_api_msgbus_messages_dropped_total", "counter", "Messages dropped by full subscription queues")
+			.sample("em_api_msgbus_messages_dropped_total", mgr.getDroppedCount());
+		writer.family("em_api_msgbus_sessions_reaped_total", "counter", "Idle subscriptions ended by the reaper")
+			.sample("em_api_msgbus_sessions_reaped_total", mgr.getReapedCount());
+	}
+}
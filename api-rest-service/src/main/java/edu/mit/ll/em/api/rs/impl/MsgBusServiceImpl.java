@@ -29,35 +29,151 @@
  */
 package edu.mit.ll.em.api.rs.impl;
 
+import java.io.IOException;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 
+import javax.ws.rs.container.AsyncResponse;
+import javax.ws.rs.container.TimeoutHandler;
 import javax.ws.rs.core.Response;
 import javax.ws.rs.core.Response.Status;
 
 import edu.mit.ll.em.api.dataaccess.MessageBusAccess;
 import edu.mit.ll.em.api.msgbus.MsgBusSubscriptionException;
+import edu.mit.ll.em.api.msgbus.SubscriptionSession;
 import edu.mit.ll.em.api.rs.MsgBusResponse;
 import edu.mit.ll.em.api.rs.MsgBusService;
 import edu.mit.ll.em.api.rs.MsgEnvelope;
+import edu.mit.ll.em.api.util.APIConfig;
+import edu.mit.ll.em.api.util.APILogger;
+import edu.mit.ll.em.api.util.JsonMapper;
 
+/**
+ * Message bus subscriptions. Waiting GETs are suspended AsyncResponses, resumed
+ * from the thread that posts to the subscription, or by the container when the
+ * wait times out, so an idle subscriber holds no thread.
+ */
 public class MsgBusServiceImpl implements MsgBusService {
 
-	public Response getMsgs(long userId) {
-		Response response = null;
-		MsgBusResponse msgbusResponse = new MsgBusResponse();
+	private static final String CNAME = MsgBusServiceImpl.class.getName();
+
+	public void getMsgs(long userId, int waitSecs, AsyncResponse response) {
+		deliver(userId, waitSecs, response, false);
+	}
+
+	public void getMsgEvents(long userId, int waitSecs, AsyncResponse response) {
+		deliver(userId, waitSecs, response, true);
+	}
+
+	/**
+	 * Answers with the waiting messages, or suspends the response until messages
+	 * are posted or waitSecs run out. Only one of the listener and the timeout
+	 * handler answers a suspended response.
+	 */
+	private void deliver(final long userId, int waitSecs, final AsyncResponse response,
+			final boolean events) {
+		int maxWait = APIConfig.getInstance().getConfiguration()
+				.getInt(APIConfig.MSGBUS_WAIT_MAXSECONDS, 60);
+		int wait = Math.min(Math.max(0, waitSecs), maxWait);
+
+		final AtomicBoolean answered = new AtomicBoolean();
+		final SubscriptionSession.Listener listener = new SubscriptionSession.Listener() {
+			public void messagesPosted(SubscriptionSession session) {
+				if (answered.compareAndSet(false, true) && response.isSuspended()) {
+					resumeWithMessages(userId, response, events);
+				}
+			}
+		};
+		if (wait > 0) {
+			response.setTimeout(wait, TimeUnit.SECONDS);
+			response.setTimeoutHandler(new TimeoutHandler() {
+				public void handleTimeout(AsyncResponse timedOut) {
+					MessageBusAccess.getInstance().cancelAwait(userId, listener);
+					if (!answered.compareAndSet(false, true)) {
+						return;
+					}
+					timedOut.resume(events ? buildEvents(Collections.<MsgEnvelope>emptyList()) :
+						buildResponse(Collections.<MsgEnvelope>emptyList(), "ok"));
+				}
+			});
+			if (MessageBusAccess.getInstance().awaitMessages(userId, listener)) {
+				return;
+			}
+		}
+		resumeWithMessages(userId, response, events);
+	}
 
+	/**
+	 * Drains the subscription into the response. If the response can no longer be
+	 * resumed, as when the client has gone away, the messages are put back for the
+	 * next request.
+	 */
+	private void resumeWithMessages(long userId, AsyncResponse response, boolean events) {
+		Collection<MsgEnvelope> msgs = Collections.emptyList();
+		String message = "ok";
 		try {
-			for (MsgEnvelope e : MessageBusAccess.getInstance().getAllMessages(userId)) {
-				msgbusResponse.getBusMsgs().add(e);
+			msgs = MessageBusAccess.getInstance().getAllMessages(userId);
+			if (msgs == null) {
+				msgs = Collections.emptyList();
+				message = "failure. Subscription ID not found: " + userId;
 			}
-			msgbusResponse.setMessage("ok");
 		} catch (MsgBusSubscriptionException e) {
-			msgbusResponse.setMessage("failure. " + e.getMessage());
+			message = "failure. " + e.getMessage();
 		}
-		response = Response.ok(msgbusResponse).status(Status.OK).build();			
+		Response built;
+		if (events) {
+			built = message.equals("ok") ? buildEvents(msgs) :
+				Response.status(Status.NOT_FOUND).entity(message).build();
+		} else {
+			built = buildResponse(msgs, message);
+		}
+		if (!response.resume(built) && !msgs.isEmpty()) {
+			try {
+				MessageBusAccess.getInstance().postMessages(userId, msgs);
+			} catch (MsgBusSubscriptionException e) {
+				APILogger.getInstance().w(CNAME, "Dropped {} undelivered messages for subscription {}: {}",
+						msgs.size(), userId, e.getMessage());
+			}
+		}
+	}
 
-		return response;
+	private Response buildResponse(Collection<MsgEnvelope> msgs, String message) {
+		MsgBusResponse msgbusResponse = new MsgBusResponse();
+		msgbusResponse.getBusMsgs().addAll(msgs);
+		msgbusResponse.setCount(msgs.size());
+		msgbusResponse.setMessage(message);
+		return Response.ok(msgbusResponse).status(Status.OK).build();
+	}
+
+	/**
+	 * Formats messages as Server-Sent Events.
+	 */
+	private Response buildEvents(Collection<MsgEnvelope> msgs) {
+		StringBuilder body = new StringBuilder();
+		body.append("retry: ").append(APIConfig.getInstance().getConfiguration()
+				.getInt(APIConfig.MSGBUS_SSE_RETRYMILLIS, 250)).append("\n");
+		if (msgs.isEmpty()) {
+			// Comment line, so proxies see traffic on an idle stream
+			body.append(": idle\n");
+		}
+		for (MsgEnvelope msg : msgs) {
+			try {
+				if (msg.getMsgType() != null) {
+					body.append("event: ").append(msg.getMsgType().replaceAll("[\r\n]", " ")).append('\n');
+				}
+				body.append("data: ").append(JsonMapper.getInstance().toJson(msg)).append("\n\n");
+			} catch (IOException e) {
+				APILogger.getInstance().w(CNAME, "Unable to serialize message of type {}: {}",
+						msg.getMsgType(), e.getMessage());
+			}
+		}
+		if (msgs.isEmpty()) {
+			body.append('\n');
+		}
+		return Response.ok(body.toString(), EVENT_STREAM).build();
 	}
 
 	public Response postMsgs(long userId, Collection<MsgEnvelope> msgs) {
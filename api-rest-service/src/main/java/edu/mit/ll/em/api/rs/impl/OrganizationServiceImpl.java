@@ -40,6 +40,7 @@ import javax.ws.rs.core.Response.Status;
 
 import org.springframework.dao.DataAccessException;
 
+import edu.mit.ll.em.api.metrics.InstrumentedDao;
 import edu.mit.ll.em.api.rs.OrgOrgTypeServiceResponse;
 import edu.mit.ll.em.api.rs.OrganizationService;
 import edu.mit.ll.em.api.rs.OrganizationServiceResponse;
@@ -61,7 +62,7 @@ public class OrganizationServiceImpl implements OrganizationService {
 	private static final String CNAME = OrganizationServiceImpl.class.getName();
 	
 	/** Organization DAO */
-	private static final OrgDAOImpl orgDao = new OrgDAOImpl();
+	private static final OrgDAOImpl orgDao = InstrumentedDao.wrap(new OrgDAOImpl());
 	
 	
 	/**
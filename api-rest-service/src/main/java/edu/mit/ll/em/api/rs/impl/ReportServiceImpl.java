@@ -31,6 +31,7 @@ package edu.mit.ll.em.api.rs.impl;
 
 import java.io.File;
 import java.io.IOException;
+import java.nio.file.Files;
 import java.util.ArrayList;
 import java.util.Calendar;
 import java.util.Collection;
@@ -45,13 +46,9 @@ import javax.ws.rs.core.Response;
 import javax.ws.rs.core.Response.Status;
 
 import edu.mit.ll.nics.common.entity.*;
-import edu.mit.ll.nics.common.rabbitmq.RabbitFactory;
-import edu.mit.ll.nics.common.rabbitmq.RabbitPubSubProducer;
 import edu.mit.ll.nics.nicsdao.impl.*;
-import org.apache.commons.io.FileUtils;
 import org.apache.cxf.jaxrs.ext.multipart.Attachment;
 import org.apache.cxf.jaxrs.ext.multipart.MultipartBody;
-import org.codehaus.jackson.map.ObjectMapper;
 import org.json.JSONException;
 import org.json.JSONObject;
 
@@ -59,17 +56,22 @@ import com.vividsolutions.jts.geom.Coordinate;
 import com.vividsolutions.jts.geom.GeometryFactory;
 import com.vividsolutions.jts.geom.PrecisionModel;
 
+import edu.mit.ll.em.api.dataaccess.RabbitPublisher;
 import edu.mit.ll.em.api.dataaccess.EntityCacheMgr;
 import edu.mit.ll.em.api.dataaccess.ICSDatastoreException;
 import edu.mit.ll.em.api.dataaccess.ReportDAO;
 import edu.mit.ll.em.api.exception.BadContentException;
+import edu.mit.ll.em.api.metrics.InstrumentedDao;
 import edu.mit.ll.em.api.rs.QueryConstraintHelper;
 import edu.mit.ll.em.api.rs.Report;
 import edu.mit.ll.em.api.rs.ReportOptParms;
 import edu.mit.ll.em.api.rs.ReportService;
 import edu.mit.ll.em.api.rs.ReportServiceResponse;
 import edu.mit.ll.em.api.util.APIConfig;
+import edu.mit.ll.em.api.util.JsonMapper;
 import edu.mit.ll.em.api.util.APILogger;
+import edu.mit.ll.em.api.util.AttachmentWriter;
+import edu.mit.ll.em.api.util.AttachmentWriter.QuotaExceededException;
 import edu.mit.ll.nics.common.rabbitmq.client.RabbitProducer;
 
 /**
@@ -81,14 +83,12 @@ public class ReportServiceImpl implements ReportService {
 
 	private static final String CNAME = ReportServiceImpl.class.getName();
 	
-	private static final IncidentDAOImpl incidentDao = new IncidentDAOImpl();
-	private static final UserDAOImpl userDao = new UserDAOImpl();
-	private static final FormDAOImpl formDao = new FormDAOImpl();
-	private static final PhiDAOImpl phiDao = new PhiDAOImpl();
-	private static final UserSessionDAOImpl userSessDao = new UserSessionDAOImpl();
-    private static final UxoreportDAOImpl uxoreportDao = new UxoreportDAOImpl();
-	
-	private RabbitPubSubProducer rabbitProducer = null;
+	private static final IncidentDAOImpl incidentDao = InstrumentedDao.wrap(new IncidentDAOImpl());
+	private static final UserDAOImpl userDao = InstrumentedDao.wrap(new UserDAOImpl());
+	private static final FormDAOImpl formDao = InstrumentedDao.wrap(new FormDAOImpl());
+	private static final PhiDAOImpl phiDao = InstrumentedDao.wrap(new PhiDAOImpl());
+	private static final UserSessionDAOImpl userSessDao = InstrumentedDao.wrap(new UserSessionDAOImpl());
+    private static final UxoreportDAOImpl uxoreportDao = InstrumentedDao.wrap(new UxoreportDAOImpl());
 	
 	/**
 	 * Read and return all Report items.
@@ -438,6 +438,12 @@ public class ReportServiceImpl implements ReportService {
 			}else if(ft.getFormTypeName().toUpperCase().equals("UXO")) {
 				return handleUXOReport(incidentId, formTypeId, body);
 			}
+		} catch (QuotaExceededException e) {
+			APILogger.getInstance().w(CNAME, e.getMessage());
+			reportResponse.setMessage("Failure. " + e.getMessage());
+			reportResponse.setCount(0);
+			response = Response.ok(reportResponse).status(Status.REQUEST_ENTITY_TOO_LARGE).build();
+			return response;
 		} catch (BadContentException e) {
 			APILogger.getInstance().e(CNAME, e.getMessage());
 			reportResponse.setMessage("Failure. " + e.getMessage());
@@ -583,12 +589,13 @@ public class ReportServiceImpl implements ReportService {
 	
 	private Response handleSimpleReport(int incidentId,
 			int formTypeId, MultipartBody body) throws JSONException, 
-			BadContentException {
+			BadContentException, QuotaExceededException {
 		Response response = null;
 		ReportServiceResponse reportResponse = new ReportServiceResponse();
 		
 		List<Attachment> attachments = body.getAllAttachments();
 		String key, value;
+		AttachmentWriter writer = new AttachmentWriter();
 		
 		// TODO:refactor remove phinics-dev url, and ensure defaults are
 		// up to date with our newer Ubuntu 14.04 VM deployments
@@ -680,18 +687,22 @@ public class ReportServiceImpl implements ReportService {
 				filename = Calendar.getInstance().getTimeInMillis() + "-0" + ext;
 				msg.put("image", filename);
 				
-				byte[] content = a.getObject(byte[].class);
-				if (content != null) {
-					// Write to file
-					File f = new File(storagePath.concat(filename));
-					try {
-						FileUtils.writeByteArrayToFile(f, content);
-						msg.put("image", url.concat(filename));
-						msg.put("fullpath", path.concat(filename));
-					} catch (IOException e) {
-						throw new BadContentException("Unable to write file: " + e.getMessage());
-					}
+				// Stream to file
+				File f = new File(storagePath.concat(filename));
+				long written;
+				try {
+					Files.createDirectories(f.toPath().getParent());
+					written = writer.write(a, f.toPath());
+				} catch (QuotaExceededException e) {
+					throw e;
+				} catch (IOException e) {
+					throw new BadContentException("Unable to write file: " + e.getMessage());
+				}
+				if (written > 0) {
+					msg.put("image", url.concat(filename));
+					msg.put("fullpath", path.concat(filename));
 				} else {
+					f.delete();
 					throw new BadContentException("No attachment");
 				}
 			}	
@@ -775,13 +786,14 @@ public class ReportServiceImpl implements ReportService {
 	}
 	
 	private Response handleDamageReport(int incidentId, int formTypeId, MultipartBody body) throws JSONException, 
-			BadContentException {
+			BadContentException, QuotaExceededException {
 		
 		Response response = null;
 		ReportServiceResponse reportResponse = new ReportServiceResponse();
 		
 		List<Attachment> attachments = body.getAllAttachments();
 		String key, value;
+		AttachmentWriter writer = new AttachmentWriter();
 		
 		String storagePath = APIConfig.getInstance().getConfiguration().getString(APIConfig.REPORTS_DR_STORAGEPATH, "/opt/data/nics/upload/report/damage/");
 		String url = APIConfig.getInstance().getConfiguration().getString(APIConfig.REPORTS_DR_URL, "/data/nics/static/image-upload/report/damage/");
@@ -851,18 +863,22 @@ public class ReportServiceImpl implements ReportService {
 				filename = Calendar.getInstance().getTimeInMillis() + "-0" + ext;
 				msg.put("dr-D-image", filename);
 				
-				byte[] content = a.getObject(byte[].class);
-				if (content != null) {
-					// Write to file
-					File f = new File(storagePath.concat(filename));
-					try {
-						FileUtils.writeByteArrayToFile(f, content);
-						msg.put("dr-D-image", url.concat(filename));
-						msg.put("dr-D-fullPath", path.concat(filename));
-					} catch (IOException e) {
-						throw new BadContentException("Unable to write file: " + e.getMessage());
-					}
+				// Stream to file
+				File f = new File(storagePath.concat(filename));
+				long written;
+				try {
+					Files.createDirectories(f.toPath().getParent());
+					written = writer.write(a, f.toPath());
+				} catch (QuotaExceededException e) {
+					throw e;
+				} catch (IOException e) {
+					throw new BadContentException("Unable to write file: " + e.getMessage());
+				}
+				if (written > 0) {
+					msg.put("dr-D-image", url.concat(filename));
+					msg.put("dr-D-fullPath", path.concat(filename));
 				} else {
+					f.delete();
 					throw new BadContentException("No attachment");
 				}
 			}	
@@ -949,13 +965,14 @@ public class ReportServiceImpl implements ReportService {
 	}
 	
 	private Response handleUXOReport(int incidentId, int formTypeId, MultipartBody body) throws JSONException, 
-		BadContentException {
+		BadContentException, QuotaExceededException {
 	
 		Response response = null;
 		ReportServiceResponse reportResponse = new ReportServiceResponse();
 		
 		List<Attachment> attachments = body.getAllAttachments();
 		String key, value;
+		AttachmentWriter writer = new AttachmentWriter();
 		
 		String storagePath = APIConfig.getInstance().getConfiguration().getString(APIConfig.REPORTS_UXO_STORAGEPATH, "/opt/data/nics/upload/report/uxo/");
 		String url = APIConfig.getInstance().getConfiguration().getString(APIConfig.REPORTS_UXO_URL, "/data/nics/static/image-upload/report/uxo/");
@@ -1021,18 +1038,22 @@ public class ReportServiceImpl implements ReportService {
 				filename = Calendar.getInstance().getTimeInMillis() + "-0" + ext;
 				msg.put("ur-image", filename);
 				
-				byte[] content = a.getObject(byte[].class);
-				if (content != null) {
-					// Write to file
-					File f = new File(storagePath.concat(filename));
-					try {
-						FileUtils.writeByteArrayToFile(f, content);
-						msg.put("ur-image", url.concat(filename));
-						msg.put("ur-fullPath", path.concat(filename));
-					} catch (IOException e) {
-						throw new BadContentException("Unable to write file: " + e.getMessage());
-					}
+				// Stream to file
+				File f = new File(storagePath.concat(filename));
+				long written;
+				try {
+					Files.createDirectories(f.toPath().getParent());
+					written = writer.write(a, f.toPath());
+				} catch (QuotaExceededException e) {
+					throw e;
+				} catch (IOException e) {
+					throw new BadContentException("Unable to write file: " + e.getMessage());
+				}
+				if (written > 0) {
+					msg.put("ur-image", url.concat(filename));
+					msg.put("ur-fullPath", path.concat(filename));
 				} else {
+					f.delete();
 					throw new BadContentException("No attachment");
 				}
 			}	
@@ -1148,8 +1169,7 @@ public class ReportServiceImpl implements ReportService {
 	
 	private void notifyNewReport(String topic, Form form) throws IOException {
 		if (form != null) {
-			ObjectMapper mapper = new ObjectMapper();
-			String message = mapper.writeValueAsString(form);
+			String message = JsonMapper.getInstance().toJson(form);
 			getRabbitProducer().produce(topic, message);
 		}
 	}
@@ -1160,15 +1180,8 @@ public class ReportServiceImpl implements ReportService {
 	 * @return
 	 * @throws IOException
 	 */
-	private RabbitPubSubProducer getRabbitProducer() throws IOException {
-		if (rabbitProducer == null) {
-			rabbitProducer = RabbitFactory.makeRabbitPubSubProducer(
-					APIConfig.getInstance().getConfiguration().getString(APIConfig.RABBIT_HOSTNAME_KEY),
-					APIConfig.getInstance().getConfiguration().getString(APIConfig.RABBIT_EXCHANGENAME_KEY),
-					APIConfig.getInstance().getConfiguration().getString(APIConfig.RABBIT_USERNAME_KEY),
-					APIConfig.getInstance().getConfiguration().getString(APIConfig.RABBIT_USERPWD_KEY));
-		}
-		return rabbitProducer;
+	private RabbitPublisher getRabbitProducer() {
+		return RabbitPublisher.getInstance();
 	}
 
 	@Override
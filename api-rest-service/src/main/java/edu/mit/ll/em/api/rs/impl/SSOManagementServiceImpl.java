@@ -46,6 +46,7 @@ import org.json.JSONException;
 import org.json.JSONObject;
 
 import edu.mit.ll.soa.sso.exception.InitializationException;
+import edu.mit.ll.em.api.metrics.InstrumentedDao;
 import edu.mit.ll.em.api.rs.SSOManagementService;
 import edu.mit.ll.em.api.rs.SSOToken;
 import edu.mit.ll.em.api.rs.SSOUser;
@@ -350,7 +351,7 @@ public class SSOManagementServiceImpl implements SSOManagementService {
 	@Override
 	public Response enableUser(String email, String flag, int userOrgWorkspaceId, String username) {
 		
-		UserOrgDAOImpl userOrgDao = new UserOrgDAOImpl();
+		UserOrgDAOImpl userOrgDao = InstrumentedDao.wrap(new UserOrgDAOImpl());
 		UserResponse userResponse = new UserResponse();
 		
 		int systemRoleId = userOrgDao.getSystemRoleId(username, userOrgWorkspaceId);
@@ -37,6 +37,7 @@ import javax.ws.rs.core.Response.Status;
 
 import edu.mit.ll.em.api.dataaccess.EntityCacheMgr;
 import edu.mit.ll.em.api.dataaccess.ICSDatastoreException;
+import edu.mit.ll.em.api.metrics.InstrumentedDao;
 import edu.mit.ll.em.api.rs.QueryConstraintHelper;
 import edu.mit.ll.em.api.rs.TaskingAssignmentOptParms;
 import edu.mit.ll.em.api.rs.TaskingAssignmentService;
@@ -56,7 +57,7 @@ public class TaskingAssignmentServiceImpl implements TaskingAssignmentService {
 
 	private static final String CNAME = TaskingAssignmentServiceImpl.class.getName();
 	
-	private static final TaskingDAOImpl taskingDao = new TaskingDAOImpl();
+	private static final TaskingDAOImpl taskingDao = InstrumentedDao.wrap(new TaskingDAOImpl());
 	
 	TaskingAssignmentServiceImpl() {
 	}
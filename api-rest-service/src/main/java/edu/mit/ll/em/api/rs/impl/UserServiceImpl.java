@@ -50,13 +50,15 @@ import javax.ws.rs.core.Response.Status;
 import org.apache.commons.codec.binary.Base64;
 import org.apache.commons.lang.StringUtils;
 
-import org.codehaus.jackson.map.ObjectMapper;
 
 import org.json.JSONException;
 import org.json.JSONObject;
 
 import org.springframework.dao.DataAccessException;
 
+import edu.mit.ll.em.api.dataaccess.RabbitPublisher;
+import edu.mit.ll.em.api.dataaccess.EntityCacheMgr;
+import edu.mit.ll.em.api.metrics.InstrumentedDao;
 import edu.mit.ll.em.api.rs.FieldMapResponse;
 import edu.mit.ll.em.api.rs.NewUserOrgResponse;
 import edu.mit.ll.em.api.rs.RegisterUser;
@@ -66,6 +68,7 @@ import edu.mit.ll.em.api.rs.UserResponse;
 import edu.mit.ll.em.api.rs.UserSearchParams;
 import edu.mit.ll.em.api.rs.UserService;
 import edu.mit.ll.em.api.util.APIConfig;
+import edu.mit.ll.em.api.util.JsonMapper;
 import edu.mit.ll.em.api.util.APILogger;
 import edu.mit.ll.em.api.util.SADisplayConstants;
 import edu.mit.ll.em.api.util.UserInfoValidator;
@@ -81,8 +84,6 @@ import edu.mit.ll.nics.common.entity.User;
 import edu.mit.ll.nics.common.entity.UserOrg;
 import edu.mit.ll.nics.common.entity.UserOrgWorkspace;
 import edu.mit.ll.nics.common.entity.Workspace;
-import edu.mit.ll.nics.common.rabbitmq.RabbitFactory;
-import edu.mit.ll.nics.common.rabbitmq.RabbitPubSubProducer;
 
 import edu.mit.ll.nics.nicsdao.impl.IncidentDAOImpl;
 import edu.mit.ll.nics.nicsdao.impl.OrgDAOImpl;
@@ -120,12 +121,10 @@ public class UserServiceImpl implements UserService {
 	
 	private static final APILogger log = APILogger.getInstance();
 	
-	private final UserDAOImpl userDao = new UserDAOImpl();
-	private final UserOrgDAOImpl userOrgDao = new UserOrgDAOImpl();
-	private final UserSessionDAOImpl userSessDao = new UserSessionDAOImpl();
-	private final OrgDAOImpl orgDao = new OrgDAOImpl();
-	
-	private RabbitPubSubProducer rabbitProducer;
+	private final UserDAOImpl userDao = InstrumentedDao.wrap(new UserDAOImpl());
+	private final UserOrgDAOImpl userOrgDao = InstrumentedDao.wrap(new UserOrgDAOImpl());
+	private final UserSessionDAOImpl userSessDao = InstrumentedDao.wrap(new UserSessionDAOImpl());
+	private final OrgDAOImpl orgDao = InstrumentedDao.wrap(new OrgDAOImpl());
 
 	/**
 	 * Read and return all User items in workspace
@@ -316,7 +315,7 @@ public class UserServiceImpl implements UserService {
 
 			Collection<Org> orgs = new ArrayList<Org>();
 
-			OrgDAOImpl orgDao = new OrgDAOImpl();
+			OrgDAOImpl orgDao = InstrumentedDao.wrap(new OrgDAOImpl());
 			int orgId = -1;
 			
 			if(validateStringAsInt(registerUser.getOrganization())) {
@@ -1150,13 +1149,13 @@ public class UserServiceImpl implements UserService {
 		
 		try{
 			
-			OrgDAOImpl orgDao = new OrgDAOImpl();
+			OrgDAOImpl orgDao = InstrumentedDao.wrap(new OrgDAOImpl());
 			Org org = orgDao.getOrganization(orgId); 
 			edu.mit.ll.nics.common.entity.User user = userDao.getUser(username);
 			
 			UserOrg userOrg = userOrgDao.getUserOrgById(org.getOrgId(), user.getUserId(), workspaceId);
 			
-			IncidentDAOImpl incidentDao = new IncidentDAOImpl();
+			IncidentDAOImpl incidentDao = InstrumentedDao.wrap(new IncidentDAOImpl());
 			
 			profileResponse.setIncidentTypes(incidentDao.getIncidentTypes());
 			profileResponse.setUserOrgId(userOrgId);
@@ -1589,7 +1588,7 @@ public class UserServiceImpl implements UserService {
 		// TODO:ID user_org_workspace needs it, so can't let DAO get it?
 		//int userorgid =  UserOrgDAO.getInstance().getNextUserOrgId(); 
 		
-		UserOrgDAOImpl userOrgDao = new UserOrgDAOImpl();
+		UserOrgDAOImpl userOrgDao = InstrumentedDao.wrap(new UserOrgDAOImpl());
 		int userorgid = userOrgDao.getNextUserOrgId();//UserOrgDAO.getInstance().getNextUserOrgId();
 		if(userorgid == -1) {
 			// failed to get userorgid
@@ -1611,7 +1610,7 @@ public class UserServiceImpl implements UserService {
 	
 	private List<Integer> getWorkspaceIds() {
 		//List<Integer> workspaceIds = WorkspaceDAO.getInstance().getWorkspaceIds();
-		WorkspaceDAOImpl workspaceDao = new WorkspaceDAOImpl();
+		WorkspaceDAOImpl workspaceDao = InstrumentedDao.wrap(new WorkspaceDAOImpl());
 		List<Integer> workspaceIds = workspaceDao.getWorkspaceIds();
 		log.i("UserServiceImpl", "got workspaceids: " + Arrays.toString(workspaceIds.toArray()));
 		return workspaceIds;
@@ -1623,7 +1622,7 @@ public class UserServiceImpl implements UserService {
 		Response response = null;
 		UserResponse  userResponse = new UserResponse();
 
-		if(userDao.getUserId(requestingUser) != userId){
+		if(EntityCacheMgr.getInstance().getUserId(requestingUser) != userId){
             return Response.status(Status.BAD_REQUEST).entity(
                     Status.FORBIDDEN.getReasonPhrase()).build();
         }
@@ -1677,7 +1676,7 @@ public class UserServiceImpl implements UserService {
 		Response response = null;
 		UserResponse  userResponse = new UserResponse();
 
-		if(userDao.getUserId(requestingUser) != userId){
+		if(EntityCacheMgr.getInstance().getUserId(requestingUser) != userId){
             return Response.status(Status.BAD_REQUEST).entity(
                     Status.FORBIDDEN.getReasonPhrase()).build();
         }
@@ -1841,8 +1840,7 @@ public class UserServiceImpl implements UserService {
 	private void notifyLogin(int workspaceId, User user) throws IOException {
 		if (user != null) {
 			String topic = String.format("iweb.NICS.%d.login", workspaceId);
-			ObjectMapper mapper = new ObjectMapper();
-			String message = mapper.writeValueAsString(user);
+			String message = JsonMapper.getInstance().toJson(user);
 			getRabbitProducer().produce(topic, message);
 		}
 	}
@@ -1858,15 +1856,8 @@ public class UserServiceImpl implements UserService {
 		}
 	}
 	
-	private RabbitPubSubProducer getRabbitProducer() throws IOException {
-		if (rabbitProducer == null) {
-			rabbitProducer = RabbitFactory.makeRabbitPubSubProducer(
-					APIConfig.getInstance().getConfiguration().getString(APIConfig.RABBIT_HOSTNAME_KEY),
-					APIConfig.getInstance().getConfiguration().getString(APIConfig.RABBIT_EXCHANGENAME_KEY),
-					APIConfig.getInstance().getConfiguration().getString(APIConfig.RABBIT_USERNAME_KEY),
-					APIConfig.getInstance().getConfiguration().getString(APIConfig.RABBIT_USERPWD_KEY));
-		}
-		return rabbitProducer;
+	private RabbitPublisher getRabbitProducer() {
+		return RabbitPublisher.getInstance();
 	}
 	
 	public Response removeUserSession(int workspaceId, long currentUserSessionId){
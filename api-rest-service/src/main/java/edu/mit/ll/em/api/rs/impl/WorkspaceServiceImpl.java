@@ -36,6 +36,7 @@ import javax.ws.rs.core.Response.Status;
 
 import org.springframework.dao.DataAccessException;
 
+import edu.mit.ll.em.api.metrics.InstrumentedDao;
 import edu.mit.ll.em.api.rs.WorkspaceResponse;
 import edu.mit.ll.em.api.rs.WorkspaceService;
 import edu.mit.ll.em.api.util.APILogger;
@@ -52,7 +53,7 @@ public class WorkspaceServiceImpl implements WorkspaceService {
 	
 	private static final APILogger log = APILogger.getInstance();
 
-	private final WorkspaceDAO workspaceDao = new WorkspaceDAOImpl();
+	private final WorkspaceDAO workspaceDao = InstrumentedDao.wrap(new WorkspaceDAOImpl());
 	
 	@Override
 	public Response getSystemWorkspaces(String systemName) {
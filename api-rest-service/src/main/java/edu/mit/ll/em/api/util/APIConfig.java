@@ -44,6 +44,14 @@ public class APIConfig {
 	public static final String API_PROPS_FILE = "em-api.properties";
 	
 	public static final String CACHE_USER_REFRESHMINUTES = "em.api.cache.user.refreshminutes";
+	public static final String CACHE_ENTITY_MAXSIZE = "em.api.cache.entity.maxsize";
+	public static final String CACHE_ENTITY_JITTERPERCENT = "em.api.cache.entity.jitterpercent";
+	public static final String CACHE_PERMISSION_TTLSECONDS = "em.api.cache.permission.ttlseconds";
+	public static final String CACHE_SSOTOKEN_MAXSIZE = "em.api.cache.ssotoken.maxsize";
+	public static final String CACHE_SSOTOKEN_TTLSECONDS = "em.api.cache.ssotoken.ttlseconds";
+	public static final String CACHE_SSOTOKEN_NEGATIVE_TTLSECONDS = "em.api.cache.ssotoken.negativettlseconds";
+	public static final String CACHE_INVALIDATION_ENABLED = "em.api.cache.invalidation.enabled";
+	public static final String CACHE_INVALIDATION_BINDING_KEYS = "em.api.cache.invalidation.bindingkeys";
 	
 	public static final String NEW_USER_ALERT_EMAIL = "em.api.user.alert.email";
 	public static final String NEW_USER_ENABLED_EMAIL = "em.api.newuser.enabled.email";
@@ -63,6 +71,13 @@ public class APIConfig {
 	public static final String RABBIT_FAILOVER_HOSTNAME = "em.api.rabbitmq.failover.hostname";
 	public static final String RABBIT_BINDING_KEYS = "em.api.rabbitmq.bindingkeys";
 	public static final String RABBIT_MSG_VERSION = "em.api.rabbitmq.msgver";
+	public static final String RABBIT_PUBLISHER_CONNECTIONS = "em.api.rabbitmq.publisher.connections";
+	public static final String RABBIT_PUBLISHER_CHANNELS = "em.api.rabbitmq.publisher.channels";
+	public static final String RABBIT_PUBLISHER_OUTBOX_SIZE = "em.api.rabbitmq.publisher.outbox.size";
+	public static final String RABBIT_PUBLISHER_OFFER_TIMEOUT_MS = "em.api.rabbitmq.publisher.offer.timeoutms";
+	public static final String RABBIT_PUBLISHER_MAX_UNCONFIRMED = "em.api.rabbitmq.publisher.maxunconfirmed";
+	public static final String RABBIT_PUBLISHER_MAX_ATTEMPTS = "em.api.rabbitmq.publisher.maxattempts";
+	public static final String RABBIT_CONSUMER_PREFETCH = "em.api.rabbitmq.consumer.prefetch";
 	
 	public static final String CHAT_STALEMSG_FACTOR_STRING = "em.api.resource.chat.stalemsg.factor.string";
 	public static final String CHAT_STALEMSG_FACTOR_MINS = "em.api.resource.chat.stalemsg.factor.mins";
@@ -73,6 +88,8 @@ public class APIConfig {
 	public static final String MDT_SRS_NAME = "em.api.service.mdt.srsName";
 	public static final String MDT_WFS_SCHEMA_URI = "em.api.service.mdt.wfsSchemaURI";
 	public static final String MDT_WFS_SERVICE_URI = "em.api.service.mdt.wfsServiceURI";
+	public static final String MDT_BATCH_WINDOW_MILLIS = "em.api.service.mdt.batch.windowmillis";
+	public static final String MDT_BATCH_MAXFEATURES = "em.api.service.mdt.batch.maxfeatures";
 	
 	public final static String DB_MAX_ROWS = "em.api.db.get.maxrows";
 	
@@ -96,6 +113,46 @@ public class APIConfig {
 	public static final String KMZ_UPLOAD_PATH = "em.api.service.kmz.upload.path";
 	public static final String GPX_UPLOAD_PATH = "em.api.service.gpx.upload.path";
 	public static final String JSON_UPLOAD_PATH = "em.api.service.geojson.upload.path";
+	public static final String UPLOAD_MAX_REQUEST_BYTES = "em.api.service.upload.request.maxbytes";
+	public static final String KMZ_EXTRACT_THREADS = "em.api.service.kmz.extract.threads";
+	public static final String KMZ_MAX_ENTRIES = "em.api.service.kmz.maxentries";
+	public static final String KMZ_MAX_UNCOMPRESSED_BYTES = "em.api.service.kmz.maxbytes";
+	public static final String KMZ_MAX_COMPRESSION_RATIO = "em.api.service.kmz.maxratio";
+	
+	// Request logging
+	public static final String LOGGING_BODY_PATHS = "em.api.logging.body.paths";
+	public static final String LOGGING_BODY_SAMPLE_RATE = "em.api.logging.body.samplerate";
+	public static final String LOGGING_BODY_MAX_BYTES = "em.api.logging.body.maxbytes";
+	
+	// Metrics
+	public static final String METRICS_DAO_ENABLED = "em.api.metrics.dao.enabled";
+	public static final String METRICS_DAO_HEADER = "em.api.metrics.dao.header";
+	
+	// Conditional GET
+	public static final String ETAG_ENABLED = "em.api.etag.enabled";
+	public static final String ETAG_MAXAGE_SECONDS = "em.api.etag.maxageseconds";
+	public static final String RESPONSE_CACHE_ENABLED = "em.api.responsecache.enabled";
+	public static final String RESPONSE_CACHE_MAXSIZE = "em.api.responsecache.maxsize";
+	public static final String RESPONSE_CACHE_MAXBYTES = "em.api.responsecache.maxbytes";
+	
+	// Message bus
+	public static final String MSGBUS_WAIT_MAXSECONDS = "em.api.msgbus.wait.maxseconds";
+	public static final String MSGBUS_SSE_RETRYMILLIS = "em.api.msgbus.sse.retrymillis";
+	public static final String MSGBUS_QUEUE_CAPACITY = "em.api.msgbus.queue.capacity";
+	public static final String MSGBUS_QUEUE_OVERFLOW = "em.api.msgbus.queue.overflow";
+	public static final String MSGBUS_REAPER_INTERVALSECONDS = "em.api.msgbus.reaper.intervalseconds";
+	public static final String MSGBUS_ROUTER_ENABLED = "em.api.msgbus.router.enabled";
+	public static final String MSGBUS_ROUTER_BINDING_KEYS = "em.api.msgbus.router.bindingkeys";
+	
+	// Presence
+	public static final String PRESENCE_STORE = "em.api.presence.store";
+	public static final String PRESENCE_IDLE_SECONDS = "em.api.presence.idleseconds";
+	public static final String PRESENCE_MISSING_SECONDS = "em.api.presence.missingseconds";
+	
+	// Features
+	public static final String FEATURE_SHARE_BATCH_SIZE = "em.api.service.feature.share.batchsize";
+	public static final String FEATURE_SYNC_SKEW_SECONDS = "em.api.service.feature.sync.skewseconds";
+	public static final String FEATURE_SYNC_MAXAGE_SECONDS = "em.api.service.feature.sync.maxageseconds";
 	
 	// KML Export
 	public static final String KML_EXPORT_URL = "em.api.service.export.kmlExportURL";
@@ -112,6 +169,9 @@ public class APIConfig {
 	
 	public static final String IMPORT_SHAPEFILE_WORKSPACE = "em.api.service.import.shapefileWorkspace";
 	public static final String IMPORT_SHAPEFILE_STORE = "em.api.service.import.shapefileStore";
+	public static final String IMPORT_SHAPEFILE_THREADS = "em.api.service.import.shapefileThreads";
+	public static final String IMPORT_SHAPEFILE_QUEUE_SIZE = "em.api.service.import.shapefileQueueSize";
+	public static final String IMPORT_SHAPEFILE_RETENTION_MINUTES = "em.api.service.import.shapefileRetentionMinutes";
 
 
 	public static final String INCIDENT_MAP = "em.api.collabroom.incident.map";
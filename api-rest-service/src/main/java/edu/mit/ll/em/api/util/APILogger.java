@@ -29,12 +29,31 @@
  */
 package edu.mit.ll.em.api.util;
 
+import org.apache.log4j.Level;
 import org.apache.log4j.Logger;
 
+/**
+ * Logs "[component] | message" lines. Besides plain messages, each level takes
+ * a format with {} placeholders, or a LogMessage, so that nothing is built
+ * unless the level is enabled:
+ * 
+ * <pre>
+ * APILogger.getInstance().d(CNAME, "Type: {} Payload: {}", msg.getMsgType(), msg.getMsgPayload());
+ * </pre>
+ * 
+ * Writing to the appenders is made asynchronous by the ASYNC appender in log4j.xml.
+ */
 public class APILogger {
 	
 	private static Logger log = Logger.getLogger(APILogger.class);
 	
+	/**
+	 * A message built only when it is going to be logged
+	 */
+	public interface LogMessage {
+		String get();
+	}
+	
 	// Lazy-initialization Holder class idiom.
 	private static class Holder {
 		public static APILogger instance = new APILogger();
@@ -44,19 +63,89 @@ public class APILogger {
 		return Holder.instance;
 	}
 	
+	public boolean isDebugEnabled() {
+		return log.isDebugEnabled();
+	}
+	
+	public boolean isInfoEnabled() {
+		return log.isInfoEnabled();
+	}
+	
 	public void d(String comp, String msg) {
-		log.debug("[" + comp + "] | " + msg);
+		if (log.isDebugEnabled()) {
+			log.debug(prefix(comp).append(msg).toString());
+		}
+	}
+	
+	public void d(String comp, String format, Object... args) {
+		if (log.isDebugEnabled()) {
+			log.debug(format(comp, format, args));
+		}
+	}
+	
+	public void d(String comp, LogMessage msg) {
+		if (log.isDebugEnabled()) {
+			log.debug(prefix(comp).append(msg.get()).toString());
+		}
 	}
 
 	public void e(String comp, String msg) {
-		log.error("[" + comp + "] | " + msg);
+		log.error(prefix(comp).append(msg).toString());
+	}
+	
+	public void e(String comp, String format, Object... args) {
+		log.error(format(comp, format, args));
 	}
 	
 	public void i(String comp, String msg) {
-		log.info("[" + comp + "] | " + msg);
+		if (log.isInfoEnabled()) {
+			log.info(prefix(comp).append(msg).toString());
+		}
+	}
+	
+	public void i(String comp, String format, Object... args) {
+		if (log.isInfoEnabled()) {
+			log.info(format(comp, format, args));
+		}
+	}
+	
+	public void i(String comp, LogMessage msg) {
+		if (log.isInfoEnabled()) {
+			log.info(prefix(comp).append(msg.get()).toString());
+		}
 	}
 
 	public void w(String comp, String msg) {
-		log.warn("[" + comp + "] | " + msg);
+		if (log.isEnabledFor(Level.WARN)) {
+			log.warn(prefix(comp).append(msg).toString());
+		}
+	}
+	
+	public void w(String comp, String format, Object... args) {
+		if (log.isEnabledFor(Level.WARN)) {
+			log.warn(format(comp, format, args));
+		}
+	}
+	
+	private static StringBuilder prefix(String comp) {
+		return new StringBuilder(128).append('[').append(comp).append("] | ");
+	}
+	
+	/**
+	 * Replaces each {} in the format with the next argument, extra arguments are
+	 * ignored and placeholders without one are left as is
+	 */
+	static String format(String comp, String format, Object... args) {
+		StringBuilder out = prefix(comp);
+		int start = 0;
+		for (Object arg : args) {
+			int placeholder = format.indexOf("{}", start);
+			if (placeholder < 0) {
+				break;
+			}
+			out.append(format, start, placeholder).append(arg);
+			start = placeholder + 2;
+		}
+		return out.append(format, start, format.length()).toString();
 	}
 }
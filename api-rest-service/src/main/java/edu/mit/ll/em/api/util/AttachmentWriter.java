@@ -0,0 +1,166 @@
+/**
+ * Copyright (c) 2008-2016, Massachusetts Institute of Technology (MIT)
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its contributors
+ * may be used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package edu.mit.ll.em.api.util;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+
+import org.apache.cxf.jaxrs.ext.multipart.Attachment;
+
+/**
+ * Streams multipart attachments straight to disk instead of materializing them
+ * as byte arrays. CXF spills anything over attachment-memory-threshold to the
+ * attachment-directory, so the copy here reads from that spool file and never
+ * holds the whole upload in heap.
+ * 
+ * One instance is used per request; the byte quota is shared by every
+ * attachment written through it.
+ */
+public class AttachmentWriter {
+
+	/** Default per-request upload quota, matches attachment-max-size */
+	public static final long DEFAULT_MAX_REQUEST_BYTES = 51200000L;
+
+	private final long maxBytes;
+
+	private long bytesRead = 0;
+
+	public AttachmentWriter() {
+		this(APIConfig.getInstance().getConfiguration().getLong(
+				APIConfig.UPLOAD_MAX_REQUEST_BYTES, DEFAULT_MAX_REQUEST_BYTES));
+	}
+
+	public AttachmentWriter(long maxBytes) {
+		this.maxBytes = maxBytes;
+	}
+
+	/**
+	 * Opens the attachment content. Reads count against the request quota.
+	 * 
+	 * @param attachment
+	 * @return stream that throws {@link QuotaExceededException} once the quota is used up
+	 * @throws IOException
+	 */
+	public InputStream openStream(Attachment attachment) throws IOException {
+		return new QuotaInputStream(attachment.getDataHandler().getInputStream());
+	}
+
+	/**
+	 * Copies the attachment to the given path, replacing any existing file. A partially
+	 * written file is removed if the copy fails.
+	 * 
+	 * @param attachment
+	 * @param path
+	 * @return number of bytes written
+	 * @throws IOException
+	 */
+	public long write(Attachment attachment, Path path) throws IOException {
+		try (InputStream is = openStream(attachment)) {
+			return copy(is, path);
+		}
+	}
+
+	public long getBytesRead() {
+		return bytesRead;
+	}
+
+	public long getMaxBytes() {
+		return maxBytes;
+	}
+
+	private long copy(InputStream is, Path path) throws IOException {
+		try {
+			return Files.copy(is, path, StandardCopyOption.REPLACE_EXISTING);
+		} catch (IOException e) {
+			Files.deleteIfExists(path);
+			throw e;
+		}
+	}
+
+	private void count(long n) throws QuotaExceededException {
+		if (n > 0) {
+			bytesRead += n;
+			if (bytesRead > maxBytes) {
+				throw new QuotaExceededException(maxBytes);
+			}
+		}
+	}
+
+	private class QuotaInputStream extends FilterInputStream {
+
+		QuotaInputStream(InputStream in) {
+			super(in);
+		}
+
+		@Override
+		public int read() throws IOException {
+			int b = super.read();
+			if (b != -1) {
+				count(1);
+			}
+			return b;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			int n = super.read(b, off, len);
+			count(n);
+			return n;
+		}
+
+		@Override
+		public long skip(long n) throws IOException {
+			long skipped = super.skip(n);
+			count(skipped);
+			return skipped;
+		}
+
+		@Override
+		public boolean markSupported() {
+			return false;
+		}
+	}
+
+	/**
+	 * Thrown when the attachments of a single request exceed the upload quota
+	 */
+	public static class QuotaExceededException extends IOException {
+
+		private static final long serialVersionUID = 1L;
+
+		public QuotaExceededException(long maxBytes) {
+			super("Upload exceeds the maximum of " + maxBytes + " bytes per request");
+		}
+	}
+}
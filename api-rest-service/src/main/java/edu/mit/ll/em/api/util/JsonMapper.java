@@ -0,0 +1,126 @@
+/**
+ * Copyright (c) 2008-2016, Massachusetts Institute of Technology (MIT)
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its contributors
+ * may be used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package edu.mit.ll.em.api.util;
+
+import java.io.IOException;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.codehaus.jackson.map.ObjectMapper;
+import org.codehaus.jackson.map.ObjectReader;
+import org.codehaus.jackson.map.ObjectWriter;
+
+import edu.mit.ll.nics.common.entity.Chat;
+import edu.mit.ll.nics.common.entity.CollabRoom;
+import edu.mit.ll.nics.common.entity.Feature;
+import edu.mit.ll.nics.common.entity.Form;
+import edu.mit.ll.nics.common.entity.Incident;
+
+/**
+ * Shared, thread-safe Jackson configuration. A single ObjectMapper is used for
+ * both the REST provider (see cxf-rest-service.xml) and the message bus
+ * notifications, so its serializer caches are built once instead of on every
+ * call. ObjectWriters and ObjectReaders are cached per type; the ones for the
+ * most frequently published entities are built up front.
+ */
+public class JsonMapper {
+
+	private static final Class<?>[] PREBUILT_TYPES = {
+		Feature.class, Chat.class, CollabRoom.class, Incident.class, Form.class
+	};
+
+	private final ObjectMapper mapper = new ObjectMapper();
+
+	private final ConcurrentHashMap<Class<?>, ObjectWriter> writers =
+			new ConcurrentHashMap<Class<?>, ObjectWriter>();
+
+	private final ConcurrentHashMap<Class<?>, ObjectReader> readers =
+			new ConcurrentHashMap<Class<?>, ObjectReader>();
+
+	// Lazy-initialization Holder class idiom.
+	private static class Holder {
+		public static JsonMapper instance = new JsonMapper();
+	}
+
+	public static JsonMapper getInstance() {
+		return Holder.instance;
+	}
+
+	private JsonMapper() {
+		for (Class<?> type : PREBUILT_TYPES) {
+			writerFor(type);
+			readerFor(type);
+		}
+	}
+
+	/**
+	 * @return The shared ObjectMapper. It must not be reconfigured after startup.
+	 */
+	public ObjectMapper getMapper() {
+		return mapper;
+	}
+
+	public ObjectWriter writerFor(Class<?> type) {
+		ObjectWriter writer = writers.get(type);
+		if (writer == null) {
+			writer = mapper.writerWithType(type);
+			ObjectWriter existing = writers.putIfAbsent(type, writer);
+			if (existing != null) {
+				writer = existing;
+			}
+		}
+		return writer;
+	}
+
+	public ObjectReader readerFor(Class<?> type) {
+		ObjectReader reader = readers.get(type);
+		if (reader == null) {
+			reader = mapper.reader(type);
+			ObjectReader existing = readers.putIfAbsent(type, reader);
+			if (existing != null) {
+				reader = existing;
+			}
+		}
+		return reader;
+	}
+
+	/**
+	 * Serializes value with the writer cached for its runtime type.
+	 */
+	public String toJson(Object value) throws IOException {
+		if (value == null) {
+			return mapper.writeValueAsString(value);
+		}
+		return writerFor(value.getClass()).writeValueAsString(value);
+	}
+
+	public <T> T fromJson(String json, Class<T> type) throws IOException {
+		return readerFor(type).readValue(json);
+	}
+}
@@ -0,0 +1,365 @@
+/**
+ * Copyright (c) 2008-2016, Massachusetts Institute of Technology (MIT)
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its contributors
+ * may be used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package edu.mit.ll.em.api.util;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipException;
+import java.util.zip.ZipFile;
+
+import org.apache.commons.io.IOUtils;
+
+/**
+ * Extracts uploaded KMZ archives. The archive is opened with random access through
+ * {@link ZipFile} and its entries are extracted in parallel on a bounded, shared
+ * executor; the calling thread runs tasks itself when the executor is saturated.
+ * Only .kml entries go through the KML prologue repair, everything else is copied
+ * as is.
+ * 
+ * The number of entries, the total uncompressed size and the compression ratio of
+ * each entry are limited (see the em.api.service.kmz.* properties). The limits are
+ * checked against the central directory up front and enforced again on the bytes
+ * actually inflated, so forged entry sizes do not get around them.
+ */
+public class KmzExtractor {
+
+	private static final String CNAME = KmzExtractor.class.getName();
+
+	/** A standard KML root element. */
+	private static final String KML_ROOT_START_TAG =
+			"<kml xmlns=\"http://www.opengis.net/kml/2.2\" " +
+			"xmlns:gx=\"http://www.google.com/kml/ext/2.2\" " +
+			"xmlns:kml=\"http://www.opengis.net/kml/2.2\" " +
+			"xmlns:atom=\"http://www.w3.org/2005/Atom\">";
+	
+	/** A pattern that matches KML documents without a root <kml> element. */
+	private static final Pattern MALFORMED_KML_PATTERN = Pattern.compile("^\\s*<\\?xml[^>]+>\\s*<Document>", Pattern.MULTILINE);
+
+	/** Entries smaller than this are not subject to the compression ratio limit */
+	private static final long RATIO_THRESHOLD_BYTES = 1048576L;
+
+	private final ExecutorService executor;
+
+	private final int maxEntries;
+
+	private final long maxBytes;
+
+	private final long maxRatio;
+
+	// Lazy-initialization Holder class idiom.
+	private static class Holder {
+		public static KmzExtractor instance = new KmzExtractor();
+	}
+
+	public static KmzExtractor getInstance() {
+		return Holder.instance;
+	}
+
+	private KmzExtractor() {
+		int threads = Math.max(1, APIConfig.getInstance().getConfiguration()
+				.getInt(APIConfig.KMZ_EXTRACT_THREADS, 4));
+		maxEntries = APIConfig.getInstance().getConfiguration()
+				.getInt(APIConfig.KMZ_MAX_ENTRIES, 10000);
+		maxBytes = APIConfig.getInstance().getConfiguration()
+				.getLong(APIConfig.KMZ_MAX_UNCOMPRESSED_BYTES, 524288000L);
+		maxRatio = APIConfig.getInstance().getConfiguration()
+				.getLong(APIConfig.KMZ_MAX_COMPRESSION_RATIO, 100L);
+
+		executor = new ThreadPoolExecutor(
+				threads, threads, 0L, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<Runnable>(threads * 16),
+				new ThreadFactory() {
+					private final AtomicInteger count = new AtomicInteger();
+					public Thread newThread(Runnable r) {
+						Thread t = new Thread(r, "KmzExtractor-" + count.incrementAndGet());
+						t.setDaemon(true);
+						return t;
+					}
+				},
+				new ThreadPoolExecutor.CallerRunsPolicy());
+	}
+
+	/**
+	 * Extracts the archive into the given directory, which is created if needed.
+	 * 
+	 * @param kmz
+	 * @param directory
+	 * @return name of the KML document within the archive, or null if it has none
+	 * @throws ZipException if the archive exceeds one of the limits
+	 * @throws IOException
+	 */
+	public String extract(Path kmz, Path directory) throws IOException {
+		final Path root = directory.toAbsolutePath().normalize();
+		Files.createDirectories(root);
+
+		try (final ZipFile zipFile = new ZipFile(kmz.toFile())) {
+			List<ZipEntry> entries = new ArrayList<ZipEntry>();
+			String kmlName = null;
+			long declaredBytes = 0;
+
+			Enumeration<? extends ZipEntry> e = zipFile.entries();
+			while (e.hasMoreElements()) {
+				ZipEntry entry = e.nextElement();
+				if (entry.isDirectory() || entry.getSize() == 0) {
+					continue;
+				}
+				if (entries.size() == maxEntries) {
+					throw new ZipException("KMZ has more than " + maxEntries + " entries");
+				}
+				if (entry.getSize() > 0) {
+					declaredBytes += entry.getSize();
+					if (declaredBytes > maxBytes) {
+						throw new ZipException("KMZ expands to more than " + maxBytes + " bytes");
+					}
+				}
+				if (isKml(entry)) {
+					kmlName = entry.getName();
+				}
+				entries.add(entry);
+			}
+
+			final AtomicLong totalBytes = new AtomicLong();
+			final AtomicReference<IOException> failure = new AtomicReference<IOException>();
+			List<Future<?>> futures = new ArrayList<Future<?>>(entries.size());
+			for (final ZipEntry entry : entries) {
+				futures.add(executor.submit(new Runnable() {
+					public void run() {
+						if (failure.get() != null) {
+							return;
+						}
+						try {
+							extractEntry(zipFile, entry, root, totalBytes, failure);
+						} catch (IOException e) {
+							failure.compareAndSet(null, e);
+						} catch (RuntimeException e) {
+							failure.compareAndSet(null, new IOException("Failed to extract KMZ entry " + entry.getName(), e));
+						}
+					}
+				}));
+			}
+
+			// Wait for every task, even after a failure, so none is still reading
+			// when the ZipFile is closed.
+			boolean interrupted = false;
+			for (Future<?> future : futures) {
+				while (true) {
+					try {
+						future.get();
+						break;
+					} catch (InterruptedException ie) {
+						interrupted = true;
+						failure.compareAndSet(null, new IOException("Interrupted extracting KMZ"));
+					} catch (ExecutionException ee) {
+						break;
+					}
+				}
+			}
+			if (interrupted) {
+				Thread.currentThread().interrupt();
+			}
+			if (failure.get() != null) {
+				throw failure.get();
+			}
+
+			APILogger.getInstance().d(CNAME, "Extracted {} entries ({} bytes) from {}",
+					entries.size(), totalBytes.get(), kmz.getFileName());
+			return kmlName;
+		}
+	}
+
+	/**
+	 * Finds the KML document of an archive without extracting it, as
+	 * {@link #extract(Path, Path)} would report it.
+	 * 
+	 * @param kmz
+	 * @return name of the KML document within the archive, or null if it has none
+	 * @throws IOException
+	 */
+	public String getKmlName(Path kmz) throws IOException {
+		try (ZipFile zipFile = new ZipFile(kmz.toFile())) {
+			String kmlName = null;
+			Enumeration<? extends ZipEntry> e = zipFile.entries();
+			while (e.hasMoreElements()) {
+				ZipEntry entry = e.nextElement();
+				if (!entry.isDirectory() && entry.getSize() != 0 && isKml(entry)) {
+					kmlName = entry.getName();
+				}
+			}
+			return kmlName;
+		}
+	}
+
+	private void extractEntry(ZipFile zipFile, ZipEntry entry, Path root, AtomicLong totalBytes,
+			AtomicReference<IOException> failure) throws IOException {
+		Path outPath = root.resolve(entry.getName()).normalize();
+		if (!outPath.startsWith(root) || outPath.equals(root)) {
+			throw new ZipException("Invalid KMZ entry name: " + entry.getName());
+		}
+		if (outPath.getParent() != null) {
+			Files.createDirectories(outPath.getParent());
+		}
+
+		long entryLimit = maxBytes;
+		if (entry.getCompressedSize() > 0) {
+			entryLimit = Math.min(entryLimit,
+					Math.max(RATIO_THRESHOLD_BYTES, entry.getCompressedSize() * maxRatio));
+		}
+
+		try (
+			InputStream input = new LimitedInputStream(zipFile.getInputStream(entry), entry.getName(),
+					entryLimit, totalBytes, failure);
+			OutputStream output = Files.newOutputStream(outPath)
+		) {
+			// KML files may require some translation, to workaround broken input files.
+			if (isKml(entry)) {
+				copyKmlStream(input, output);
+			}
+			// Just copy the content directly, without translation.
+			else {
+				IOUtils.copy(input, output);
+			}
+		}
+	}
+
+	private static boolean isKml(ZipEntry entry) {
+		return entry.getName().toLowerCase().endsWith(".kml");
+	}
+
+	/** Utility method for copying (and possibly translating) a KML input stream to an output stream. */
+	public static void copyKmlStream(InputStream input, OutputStream output)
+			throws IOException
+	{
+		byte[] buffer = new byte[4096];
+		int n;
+
+		// Convert the first (maximum of) 4096 bytes to a string.
+		if (-1 == (n = input.read(buffer)))
+			return;
+		String prologue = new String(buffer, 0, n, "UTF-8");
+	
+		// Attempt to repair the document prologue, if a root <kml> tag is missing.
+		Matcher matcher = MALFORMED_KML_PATTERN.matcher(prologue);
+		if (matcher.find ()) {
+			int insertionPoint = matcher.end() - 10; // Insertion point, before <Document> tag.
+	
+			IOUtils.write(prologue.substring(0, insertionPoint), output);
+			IOUtils.write(KML_ROOT_START_TAG, output);
+			IOUtils.write(prologue.substring(insertionPoint), output);
+		}
+	
+		// Otherwise, simply write out the byte buffer and signal that no epilogue is needed.
+		else {
+			output.write(buffer, 0, n);
+			prologue = null;
+		}
+	
+		// Write out the rest of the stream.
+		IOUtils.copy(input, output);
+	
+		// If an epilogue is needed, write it now.
+		if (prologue != null)
+			IOUtils.write("</kml>", output);
+	}
+
+	/**
+	 * Fails once an entry inflates past its own limit or the archive past the total limit
+	 */
+	private class LimitedInputStream extends FilterInputStream {
+
+		private final String name;
+
+		private final long limit;
+
+		private final AtomicLong totalBytes;
+
+		private final AtomicReference<IOException> failure;
+
+		private long bytes = 0;
+
+		LimitedInputStream(InputStream in, String name, long limit, AtomicLong totalBytes,
+				AtomicReference<IOException> failure) {
+			super(in);
+			this.name = name;
+			this.limit = limit;
+			this.totalBytes = totalBytes;
+			this.failure = failure;
+		}
+
+		@Override
+		public int read() throws IOException {
+			int b = super.read();
+			if (b != -1) {
+				count(1);
+			}
+			return b;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			int n = super.read(b, off, len);
+			if (n > 0) {
+				count(n);
+			}
+			return n;
+		}
+
+		private void count(int n) throws IOException {
+			if (failure.get() != null) {
+				throw new IOException("KMZ extraction aborted");
+			}
+			bytes += n;
+			if (bytes > limit) {
+				throw new ZipException("KMZ entry " + name + " expands to more than " + limit + " bytes");
+			}
+			if (totalBytes.addAndGet(n) > maxBytes) {
+				throw new ZipException("KMZ expands to more than " + maxBytes + " bytes");
+			}
+		}
+	}
+}
@@ -0,0 +1,244 @@
+/**
+ * Copyright (c) 2008-2016, Massachusetts Institute of Technology (MIT)
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its contributors
+ * may be used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package edu.mit.ll.em.api.util;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Hierarchical timing wheel. Scheduling and expiring a task are O(1) regardless
+ * of how many are pending, which suits large numbers of timeouts that mostly get
+ * pushed back before they fire, e.g. one per user present in a collab room.
+ * 
+ * Level 0 has one slot per tick; each slot of level n covers a full turn of level
+ * n-1, and its tasks are moved down a level when that turn begins. With the
+ * defaults used for presence (1s ticks, 64 slots, 3 levels) the wheel spans
+ * about three days; later deadlines wait in the last slot until they come within
+ * reach.
+ * 
+ * Tasks run on the wheel's own daemon thread, so must be short and not block.
+ * Deadlines are only as precise as the tick.
+ */
+public class TimingWheel {
+
+	private static final String CNAME = TimingWheel.class.getName();
+
+	private static final class Timeout {
+		final long deadlineTick;
+		final Runnable task;
+
+		Timeout(long deadlineTick, Runnable task) {
+			this.deadlineTick = deadlineTick;
+			this.task = task;
+		}
+	}
+
+	private final String name;
+
+	private final long tickMillis;
+
+	private final int wheelSize;
+
+	/** Ticks covered by one slot of each level */
+	private final long[] granularity;
+
+	private final List<List<Timeout>> slots;
+
+	private final long startMillis;
+
+	private long currentTick;
+
+	private int pending;
+
+	private volatile boolean running;
+
+	private Thread worker;
+
+	/**
+	 * @param name Name of the worker thread
+	 * @param tickMillis Duration of a tick
+	 * @param wheelSize Slots per level
+	 * @param levels Number of levels
+	 */
+	public TimingWheel(String name, long tickMillis, int wheelSize, int levels) {
+		if (tickMillis <= 0 || wheelSize < 2 || levels < 1) {
+			throw new IllegalArgumentException("Invalid timing wheel dimensions");
+		}
+		this.name = name;
+		this.tickMillis = tickMillis;
+		this.wheelSize = wheelSize;
+		this.granularity = new long[levels];
+		this.slots = new ArrayList<List<Timeout>>(levels * wheelSize);
+		long ticks = 1;
+		for (int level = 0; level < levels; level++) {
+			granularity[level] = ticks;
+			ticks *= wheelSize;
+			for (int slot = 0; slot < wheelSize; slot++) {
+				slots.add(null);
+			}
+		}
+		this.startMillis = System.currentTimeMillis();
+	}
+
+	public synchronized void start() {
+		if (worker == null) {
+			running = true;
+			worker = new Thread(new Runnable() {
+				public void run() {
+					work();
+				}
+			}, name);
+			worker.setDaemon(true);
+			worker.start();
+		}
+	}
+
+	public synchronized void stop() {
+		running = false;
+		if (worker != null) {
+			worker.interrupt();
+			worker = null;
+		}
+	}
+
+	/**
+	 * Runs task on the wheel's thread once deadlineMillis has passed. Deadlines
+	 * already past run on the next tick.
+	 */
+	public synchronized void schedule(Runnable task, long deadlineMillis) {
+		long elapsed = deadlineMillis - startMillis;
+		long tick = elapsed <= 0 ? 0 : (elapsed + tickMillis - 1) / tickMillis;
+		place(new Timeout(Math.max(tick, currentTick + 1), task));
+		pending++;
+	}
+
+	/**
+	 * @return Number of tasks waiting to run
+	 */
+	public synchronized int size() {
+		return pending;
+	}
+
+	private void place(Timeout timeout) {
+		int levels = granularity.length;
+		for (int level = 0; level < levels; level++) {
+			long g = granularity[level];
+			long turns = timeout.deadlineTick / g - currentTick / g;
+			if (turns < wheelSize) {
+				add(level, (int) ((timeout.deadlineTick / g) % wheelSize), timeout);
+				return;
+			}
+		}
+		// Beyond the last level, park it in the furthest slot until it comes closer
+		long g = granularity[levels - 1];
+		add(levels - 1, (int) ((currentTick / g + wheelSize - 1) % wheelSize), timeout);
+	}
+
+	private void add(int level, int slot, Timeout timeout) {
+		int index = level * wheelSize + slot;
+		List<Timeout> list = slots.get(index);
+		if (list == null) {
+			list = new ArrayList<Timeout>(4);
+			slots.set(index, list);
+		}
+		list.add(timeout);
+	}
+
+	private List<Timeout> take(int level, int slot) {
+		int index = level * wheelSize + slot;
+		List<Timeout> list = slots.get(index);
+		slots.set(index, null);
+		return list;
+	}
+
+	/**
+	 * Moves the wheel forward one tick
+	 * 
+	 * @return The tasks now due
+	 */
+	private synchronized List<Runnable> tick() {
+		currentTick++;
+
+		// Start a new turn of the lower levels, highest first so tasks can
+		// cascade more than one level in the same tick
+		for (int level = granularity.length - 1; level > 0; level--) {
+			long g = granularity[level];
+			if (currentTick % g == 0) {
+				List<Timeout> cascade = take(level, (int) ((currentTick / g) % wheelSize));
+				if (cascade != null) {
+					for (Timeout timeout : cascade) {
+						place(timeout);
+					}
+				}
+			}
+		}
+
+		List<Runnable> due = new ArrayList<Runnable>();
+		List<Timeout> expired = take(0, (int) (currentTick % wheelSize));
+		if (expired != null) {
+			for (Timeout timeout : expired) {
+				if (timeout.deadlineTick <= currentTick) {
+					due.add(timeout.task);
+				} else {
+					place(timeout);
+				}
+			}
+		}
+		pending -= due.size();
+		return due;
+	}
+
+	private void work() {
+		while (running) {
+			long now = System.currentTimeMillis();
+			long nextTickAt;
+			synchronized (this) {
+				nextTickAt = startMillis + (currentTick + 1) * tickMillis;
+			}
+			if (now < nextTickAt) {
+				try {
+					Thread.sleep(nextTickAt - now);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					return;
+				}
+				continue;
+			}
+
+			for (Runnable task : tick()) {
+				try {
+					task.run();
+				} catch (RuntimeException e) {
+					APILogger.getInstance().e(CNAME, "Timer task failed on {}: {}", name, e);
+				}
+			}
+		}
+	}
+}
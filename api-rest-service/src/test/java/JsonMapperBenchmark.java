@@ -0,0 +1,98 @@
+/**
+ * Copyright (c) 2008-2016, Massachusetts Institute of Technology (MIT)
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its contributors
+ * may be used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+import java.io.IOException;
+import java.util.Date;
+
+import org.codehaus.jackson.map.ObjectMapper;
+import org.codehaus.jackson.map.ObjectWriter;
+
+import edu.mit.ll.em.api.util.JsonMapper;
+import edu.mit.ll.nics.common.entity.Chat;
+import edu.mit.ll.nics.common.entity.Feature;
+
+/**
+ * Compares serializing notifications with a new ObjectMapper per message, as the
+ * services used to, against the shared writers from JsonMapper.
+ * 
+ * Usage: JsonMapperBenchmark [iterations]
+ */
+public class JsonMapperBenchmark {
+
+	private interface Task {
+		String run(Object value) throws IOException;
+	}
+
+	private static long time(String name, Object value, int iterations, Task task)
+			throws IOException {
+		// Warm up so JIT compilation isn't measured.
+		for (int n = 0; n < iterations / 10; ++n) {
+			task.run(value);
+		}
+		long bytes = 0;
+		long start = System.nanoTime();
+		for (int n = 0; n < iterations; ++n) {
+			bytes += task.run(value).length();
+		}
+		long elapsed = System.nanoTime() - start;
+		System.out.println(String.format("%-30s %10d ops/s  %8.2f us/op  (%d chars)",
+				name, (long) (iterations / (elapsed / 1e9)),
+				(elapsed / 1e3) / iterations, bytes / iterations));
+		return elapsed;
+	}
+
+	private static void compare(String type, Object value, int iterations) throws IOException {
+		final ObjectWriter writer = JsonMapper.getInstance().writerFor(value.getClass());
+		time(type + " new ObjectMapper", value, iterations, new Task() {
+			public String run(Object v) throws IOException {
+				return new ObjectMapper().writeValueAsString(v);
+			}
+		});
+		time(type + " shared ObjectWriter", value, iterations, new Task() {
+			public String run(Object v) throws IOException {
+				return writer.writeValueAsString(v);
+			}
+		});
+	}
+
+	public static void main(String args[]) throws IOException {
+		int iterations = (args.length > 0) ? Integer.parseInt(args[0]) : 100000;
+
+		Chat chat = new Chat();
+		chat.setChatid(1);
+		chat.setCollabroomid(7);
+		chat.setCreated(new Date());
+
+		Feature feature = new Feature();
+		feature.setTopic("share");
+
+		compare("Chat", chat, iterations);
+		compare("Feature", feature, iterations);
+	}
+}